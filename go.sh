@@ -3,7 +3,7 @@ set -e;
 
 memParams="-Xms3g -Xmx8g"
 
-while getopts ":Hdbivp:u:a:" opt
+while getopts ":HdDbivp:u:a:k:" opt
 do
 	case $opt in
 		a)
@@ -15,6 +15,12 @@ do
 		H)
 			historyFlag="-H"
 		;;
+		D)
+			deltaFlag="-d"
+		;;
+		k)
+			retainedState="-k $OPTARG"
+		;;
 		d)
   			debugParams="-Xdebug -Xrunjdwp:transport=dt_socket,server=y,suspend=y,address=8080"
 		;;
@@ -31,10 +37,12 @@ do
 			ramDrive="-u $OPTARG"
 		;;
 		help|\?)
-			echo -e "Usage: [-s] [-l] [-v] [-u <unzip location>] [-a <additional files location>] [-p <filename>] -h [api-host]"
+			echo -e "Usage: [-s] [-l] [-v] [-u <unzip location>] [-a <additional files location>] [-p <filename>] [-k <state location>] [-D] -h [api-host]"
 			echo -e "\t a - additional files to be added into the output archive"
 			echo -e "\t d - debug mode, allows IDE to connect on debug port"
+			echo -e "\t D - Delta, applies the release's Delta files to the state retained with -k"
 			echo -e "\t H - History, generates JUST the history file"
+			echo -e "\t k <location> - Keep the conversion database here for a later Delta run"
 			echo -e "\t i - Interactive mode allows sql queries to be run on the temporary database before destruction."
 			echo -e "\t p - (NOT RECOMMENDED) specify previous RF1 package"
 			echo -e "\t u <location> - Specify location to unzip archives to - good if it's a ramdrive."
@@ -44,7 +52,7 @@ do
 	esac
 done
 
-runTimeFlags="${verboseFlag} ${betaFlag} ${historyFlag} ${previousRF1} ${interactiveFlag} ${ramDrive} ${additionalFilesLocation}"
+runTimeFlags="${verboseFlag} ${betaFlag} ${historyFlag} ${previousRF1} ${interactiveFlag} ${ramDrive} ${additionalFilesLocation} ${retainedState} ${deltaFlag}"
 
 java -jar ${memParams} ${debugParams} target/RF2toRF1Converter.jar ${runTimeFlags} ~/Backup/SnomedCT_RF2Release_INT_20160731.zip 
 #java -jar ${memParams} ${debugParams} target/RF2toRF1Converter.jar ${runTimeFlags}  ~/Backup/SnomedCT_RF2Release_INT_20160131.zip
@@ -0,0 +1,329 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import static org.ihtsdo.snomed.rf2torf1conversion.GlobalUtils.*;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import com.google.common.io.Files;
+
+/**
+ * Builds a zip archive with its entries compressed concurrently.  Each entry is deflated
+ * into a temporary segment, either on the thread that produces it or on the builder's own
+ * thread pool, and the segments are then stitched together behind their local headers
+ * and followed by the central directory.  Entries are written in order of their path, and
+ * all are dated at midnight on the release date, so that the same content always gives the
+ * same archive.
+ *
+ * Zip64 is not supported, so no entry (nor the archive) may exceed 4GB.
+ */
+public class ArchiveBuilder {
+
+	/** Compression level for entries that are to be stored without compression */
+	public static final int STORED = -2;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long ZIP_LIMIT = 0xFFFFFFFFL;
+	private static final int MAX_ENTRIES = 0xFFFF;
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+	private static final int VERSION_STORED = 10;
+	private static final int VERSION_DEFLATED = 20;
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+	private static final int FLAG_UTF8 = 0x0800;
+
+	private final File archive;
+	private final int compressionLevel;
+	private final File segmentArea;
+	private final ExecutorService executor;
+	private final List<Future<Segment>> pending = new ArrayList<Future<Segment>>();
+	private final Map<String, Segment> segments = new TreeMap<String, Segment>();
+	private final int dosTime;
+	private final int dosDate;
+	private boolean finished = false;
+
+	/**
+	 * @param compressionLevel a Deflater level from 0 to 9, Deflater.DEFAULT_COMPRESSION or STORED
+	 * @param releaseDate the date given to every entry, as yyyyMMdd
+	 */
+	public ArchiveBuilder(File archive, int compressionLevel, int threadCount, String releaseDate) {
+		this.archive = archive;
+		this.compressionLevel = compressionLevel;
+		segmentArea = Files.createTempDir();
+		executor = Executors.newFixedThreadPool(threadCount);
+
+		// Rather than the time of the conversion, which would differ from one run to the next
+		int year = Integer.parseInt(releaseDate.substring(0, 4));
+		int month = Integer.parseInt(releaseDate.substring(4, 6));
+		int day = Integer.parseInt(releaseDate.substring(6, 8));
+		dosTime = 0;
+		dosDate = ((year - 1980) << 9) | (month << 5) | day;
+	}
+
+	/**
+	 * Compresses an entry on the calling thread, so several entries may be written at once.
+	 */
+	public void writeEntry(String path, ReleaseOutput.EntryWriter writer) throws RF1ConversionException {
+		Segment segment = compress(path, writer);
+		synchronized (this) {
+			if (segments.put(path, segment) != null) {
+				throw new RF1ConversionException("Archive entry " + path + " has already been written");
+			}
+		}
+	}
+
+	/**
+	 * Compresses an existing file on the builder's thread pool
+	 */
+	public void addFile(String path, File file) {
+		addFile(path, file, null);
+	}
+
+	/**
+	 * Compresses an existing file on the builder's thread pool, passing its content through
+	 * the filter, if given, on the way
+	 */
+	synchronized public void addFile(final String path, final File file, final ReleaseOutput.EntryFilter filter) {
+		pending.add(executor.submit(new Callable<Segment>() {
+			@Override
+			public Segment call() throws RF1ConversionException {
+				return compress(path, new ReleaseOutput.EntryWriter() {
+					@Override
+					public void writeTo(OutputStream out) throws RF1ConversionException {
+						try (InputStream in = new FileInputStream(file)) {
+							IOUtils.copy(in, filter == null ? out : filter.wrap(out));
+						} catch (IOException e) {
+							throw new RF1ConversionException("Failed to read " + file, e);
+						}
+					}
+				});
+			}
+		}));
+	}
+
+	/**
+	 * Waits for the files added so far to be compressed
+	 */
+	synchronized public void awaitEntries() throws RF1ConversionException {
+		try {
+			for (Future<Segment> future : pending) {
+				Segment segment = future.get();
+				if (segments.put(segment.path, segment) != null) {
+					throw new RF1ConversionException("Archive entry " + segment.path + " has already been written");
+				}
+			}
+			pending.clear();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RF1ConversionException) {
+				throw (RF1ConversionException) e.getCause();
+			}
+			throw new RF1ConversionException("Failed to compress entry for " + archive, e.getCause());
+		} catch (InterruptedException e) {
+			throw new RF1ConversionException("Interrupted while compressing entries for " + archive, e);
+		}
+	}
+
+	/**
+	 * Waits for all entries to be compressed, and then writes the archive
+	 */
+	synchronized public void build() throws RF1ConversionException {
+		try {
+			awaitEntries();
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (segments.size() > MAX_ENTRIES) {
+			throw new RF1ConversionException("Too many entries for RF1 Archive " + archive);
+		}
+
+		debug("Creating archive : " + archive);
+		try (CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(archive), BUFFER_SIZE))) {
+			for (Segment segment : segments.values()) {
+				debug(" Adding: " + segment.path);
+				segment.offset = out.getByteCount();
+				writeHeader(out, segment, false);
+				try (InputStream in = new FileInputStream(segment.file)) {
+					IOUtils.copy(in, out);
+				}
+				segment.file.delete();
+				updateProgress();
+			}
+
+			long centralDirectoryOffset = out.getByteCount();
+			for (Segment segment : segments.values()) {
+				writeHeader(out, segment, true);
+			}
+			long centralDirectorySize = out.getByteCount() - centralDirectoryOffset;
+			if (out.getByteCount() > ZIP_LIMIT) {
+				throw new RF1ConversionException("RF1 Archive " + archive + " exceeds the 4GB zip limit");
+			}
+
+			writeInt(out, END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+			writeShort(out, 0); // This disk
+			writeShort(out, 0); // Disk where the central directory starts
+			writeShort(out, segments.size());
+			writeShort(out, segments.size());
+			writeInt(out, centralDirectorySize);
+			writeInt(out, centralDirectoryOffset);
+			writeShort(out, 0); // Comment length
+		} catch (IOException e) {
+			throw new RF1ConversionException("Failed to create RF1 Archive " + archive, e);
+		} finally {
+			deleteSegments();
+		}
+		finished = true;
+	}
+
+	/**
+	 * Abandons an incomplete archive, removing anything partially written
+	 */
+	synchronized public void discard() {
+		executor.shutdownNow();
+		deleteSegments();
+		if (!finished) {
+			archive.delete();
+		}
+	}
+
+	private void deleteSegments() {
+		try {
+			FileUtils.deleteDirectory(segmentArea);
+		} catch (IOException e) {
+			debug("Unable to remove temporary segments in " + segmentArea + ": " + e.getMessage());
+		}
+	}
+
+	private Segment compress(String path, ReleaseOutput.EntryWriter writer) throws RF1ConversionException {
+		Segment segment = new Segment(path);
+		CRC32 crc = new CRC32();
+		Deflater deflater = compressionLevel == STORED ? null : new Deflater(compressionLevel, true);
+		try (CountingOutputStream compressed = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(segment.file), BUFFER_SIZE))) {
+			OutputStream entryOut = compressed;
+			if (deflater != null) {
+				entryOut = new DeflaterOutputStream(compressed, deflater, BUFFER_SIZE);
+			}
+			CountingOutputStream uncompressed = new CountingOutputStream(new CheckedOutputStream(entryOut, crc));
+			writer.writeTo(new EntryOutputStream(uncompressed));
+			uncompressed.flush();
+			if (deflater != null) {
+				((DeflaterOutputStream) entryOut).finish();
+			}
+			segment.crc = crc.getValue();
+			segment.size = uncompressed.getByteCount();
+			segment.compressedSize = compressed.getByteCount();
+		} catch (IOException e) {
+			throw new RF1ConversionException("Failed to compress " + path + " for RF1 Archive " + archive, e);
+		} finally {
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+		if (segment.size > ZIP_LIMIT || segment.compressedSize > ZIP_LIMIT) {
+			throw new RF1ConversionException(path + " exceeds the 4GB zip limit");
+		}
+		return segment;
+	}
+
+	private void writeHeader(OutputStream out, Segment segment, boolean central) throws IOException {
+		boolean stored = compressionLevel == STORED;
+		byte[] name = segment.path.getBytes(StandardCharsets.UTF_8);
+		if (central) {
+			writeInt(out, CENTRAL_HEADER_SIGNATURE);
+			writeShort(out, stored ? VERSION_STORED : VERSION_DEFLATED); // Version made by
+		} else {
+			writeInt(out, LOCAL_HEADER_SIGNATURE);
+		}
+		writeShort(out, stored ? VERSION_STORED : VERSION_DEFLATED); // Version needed to extract
+		writeShort(out, FLAG_UTF8);
+		writeShort(out, stored ? METHOD_STORED : METHOD_DEFLATED);
+		writeShort(out, dosTime);
+		writeShort(out, dosDate);
+		writeInt(out, segment.crc);
+		writeInt(out, segment.compressedSize);
+		writeInt(out, segment.size);
+		writeShort(out, name.length);
+		writeShort(out, 0); // Extra field length
+		if (central) {
+			writeShort(out, 0); // Comment length
+			writeShort(out, 0); // Disk number
+			writeShort(out, 0); // Internal attributes
+			writeInt(out, 0); // External attributes
+			writeInt(out, segment.offset);
+		}
+		out.write(name);
+	}
+
+	private static void writeShort(OutputStream out, int value) throws IOException {
+		out.write(value & 0xFF);
+		out.write((value >>> 8) & 0xFF);
+	}
+
+	private static void writeInt(OutputStream out, long value) throws IOException {
+		writeShort(out, (int) (value & 0xFFFF));
+		writeShort(out, (int) ((value >>> 16) & 0xFFFF));
+	}
+
+	private class Segment {
+		final String path;
+		final File file;
+		long crc;
+		long size;
+		long compressedSize;
+		long offset;
+
+		Segment(String path) throws RF1ConversionException {
+			this.path = path;
+			try {
+				file = File.createTempFile("segment", ".tmp", segmentArea);
+			} catch (IOException e) {
+				throw new RF1ConversionException("Unable to create temporary segment for " + path, e);
+			}
+		}
+	}
+
+	/**
+	 * Leaves the segment open when the entry's writer is done with it
+	 */
+	private static class EntryOutputStream extends FilterOutputStream {
+		EntryOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.File;
+
+/**
+ * Writes each file of the release straight into the release archive, so that nothing
+ * is written to an export directory and read back again.  Entries written at the same
+ * time are compressed in parallel.
+ */
+public class ArchiveReleaseOutput implements ReleaseOutput {
+
+	private final ArchiveBuilder builder;
+
+	public ArchiveReleaseOutput(File archive, int compressionLevel, String releaseDate) {
+		builder = new ArchiveBuilder(archive, compressionLevel, Runtime.getRuntime().availableProcessors(), releaseDate);
+	}
+
+	@Override
+	public void writeEntry(String path, EntryWriter writer) throws RF1ConversionException {
+		builder.writeEntry(path, writer);
+	}
+
+	@Override
+	public void addFile(String path, File file) throws RF1ConversionException {
+		builder.addFile(path, file);
+	}
+
+	@Override
+	public void addFile(String path, File file, EntryFilter filter) throws RF1ConversionException {
+		builder.addFile(path, file, filter);
+	}
+
+	@Override
+	public void awaitFiles() throws RF1ConversionException {
+		builder.awaitEntries();
+	}
+
+	@Override
+	public void finish() throws RF1ConversionException {
+		builder.build();
+	}
+
+	@Override
+	public void discard() {
+		builder.discard();
+	}
+}
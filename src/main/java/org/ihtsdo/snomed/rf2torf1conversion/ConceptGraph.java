@@ -0,0 +1,39 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+/**
+ * The inferred hierarchy and attributes needed to generate qualifying and laterality
+ * relationships, independent of how they are stored.
+ */
+public interface ConceptGraph {
+
+	/**
+	 * HEAP holds the graph as Concept objects.  DIRECT and MAPPED hold it outside of the heap,
+	 * in a direct buffer or in a memory mapped temporary file respectively.
+	 */
+	enum Storage { HEAP, DIRECT, MAPPED }
+
+	/**
+	 * @return the ids of every descendant of the concept, in ascending order, or none if the
+	 * concept is not part of the graph
+	 */
+	long[] getAllDescendents(long conceptId);
+
+	/**
+	 * @return true if the ancestor is reached by following ISA relationships up from the concept
+	 */
+	boolean hasAncestor(long conceptId, long ancestorId);
+
+	/**
+	 * @return true if the concept has an inferred relationship of the given type and
+	 * destination, in any group
+	 */
+	boolean hasAttribute(long conceptId, long typeId, long destinationId);
+
+	int getConceptCount();
+
+	/**
+	 * @return the ids of every concept in the graph, in ascending order
+	 */
+	long[] getConceptIds();
+
+}
@@ -0,0 +1,198 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Holds the relationships of a loaded concept graph in a compact binary file, so that a
+ * later run against the same relationship snapshot can map the file rather than parse the
+ * snapshot again.  The file is named for the SHA-256 digest of the snapshot, so a cache
+ * can only ever be used for the snapshot it was written from.
+ *
+ * The file holds the sorted ids of every concept and of every relationship type, followed
+ * by the relationships grouped by source concept - an offset into the relationships for
+ * each concept, then the destination index, type index and group of each relationship.
+ */
+public class ConceptGraphCache {
+
+	private static final int MAGIC = 0x52463147;  //RF1G
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 4;
+	private static final int EDGE_BYTES = 4 + 4 + 4;
+	private static final String CACHE_PREFIX = "concept_graph_";
+	private static final String CACHE_SUFFIX = ".bin";
+
+	private final File cacheFile;
+
+	public ConceptGraphCache(File cacheLocation, File relationshipSnapshot) throws RF1ConversionException {
+		this.cacheFile = new File(cacheLocation, CACHE_PREFIX + digest(relationshipSnapshot) + CACHE_SUFFIX);
+	}
+
+	private static String digest(File file) throws RF1ConversionException {
+		try (InputStream in = new FileInputStream(file)) {
+			return digest(in);
+		} catch (IOException e) {
+			throw new RF1ConversionException("Unable to read " + file, e);
+		}
+	}
+
+	/**
+	 * @return the SHA-256 digest of everything left in the stream, in lower case hex
+	 */
+	static String digest(InputStream in) throws IOException, RF1ConversionException {
+		MessageDigest digest = ManifestReleaseOutput.createDigest();
+		byte[] buffer = new byte[64 * 1024];
+		int bytesRead;
+		while ((bytesRead = in.read(buffer)) != -1) {
+			digest.update(buffer, 0, bytesRead);
+		}
+		return BaseEncoding.base16().lowerCase().encode(digest.digest());
+	}
+
+	public File getFile() {
+		return cacheFile;
+	}
+
+	public boolean exists() {
+		return cacheFile.isFile();
+	}
+
+	/**
+	 * Passes every relationship held in the cache to the handler, ordered by source concept.
+	 * The whole file is checked before any relationship is passed on.
+	 * @return the time in milliseconds it took to load the graph when the cache was written
+	 */
+	public long read(RelationshipFileParser.RelationshipHandler handler) throws RF1ConversionException {
+		try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r"); FileChannel channel = raf.getChannel()) {
+			if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) {
+				throw new RF1ConversionException("Concept graph cache " + cacheFile + " is not a valid size");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new RF1ConversionException(cacheFile + " is not a concept graph cache of version " + VERSION);
+			}
+			long coldLoadMillis = buffer.getLong();
+			int conceptCount = buffer.getInt();
+			int typeCount = buffer.getInt();
+			int edgeCount = buffer.getInt();
+			long expectedSize = HEADER_BYTES + 8L * conceptCount + 8L * typeCount + 4L * (conceptCount + 1) + (long) EDGE_BYTES * edgeCount;
+			if (conceptCount < 0 || typeCount < 0 || edgeCount < 0 || channel.size() != expectedSize) {
+				throw new RF1ConversionException("Concept graph cache " + cacheFile + " is truncated or corrupt");
+			}
+
+			long[] conceptIds = new long[conceptCount];
+			for (int i = 0; i < conceptCount; i++) {
+				conceptIds[i] = buffer.getLong();
+			}
+			long[] typeIds = new long[typeCount];
+			for (int i = 0; i < typeCount; i++) {
+				typeIds[i] = buffer.getLong();
+			}
+			int[] offsets = new int[conceptCount + 1];
+			for (int i = 0; i <= conceptCount; i++) {
+				offsets[i] = buffer.getInt();
+				if (offsets[i] < (i == 0 ? 0 : offsets[i - 1]) || offsets[i] > edgeCount) {
+					throw new RF1ConversionException("Concept graph cache " + cacheFile + " has invalid offsets");
+				}
+			}
+			int edgeStart = buffer.position();
+			for (int i = 0; i < edgeCount; i++) {
+				int destination = buffer.getInt();
+				int type = buffer.getInt();
+				buffer.getInt();
+				if (destination < 0 || destination >= conceptCount || type < 0 || type >= typeCount) {
+					throw new RF1ConversionException("Concept graph cache " + cacheFile + " has an invalid relationship");
+				}
+			}
+
+			buffer.position(edgeStart);
+			for (int source = 0; source < conceptCount; source++) {
+				for (int edge = offsets[source]; edge < offsets[source + 1]; edge++) {
+					long destinationId = conceptIds[buffer.getInt()];
+					long typeId = typeIds[buffer.getInt()];
+					handler.handle(conceptIds[source], destinationId, buffer.getInt(), typeId);
+				}
+			}
+			return coldLoadMillis;
+		} catch (IOException e) {
+			throw new RF1ConversionException("Failed to read concept graph cache " + cacheFile, e);
+		}
+	}
+
+	/**
+	 * Writes the relationships to the cache, via a temporary file so that a run which fails
+	 * part way through never leaves a partial cache behind.
+	 * @param edges relationships sorted by source, as left by RelationshipEdges.sortAndDeduplicate
+	 */
+	public void write(RelationshipEdges edges, long coldLoadMillis) throws RF1ConversionException {
+		TreeSet<Long> allConcepts = new TreeSet<Long>();
+		TreeSet<Long> allTypes = new TreeSet<Long>();
+		for (int i = 0; i < edges.size(); i++) {
+			allConcepts.add(edges.getSourceId(i));
+			allConcepts.add(edges.getDestinationId(i));
+			allTypes.add(edges.getTypeId(i));
+		}
+		long[] conceptIds = toArray(allConcepts);
+		long[] typeIds = toArray(allTypes);
+
+		File tempFile = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(coldLoadMillis);
+			out.writeInt(conceptIds.length);
+			out.writeInt(typeIds.length);
+			out.writeInt(edges.size());
+			for (long conceptId : conceptIds) {
+				out.writeLong(conceptId);
+			}
+			for (long typeId : typeIds) {
+				out.writeLong(typeId);
+			}
+			//Relationships are sorted by source, so each concept's run starts where the last ended
+			int edge = 0;
+			for (long conceptId : conceptIds) {
+				out.writeInt(edge);
+				while (edge < edges.size() && edges.getSourceId(edge) == conceptId) {
+					edge++;
+				}
+			}
+			out.writeInt(edge);
+			for (int i = 0; i < edges.size(); i++) {
+				out.writeInt(Arrays.binarySearch(conceptIds, edges.getDestinationId(i)));
+				out.writeInt(Arrays.binarySearch(typeIds, edges.getTypeId(i)));
+				out.writeInt(edges.getGroup(i));
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			throw new RF1ConversionException("Failed to write concept graph cache " + cacheFile, e);
+		}
+		if (!tempFile.renameTo(cacheFile)) {
+			tempFile.delete();
+			throw new RF1ConversionException("Unable to move concept graph cache into place at " + cacheFile);
+		}
+	}
+
+	private static long[] toArray(Collection<Long> ids) {
+		long[] array = new long[ids.size()];
+		int i = 0;
+		for (Long id : ids) {
+			array[i++] = id;
+		}
+		return array;
+	}
+}
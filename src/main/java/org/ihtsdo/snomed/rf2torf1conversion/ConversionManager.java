@@ -2,53 +2,79 @@ package org.ihtsdo.snomed.rf2torf1conversion;
 
 import static org.ihtsdo.snomed.rf2torf1conversion.GlobalUtils.*;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.util.Collection;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.lang.reflect.Type;
+import java.util.zip.ZipFile;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
-import org.ihtsdo.snomed.rf2torf1conversion.pojo.Concept;
-import org.ihtsdo.snomed.rf2torf1conversion.pojo.ConceptDeserializer;
+import org.ihtsdo.snomed.rf2torf1conversion.StageScheduler.Stage;
 import org.ihtsdo.snomed.rf2torf1conversion.pojo.LateralityIndicator;
-import org.ihtsdo.snomed.rf2torf1conversion.pojo.QualifyingRelationshipAttribute;
-import org.ihtsdo.snomed.rf2torf1conversion.pojo.QualifyingRelationshipRule;
 import org.ihtsdo.snomed.rf2torf1conversion.pojo.RF1SchemaConstants;
 import org.ihtsdo.snomed.rf2torf1conversion.pojo.RF2SchemaConstants;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.io.Files;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
 
 public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants {
 
 	File intRf2Archive;
 	File extRf2Archive;
 	File unzipLocation = null;
+	File intLoadingArea = null;
+	File extLoadingArea = null;
 	File additionalFilesLocation = null;
 	File previousRF1Location;
+	File stateLocation = null;
+	File graphCacheLocation = null;
+	ConceptGraph.Storage graphStorage = ConceptGraph.Storage.HEAP;
+	ConceptGraph conceptGraph = null;
+	File transitiveClosureFile = null;
+	LateralityIndicator lateralityIndex = null;
+	String graphLoadSummary = null;
+	boolean applyDelta = false;
+	String previousReleaseDate = null;
+	Edition previousEdition = null;
+	File previousHistoryFile = null;
+	String previousRF1ReleaseDate = null;
+	ZipFile previousRF1Archive = null;
+	Long historyFrom = null;
 	boolean useRelationshipIds = false;
 	DBManager db;
 	String intReleaseDate;
@@ -60,24 +86,38 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 	boolean onlyHistory = false;
 	boolean isExtension = false;
 	boolean goInteractive = false;
+	boolean writeArchiveDirectly = false;
+	boolean includeTransitiveClosure = false;
+	int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	ReleaseOutput releaseOutput = null;
+	QualifyingRuleTable qualifyingRules = null;
 	Edition edition;
 	private String EXT = "EXT";
 	private String LNG = "LNG";
 	private String DATE = "DATE";
 	private String OUT = "OUT";
+	private String FULL = "Full";
+	private String DELTA = "Delta";
+	private String releaseType = FULL;
 	private String outputFolderTemplate = "SnomedCT_OUT_INT_DATE";
 	private String ANCIENT_HISTORY = "/sct1_ComponentHistory_Core_INT_20130731.txt";
+	private String HISTORY_START = "20140131";
 	private String QUALIFYING_RULES = "/qualifying_relationship_rules.json";
 	private String AVAILABLE_SUBSET_IDS = "/available_sctids_partition_03.txt";
 	private String AVAILABLE_RELATIONSHIP_IDS = "/available_sctids_partition_02.txt";
 	private String RELATIONSHIP_FILENAME = "SnomedCT_OUT_INT_DATE/Terminology/Content/sct1_Relationships_Core_INT_DATE.txt";
+	private String MANIFEST_FILENAME = "SnomedCT_OUT_INT_DATE/Manifest_INT_DATE.txt";
 	private String BETA_PREFIX = "x";
 	Set<File> filesLoaded = new HashSet<File>();
+	Map<File, MessageDigest> rf2Digests = Collections.synchronizedMap(new LinkedHashMap<File, MessageDigest>());
 	private Long[] subsetIds;
 	private Long maxPreviousSubsetId = null;
 	private int  previousSubsetVersion = 29;  //Taken from 20160131 RF1 International Release
 	private static final String RELEASE_NOTES = "SnomedCTReleaseNotes";
 	private static final String DOCUMENTATION_DIR = "Documentation/";
+	private static final int EXPORT_THREADS = 3;
+	private static final int STAGE_THREADS = 4;
+	private static final String COMPARE_MODE = "compare";
 	
 	enum Edition { INTERNATIONAL, SPANISH };
 	
@@ -186,6 +226,10 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 	public static void main(String[] args) throws RF1ConversionException {
 		//Set Windows Line separator as that's an RF1 standard
 		System.setProperty("line.separator", "\r\n");
+		if (args.length > 0 && args[0].equals(COMPARE_MODE)) {
+			ReleaseComparator.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
 		ConversionManager cm = new ConversionManager();
 		cm.doRf2toRf1Conversion(args);
 	}
@@ -193,118 +237,76 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 	private void doRf2toRf1Conversion(String[] args) throws RF1ConversionException {
 		File tempDBLocation = Files.createTempDir();
 		init(args, tempDBLocation);
-		createDatabaseSchema();
-		File intLoadingArea = null;
-		File extLoadingArea = null;
+		if (applyDelta) {
+			loadConversionState();
+		} else {
+			createDatabaseSchema();
+		}
 		File exportArea = null;
 		Stopwatch stopwatch = Stopwatch.createStarted();
 		String completionStatus = "failed";
 		try {
-			print("\nExtracting RF2 International Edition Data...");
-			intLoadingArea = unzipArchive(intRf2Archive);
-			intReleaseDate = findDateInString(intLoadingArea.listFiles()[0].getName(), false);
-			extReleaseDate = intReleaseDate;
-			determineEdition(intLoadingArea, Edition.INTERNATIONAL, intReleaseDate);
-			
-			//Laterality indicators are now obligatory
-			loadLateralityIndicators(intReleaseDate);
-			
-			if (extRf2Archive != null) {
-				print("\nExtracting RF2 Extension Data...");
-				extLoadingArea = unzipArchive(extRf2Archive);
-				extReleaseDate = findDateInString(extLoadingArea.listFiles()[0].getName(), false);
-				determineEdition(extLoadingArea, null, extReleaseDate);	
-				isExtension = true;
-			}
-			String releaseDate = isExtension ? extReleaseDate : intReleaseDate;
-			File loadingArea = isExtension ? extLoadingArea : intLoadingArea;
-			int releaseIndex = calculateReleaseIndex(releaseDate);
-			EditionConfig config = knownEditionMap.get(edition);
-			int newSubsetVersion = 0;
-			if (previousRF1Location != null) {
+			if (!applyDelta && previousRF1Location != null) {
+				//Existing relationship Ids will be used for reconciliation
 				useRelationshipIds = true;
-				//This will allow us to set up SubsetIds (using available_sctids_partition_03)
-				//And a map of existing relationship Ids to use for reconciliation
-				loadPreviousRF1(config);
-				
-				//Initialise a set of available SCTIDS
-				InputStream availableRelIds = ConversionManager.class.getResourceAsStream(AVAILABLE_RELATIONSHIP_IDS);
-				RF1Constants.intialiseAvailableRelationships(availableRelIds);
-				newSubsetVersion = previousSubsetVersion + 1;
-			} else {
-				useDeterministicSubsetIds(releaseIndex, config);
-				newSubsetVersion = previousSubsetVersion + releaseIndex;
-			}
-			db.runStatement("SET @useRelationshipIds = " + useRelationshipIds);
-			setSubsetIds(newSubsetVersion);
-			
-			long targetOperationCount = getTargetOperationCount();
-			if (onlyHistory) {
-				targetOperationCount = 250;
-			} else if (isExtension) {
-				targetOperationCount = includeHistory? targetOperationCount : 388;
-			} else {
-				targetOperationCount = includeHistory? targetOperationCount : 391;
 			}
-			setTargetOperationCount(targetOperationCount);
-
-			completeOutputMap(config);
-			db.runStatement("SET @langCode = '" + config.langCode + "'");
-			db.runStatement("SET @langRefSet = '" + config.dialects[0].langRefSetId + "'");
-			
-			print("\nLoading " + Edition.INTERNATIONAL +" common RF2 Data...");
-			loadRF2Data(intLoadingArea,  Edition.INTERNATIONAL, intReleaseDate, intfileToTable);
-			
-			//Load the rest of the files from the same loading area if International Release, otherwise use the extensionLoading  Area
-			print("\nLoading " + edition +" RF2 Data...");
-			loadRF2Data(loadingArea, edition, releaseDate, extfileToTable);
-
-			debug("\nCreating RF2 indexes...");
-			db.executeResource("create_rf2_indexes.sql");
-			
-			if (!onlyHistory) {
-				print("\nCalculating RF2 snapshot...");
-				calculateRF2Snapshot(releaseDate);
+			StageScheduler scheduler = new StageScheduler(STAGE_THREADS);
+			scheduleConversion(scheduler);
+			scheduler.run();
+			print("\n" + scheduler.getCriticalPathReport());
+			if (graphLoadSummary != null) {
+				print(graphLoadSummary);
 			}
+			closePreviousRF1Archive();
 
-			print("\nConverting RF2 to RF1...");
-			convert();
-
-			print("\nExporting RF1 to file...");
-			exportArea = Files.createTempDir();
-			exportRF1Data(intExportMap, releaseDate, intReleaseDate, knownEditionMap.get(edition), exportArea);
-			exportRF1Data(extExportMap, releaseDate, releaseDate, knownEditionMap.get(edition), exportArea);
+			String releaseDate = isExtension ? extReleaseDate : intReleaseDate;
+			File loadingArea = isExtension ? extLoadingArea : intLoadingArea;
+			EditionConfig editionConfig = knownEditionMap.get(edition);
 
 			//Relationship file uses the international release date, even for extensions.  Well, the Spanish one anyway.
 			//But we also need the extension release date for the top level directory
-			String filePath = getQualifyingRelationshipFilepath(intReleaseDate, extReleaseDate, knownEditionMap.get(edition), exportArea);
-			if (includeAllQualifyingRelationships || includeLateralityIndicators) {
-				print("\nLoading Inferred Relationship Hierarchy for Qualifying Relationship computation...");
-				loadRelationshipHierarchy(intLoadingArea);
-			}
-			
-			if (includeAllQualifyingRelationships) {
-				print ("\nGenerating qualifying relationships");
-				Set<QualifyingRelationshipAttribute> ruleAttributes = loadQualifyingRelationshipRules();
-				generateQualifyingRelationships(ruleAttributes, filePath);
+			String relationshipFile = getReleaseFileName(RELATIONSHIP_FILENAME, releaseDate, intReleaseDate, editionConfig);
+			String relationshipFilePath;
+			if (writeArchiveDirectly) {
+				File archive = getArchiveFile(getOutputRoot(releaseDate, editionConfig));
+				print("\nExporting RF1 to " + archive);
+				releaseOutput = new ArchiveReleaseOutput(archive, compressionLevel, releaseDate);
+				relationshipFilePath = "zip:" + archive.getAbsolutePath() + "!/" + relationshipFile;
+			} else {
+				print("\nExporting RF1 to file...");
+				exportArea = Files.createTempDir();
+				releaseOutput = new DirectoryReleaseOutput(exportArea, compressionLevel, releaseDate);
+				relationshipFilePath = exportArea + File.separator + relationshipFile;
 			}
-			
-			if (includeLateralityIndicators) {
-				print ("\nGenerating laterality qualifying relationships");
-				generateLateralityRelationships(filePath);
+			ManifestReleaseOutput manifest = new ManifestReleaseOutput(releaseOutput,
+					getReleaseFileName(MANIFEST_FILENAME, releaseDate, releaseDate, editionConfig));
+			for (Map.Entry<File, MessageDigest> rf2Digest : rf2Digests.entrySet()) {
+				manifest.recordInput(rf2Digest.getKey(), rf2Digest.getValue());
 			}
+			releaseOutput = manifest;
+			List<Callable<Void>> exports = new ArrayList<Callable<Void>>();
+			exports.addAll(getFileExporters(intExportMap, releaseDate, intReleaseDate, editionConfig));
+			exports.addAll(getFileExporters(extExportMap, releaseDate, releaseDate, editionConfig));
+			exports.addAll(getSubsetExporters(releaseDate, editionConfig));
+			exportRF1Data(exports);
 			
 			boolean documentationIncluded = false;
 			if (additionalFilesLocation != null) {
-				documentationIncluded = includeAdditionalFiles(exportArea, releaseDate, knownEditionMap.get(edition));
+				documentationIncluded = includeAdditionalFiles(releaseDate, editionConfig);
 			}
 			
 			if (!documentationIncluded) {
-				pullDocumentationFromRF2(loadingArea, exportArea, releaseDate, knownEditionMap.get(edition));
+				pullDocumentationFromRF2(loadingArea, releaseDate, editionConfig);
 			}
 			
 			print("\nZipping archive");
-			createArchive(exportArea);
+			releaseOutput.finish();
+			print("\nRelease manifest:\n" + manifest.getManifest());
+			
+			if (stateLocation != null) {
+				print("\nRecording conversion state in " + stateLocation.getAbsolutePath());
+				saveConversionState(releaseDate, relationshipFilePath);
+			}
 
 			completionStatus = "completed";
 			
@@ -319,8 +321,12 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 			} catch (Exception e){}
 			
 			print("Cleaning up resources...");
+			closePreviousRF1Archive();
+			if (releaseOutput != null && !completionStatus.equals("completed")) {
+				releaseOutput.discard();
+			}
 			try {
-				db.shutDown(true); // Also deletes all files
+				db.shutDown(stateLocation == null); // Also deletes all files, unless we're retaining them
 				if (tempDBLocation != null && tempDBLocation.exists()) {
 					tempDBLocation.delete();
 				}
@@ -374,45 +380,261 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 
 	private void completeOutputMap(EditionConfig editionConfig) {
 		if (isExtension) {
-			String archiveName = "SnomedCT_OUT_INT_DATE";
-			String folderName = "Language-" + editionConfig.langCode;
-			String fileRoot = archiveName + File.separator + "Subsets" + File.separator + folderName + File.separator;
-			String fileName = "der1_SubsetMembers_"+ editionConfig.langCode + "_INT_DATE.txt";
-			extExportMap.put(fileRoot + fileName,
-					"select s.SubsetId, s.MemberID, s.MemberStatus, s.LinkedID from rf21_SUBSETS s, rf21_SUBSETLIST sl where s.SubsetOriginalId = sl.subsetOriginalId AND sl.languageCode = ''" + editionConfig.langCode + "'';");
-			
-			fileName = "der1_Subsets_" + editionConfig.langCode + "_INT_DATE.txt";
-			extExportMap.put(fileRoot + fileName,
-					"select sl.* from rf21_SUBSETLIST sl where languagecode = ''" + editionConfig.langCode + "'';");
 			extExportMap.put("SnomedCT_OUT_INT_DATE/Resources/TextDefinitions/sct1_TextDefinitions_LNG_INT_DATE.txt",
 					"select * from rf21_DEF");
 		} else {
 			extExportMap.put("SnomedCT_OUT_INT_DATE/Resources/TextDefinitions/sct1_TextDefinitions_en-US_INT_DATE.txt",
 					"select * from rf21_DEF");
-			extExportMap
-			.put("SnomedCT_OUT_INT_DATE/Subsets/Language-en-GB/der1_SubsetMembers_en-GB_INT_DATE.txt",
-					"select s.SubsetId, s.MemberID, s.MemberStatus, s.LinkedID from rf21_SUBSETS s, rf21_SUBSETLIST sl where s.SubsetOriginalId = sl.subsetOriginalId AND sl.languageCode in (''en'',''en-GB'')");
-			extExportMap.put("SnomedCT_OUT_INT_DATE/Subsets/Language-en-GB/der1_Subsets_en-GB_INT_DATE.txt",
-					"select sl.* from rf21_SUBSETLIST sl where languagecode like ''%GB%''");
-			extExportMap
-					.put("SnomedCT_OUT_INT_DATE/Subsets/Language-en-US/der1_SubsetMembers_en-US_INT_DATE.txt",
-							"select s.SubsetId, s.MemberID, s.MemberStatus, s.LinkedID from rf21_SUBSETS s, rf21_SUBSETLIST sl where s.SubsetOriginalId = sl.subsetOriginalId AND sl.languageCode in (''en'',''en-US'')");
-			extExportMap.put("SnomedCT_RF1Release_INT_DATE/Subsets/Language-en-US/der1_Subsets_en-US_INT_DATE.txt",
-			"select sl.* from rf21_SUBSETLIST sl where languagecode like ''%US%''");
 		}
 		
 		if (includeHistory) {
+			//Where we have the previous history file, only the newer entries come from the database
+			String historyCriteria = previousHistoryFile == null ? "" : " where RELEASEVERSION >= " + getHistoryFrom();
 			extExportMap.put("SnomedCT_OUT_INT_DATE/Terminology/History/sct1_ComponentHistory_Core_INT_DATE.txt",
-					"select COMPONENTID, RELEASEVERSION, CHANGETYPE, STATUS, REASON from rf21_COMPONENTHISTORY");
+					"select COMPONENTID, RELEASEVERSION, CHANGETYPE, STATUS, REASON from rf21_COMPONENTHISTORY" + historyCriteria);
 		}
 	}
 
+	/**
+	 * Sets out the work of the conversion up to the export as stages, so that anything not
+	 * waiting on the database - extracting the archives, parsing the previous RF1 and loading
+	 * the hierarchy - overlaps with it.  Database stages are chained one after another, as the
+	 * SQL variables they set only hold for the pooled connection they were set on.
+	 */
+	private void scheduleConversion(StageScheduler scheduler) throws RF1ConversionException {
+		List<Stage> previousRelationships = new ArrayList<Stage>();
+		if (previousRF1Location != null) {
+			previousRelationships = addPreviousRelationshipStages(scheduler);
+		}
+
+		Stage extractInt = scheduler.add("Extract International RF2", new Callable<Void>() {
+			@Override
+			public Void call() throws RF1ConversionException {
+				print("\nExtracting RF2 International Edition Data...");
+				intLoadingArea = unzipArchive(intRf2Archive);
+				intReleaseDate = findDateInString(intLoadingArea.listFiles()[0].getName(), false);
+				return null;
+			}
+		});
+
+		Stage extractExt = null;
+		if (extRf2Archive != null) {
+			extractExt = scheduler.add("Extract extension RF2", new Callable<Void>() {
+				@Override
+				public Void call() throws RF1ConversionException {
+					print("\nExtracting RF2 Extension Data...");
+					extLoadingArea = unzipArchive(extRf2Archive);
+					extReleaseDate = findDateInString(extLoadingArea.listFiles()[0].getName(), false);
+					return null;
+				}
+			});
+		}
+
+		Stage identify = scheduler.add("Determine edition and identifiers", new Callable<Void>() {
+			@Override
+			public Void call() throws RF1ConversionException {
+				determineEditionAndIdentifiers();
+				return null;
+			}
+		}, extractInt, extractExt);
+
+		//Laterality indicators are now obligatory
+		scheduler.add("Load laterality indicators", new Callable<Void>() {
+			@Override
+			public Void call() throws RF1ConversionException {
+				loadLateralityIndicators(intReleaseDate);
+				return null;
+			}
+		}, extractInt);
+
+		Stage hierarchy = null;
+		if (includeAllQualifyingRelationships || includeLateralityIndicators) {
+			hierarchy = scheduler.add("Load relationship hierarchy", new Callable<Void>() {
+				@Override
+				public Void call() throws RF1ConversionException {
+					print("\nLoading Inferred Relationship Hierarchy for Qualifying Relationship computation...");
+					loadRelationshipHierarchy(intLoadingArea);
+					return null;
+				}
+			}, extractInt);
+		}
+
+		if (includeAllQualifyingRelationships) {
+			scheduler.add("Load qualifying relationship rules", new Callable<Void>() {
+				@Override
+				public Void call() throws RF1ConversionException {
+					qualifyingRules = loadQualifyingRelationshipRules();
+					return null;
+				}
+			});
+		}
+
+		//A Delta must be checked against the retained conversion before anything is loaded into it
+		Stage loadInt = scheduler.add("Load International RF2", new Callable<Void>() {
+			@Override
+			public Void call() throws RF1ConversionException {
+				print("\nLoading " + Edition.INTERNATIONAL +" common RF2 Data...");
+				loadRF2Data(intLoadingArea, Edition.INTERNATIONAL, intReleaseDate, intfileToTable);
+				return null;
+			}
+		}, extractInt, applyDelta ? identify : null);
+
+		Stage configure = scheduler.add("Configure conversion", new Callable<Void>() {
+			@Override
+			public Void call() throws RF1ConversionException {
+				configureConversion();
+				return null;
+			}
+		}, identify, loadInt);
+
+		Stage loadExt = scheduler.add("Load " + (extRf2Archive == null ? "remaining" : "extension") + " RF2", new Callable<Void>() {
+			@Override
+			public Void call() throws RF1ConversionException {
+				//Load the rest of the files from the same loading area if International Release, otherwise use the extensionLoading  Area
+				print("\nLoading " + edition +" RF2 Data...");
+				if (isExtension) {
+					loadRF2Data(extLoadingArea, edition, extReleaseDate, extfileToTable);
+				} else {
+					loadRF2Data(intLoadingArea, edition, intReleaseDate, extfileToTable);
+				}
+				return null;
+			}
+		}, configure);
+
+		Stage snapshot = scheduler.add(applyDelta ? "Apply RF2 Delta" : "Calculate RF2 snapshot", new Callable<Void>() {
+			@Override
+			public Void call() throws RF1ConversionException {
+				String releaseDate = isExtension ? extReleaseDate : intReleaseDate;
+				if (applyDelta) {
+					print("\nApplying RF2 Delta to retained snapshot...");
+					applyRF2Delta(releaseDate);
+				} else {
+					debug("\nCreating RF2 indexes...");
+					db.executeResource("create_rf2_indexes.sql");
+					
+					if (!onlyHistory) {
+						print("\nCalculating RF2 snapshot...");
+						calculateRF2Snapshot(releaseDate);
+					}
+				}
+				return null;
+			}
+		}, loadExt);
+
+		Stage convert = scheduler.add("Convert RF2 to RF1", new Callable<Void>() {
+			@Override
+			public Void call() throws RF1ConversionException {
+				print("\nConverting RF2 to RF1...");
+				convert();
+				return null;
+			}
+		}, snapshot);
+
+		Stage lastDatabaseStage = convert;
+		if (useRelationshipIds && !onlyHistory) {
+			previousRelationships.add(convert);
+			lastDatabaseStage = scheduler.add("Assign relationship Ids", new Callable<Void>() {
+				@Override
+				public Void call() throws RF1ConversionException {
+					db.executeResource("populate_rf1_rel_ids.sql");
+					return null;
+				}
+			}, previousRelationships.toArray(new Stage[previousRelationships.size()]));
+		}
+
+		//Nothing in the conversion reads the closure, so it is only loaded on request, once the
+		//conversion is complete.  It is worked out alongside the RF2 loading.
+		if (includeTransitiveClosure && hierarchy != null && !onlyHistory) {
+			Stage calculateClosure = scheduler.add("Calculate transitive closure", new Callable<Void>() {
+				@Override
+				public Void call() throws RF1ConversionException {
+					calculateTransitiveClosure();
+					return null;
+				}
+			}, hierarchy);
+
+			scheduler.add("Load transitive closure", new Callable<Void>() {
+				@Override
+				public Void call() throws RF1ConversionException {
+					loadTransitiveClosure();
+					return null;
+				}
+			}, calculateClosure, lastDatabaseStage);
+		}
+	}
+
+	/**
+	 * Works out which edition is being converted, and the subset ids to give it
+	 */
+	private void determineEditionAndIdentifiers() throws RF1ConversionException {
+		extReleaseDate = extRf2Archive == null ? intReleaseDate : extReleaseDate;
+		determineEdition(intLoadingArea, Edition.INTERNATIONAL, intReleaseDate);
+		if (extRf2Archive != null) {
+			determineEdition(extLoadingArea, null, extReleaseDate);
+			isExtension = true;
+		}
+		String releaseDate = isExtension ? extReleaseDate : intReleaseDate;
+		if (applyDelta) {
+			checkConversionState(releaseDate);
+		}
+		EditionConfig config = knownEditionMap.get(edition);
+		if (applyDelta) {
+			//The retained database already holds everything we would otherwise
+			//have recovered from a previous RF1 archive, see configureConversion
+		} else if (previousRF1Location != null) {
+			//This will allow us to set up SubsetIds (using available_sctids_partition_03)
+			loadPreviousRF1(config, intLoadingArea, releaseDate);
+			
+			//Initialise a set of available SCTIDS
+			InputStream availableRelIds = ConversionManager.class.getResourceAsStream(AVAILABLE_RELATIONSHIP_IDS);
+			RF1Constants.intialiseAvailableRelationships(availableRelIds);
+		} else {
+			useDeterministicSubsetIds(calculateReleaseIndex(releaseDate), config);
+		}
+
+		long targetOperationCount = getTargetOperationCount();
+		if (onlyHistory) {
+			targetOperationCount = 210;
+		} else if (applyDelta) {
+			targetOperationCount = 310;
+		} else if (isExtension) {
+			targetOperationCount = includeHistory? targetOperationCount : 388;
+		} else {
+			targetOperationCount = includeHistory? targetOperationCount : 372;
+		}
+		setTargetOperationCount(targetOperationCount);
+
+		completeOutputMap(config);
+	}
+
+	/**
+	 * Sets the variables used by the conversion SQL
+	 */
+	private void configureConversion() throws RF1ConversionException {
+		String releaseDate = isExtension ? extReleaseDate : intReleaseDate;
+		EditionConfig config = knownEditionMap.get(edition);
+		int newSubsetVersion;
+		if (applyDelta) {
+			loadRetainedIdentifiers(config);
+			newSubsetVersion = previousSubsetVersion + 1;
+		} else if (previousRF1Location != null) {
+			newSubsetVersion = previousSubsetVersion + 1;
+		} else {
+			newSubsetVersion = previousSubsetVersion + calculateReleaseIndex(releaseDate);
+		}
+		db.runStatement("SET @useRelationshipIds = " + useRelationshipIds);
+		setSubsetIds(newSubsetVersion);
+		db.runStatement("SET @langCode = '" + config.langCode + "'");
+		db.runStatement("SET @langRefSet = '" + config.dialects[0].langRefSetId + "'");
+	}
+
 	private void determineEdition(File loadingArea, Edition enforceEdition, String releaseDate) throws RF1ConversionException {
 		//Loop through known editions and see if EDITION_DETERMINER file is present
 		for (Map.Entry<Edition, EditionConfig> thisEdition : knownEditionMap.entrySet())
 			for (File thisFile : loadingArea.listFiles()) {
 				EditionConfig parts = thisEdition.getValue();
-				String target = EDITION_DETERMINER.replace(EXT, parts.editionName)
+				String target = EDITION_DETERMINER.replace(FULL, releaseType)
+									.replace(EXT, parts.editionName)
 									.replace(LNG, parts.langCode)
 									.replace(DATE, releaseDate);
 				if (thisFile.getName().equals(target)) {
@@ -439,36 +661,156 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 		} catch (IOException e) {
 			throw new RF1ConversionException("Unable to create temporary directory for archive extration");
 		}
-		// We only need to work with the full files
+		// We only need to work with the full files (or delta files if we're applying those to a retained database)
 		// ...mostly, we also need the Snapshot Relationship file in order to work out the Qualifying Relationships
 		// Also we'll take the documentation pdf
-		unzipFlat(archive, tempDir, new String[]{"Full","sct2_Relationship_Snapshot",RELEASE_NOTES});
+		rf2Digests.put(archive, unzipFlat(archive, tempDir, new String[]{releaseType,"sct2_Relationship_Snapshot",RELEASE_NOTES}));
 		
 		return tempDir;
 	}
 
 	private void createDatabaseSchema() throws RF1ConversionException {
+		if (stateLocation != null) {
+			//Any previously retained state is superseded by a full conversion
+			print("Clearing retained database for full conversion");
+			db.runStatement("DROP ALL OBJECTS");
+		}
 		print("Creating database schema");
 		db.executeResource("create_rf2_schema.sql");
 	}
+	
+	private void loadConversionState() throws RF1ConversionException {
+		String[] state = db.selectFirstRow("SELECT releaseDate, edition, useRelationshipIds FROM rf2_conversion_state");
+		if (state == null) {
+			throw new RF1ConversionException("Retained database in " + stateLocation + " has no record of a completed conversion.");
+		}
+		previousReleaseDate = state[0];
+		previousEdition = Edition.valueOf(state[1]);
+		useRelationshipIds = Boolean.parseBoolean(state[2]);
+		print("Applying Delta to conversion of " + previousEdition + " " + previousReleaseDate);
+	}
+	
+	private void checkConversionState(String releaseDate) throws RF1ConversionException {
+		if (edition != previousEdition) {
+			throw new RF1ConversionException("Delta is for " + edition + " but retained conversion was of " + previousEdition);
+		}
+		if (releaseDate.compareTo(previousReleaseDate) <= 0) {
+			throw new RF1ConversionException("Delta release " + releaseDate + " is not later than retained conversion " + previousReleaseDate);
+		}
+		checkNoReleaseSkipped(isExtension ? extRf2Archive : intRf2Archive, releaseDate);
+	}
+
+	/**
+	 * A Delta only holds the changes since the release before it, so a component in the archive's
+	 * Full concept file dated between the retained conversion and this release means that a
+	 * release has been skipped, and its changes would never reach the snapshot.
+	 */
+	private void checkNoReleaseSkipped(File archive, String releaseDate) throws RF1ConversionException {
+		try (ZipFile zip = new ZipFile(archive)) {
+			ZipEntry conceptFull = null;
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (conceptFull == null && entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				String fileName = new File(entry.getName()).getName();
+				if (fileName.startsWith("sct2_Concept_") && fileName.contains(FULL)) {
+					conceptFull = entry;
+				}
+			}
+			if (conceptFull == null) {
+				print("\n*** WARNING: " + archive.getName() + " has no Full concept file, so it cannot be checked that the retained conversion of "
+						+ previousReleaseDate + " is the release immediately before " + releaseDate
+						+ ".  The changes of any release skipped will be missing from the output. ***\n");
+				return;
+			}
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(zip.getInputStream(conceptFull), StandardCharsets.UTF_8))) {
+				String line = br.readLine();  //Header
+				while ((line = br.readLine()) != null) {
+					int start = line.indexOf('\t') + 1;
+					int end = line.indexOf('\t', start);
+					if (start == 0 || end < 0) {
+						continue;
+					}
+					String effectiveTime = line.substring(start, end);
+					if (effectiveTime.compareTo(previousReleaseDate) > 0 && effectiveTime.compareTo(releaseDate) < 0) {
+						throw new RF1ConversionException("Release " + effectiveTime + " lies between the retained conversion " + previousReleaseDate
+								+ " and the Delta release " + releaseDate + ".  Apply the Delta of each release in turn, or run a full conversion.");
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new RF1ConversionException("Unable to check " + archive + " for skipped releases", e);
+		}
+	}
+	
+	private void loadRetainedIdentifiers(EditionConfig config) throws RF1ConversionException {
+		String[] subsetState = db.selectFirstRow("SELECT MAX(SubsetId), MAX(SubsetVersion) FROM rf21_SUBSETLIST");
+		if (subsetState == null || subsetState[0] == null) {
+			throw new RF1ConversionException("Retained database does not contain the previous subset list");
+		}
+		previousSubsetVersion = Integer.parseInt(subsetState[1]);
+		try {
+			allocateSubsetIds(Long.parseLong(subsetState[0]), config);
+		} catch (IOException e) {
+			throw new RF1ConversionException("Unable to determine new subset Ids",e);
+		}
+		
+		if (useRelationshipIds) {
+			print ("\nLoading retained relationship ids");
+			db.loadPreviousRelationships("rf21_rel", false);
+			db.loadPreviousRelationships("rf2_qualifying_rel", false);
+			db.loadPreviousRelationships("rf21_stated_rel", true);
+			InputStream availableRelIds = ConversionManager.class.getResourceAsStream(AVAILABLE_RELATIONSHIP_IDS);
+			RF1Constants.intialiseAvailableRelationships(availableRelIds);
+		}
+	}
+	
+	/**
+	 * Brings the retained RF2 snapshot up to date with the Delta just loaded.  Only the snapshot
+	 * and the history are incremental; the rf21 tables are rebuilt from the whole snapshot and
+	 * every RF1 file is exported in full, as in any other conversion.
+	 */
+	private void applyRF2Delta(String releaseDate) throws RF1ConversionException {
+		db.runStatement("SET @RDATE = " + releaseDate);
+		db.runStatement("SET @PREVIOUS_RDATE = " + previousReleaseDate);
+		//History before this point is already held in the retained database
+		historyFrom = Long.parseLong(previousReleaseDate) + 1;
+		db.executeResource("apply_rf2_delta.sql");
+		db.executeResource("dedupe_rf2_crefset.sql");
+	}
+	
+	private void saveConversionState(String releaseDate, String relationshipFilePath) throws RF1ConversionException {
+		db.runStatement("DELETE FROM rf2_conversion_state");
+		db.runStatement("INSERT INTO rf2_conversion_state VALUES (" + releaseDate + ", '" + edition.name() + "', " + useRelationshipIds + ")");
+		db.runStatement("DELETE FROM rf2_qualifying_rel");
+		if (useRelationshipIds) {
+			db.runStatement("INSERT INTO rf2_qualifying_rel SELECT RELATIONSHIPID, CONCEPTID1, RELATIONSHIPTYPE, CONCEPTID2, RELATIONSHIPGROUP "
+					+ "FROM CSVREAD('" + relationshipFilePath + "', null, 'UTF-8', chr(9), chr(21)) WHERE CHARACTERISTICTYPE = '1'");
+		}
+	}
 
 	private void calculateRF2Snapshot(String releaseDate) throws RF1ConversionException {
 		String setDateSql = "SET @RDATE = " + releaseDate;
 		db.runStatement(setDateSql);
 		db.executeResource("create_rf2_snapshot.sql");
+		db.executeResource("dedupe_rf2_crefset.sql");
 		db.executeResource("populate_subset_2_refset.sql");
 	}
 
 	private void convert() throws RF1ConversionException {
+		db.executeResource("create_rf2_exclusions.sql");
 		db.executeResource("create_rf1_schema.sql");
 		if (includeHistory) {
-			db.executeResource("populate_rf1_historical.sql");
+			if (previousHistoryFile != null) {
+				loadPreviousHistory();
+			}
+			generateHistory();
 		} else {
 			print("\nSkipping generation of RF1 History.  Set -h parameter if this is required.");
 		}
 		
 		if (!onlyHistory) {
 			db.executeResource("populate_rf1.sql");
+			db.executeResource("create_rf2_desc_acceptability.sql");
 			if (isExtension) {
 				db.executeResource("populate_rf1_ext_descriptions.sql");
 			} else {
@@ -476,22 +818,82 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 			}
 			db.executeResource("populate_rf1_associations.sql");
 			
-			if (useRelationshipIds) {
-				db.executeResource("populate_rf1_rel_ids.sql");
+		}
+	}
+
+	/**
+	 * Entries from the history window are loaded so that new entries can be compared against
+	 * them.  Only entries after the previous release then need to be calculated.
+	 */
+	private void loadPreviousHistory() throws RF1ConversionException {
+		print("\nLoading previous RF1 history up to " + previousRF1ReleaseDate);
+		db.runStatement("INSERT INTO rf21_COMPONENTHISTORY (COMPONENTID, RELEASEVERSION, CHANGETYPE, STATUS, REASON) "
+				+ "SELECT COMPONENTID, RELEASEVERSION, CHANGETYPE, STATUS, REASON "
+				+ "FROM CSVREAD('" + previousHistoryFile.getPath() + "', null, 'UTF-8', chr(9), chr(21)) "
+				+ "WHERE RELEASEVERSION >= " + HISTORY_START);
+		historyFrom = getHistoryFrom();
+	}
+
+	private void generateHistory() throws RF1ConversionException {
+		print("\nGenerating RF1 Component History...");
+		long historyStart = historyFrom == null ? Long.parseLong(HISTORY_START) : historyFrom;
+		try (Connection conn = db.getConnection()) {
+			new HistoryGenerator(conn, historyStart).generate();
+		} catch (SQLException e) {
+			throw new RF1ConversionException("Failed to close database connection", e);
+		}
+	}
+	
+	private int parseCompressionLevel(String level) throws RF1ConversionException {
+		if (level.equalsIgnoreCase("stored")) {
+			return ArchiveBuilder.STORED;
+		}
+		try {
+			int compressionLevel = Integer.parseInt(level);
+			if (compressionLevel >= Deflater.NO_COMPRESSION && compressionLevel <= Deflater.BEST_COMPRESSION) {
+				return compressionLevel;
 			}
+		} catch (NumberFormatException e) {
+			// Reported below along with levels out of range
 		}
+		throw new RF1ConversionException(level + " is not a valid compression level, expected 0-9 or stored.");
+	}
+
+	private ConceptGraph.Storage parseGraphStorage(String storage) throws RF1ConversionException {
+		for (ConceptGraph.Storage thisStorage : ConceptGraph.Storage.values()) {
+			if (thisStorage.name().equalsIgnoreCase(storage)) {
+				return thisStorage;
+			}
+		}
+		throw new RF1ConversionException(storage + " is not a valid graph storage, expected heap, direct or mapped.");
+	}
+
+	private long getHistoryFrom() {
+		return Long.parseLong(previousRF1ReleaseDate) + 1;
 	}
 
 	private void init(String[] args, File dbLocation) throws RF1ConversionException {
 		if (args.length < 1) {
-			print("Usage: java ConversionManager [-v] [-h] [-b] [-i] [-a <additional files location>] [-p <previous RF1 archive] [-u <unzip location>] <rf2 archive location> [<rf2 extension archive>]");
+			print("Usage: java ConversionManager [-v] [-h] [-b] [-i] [-d] [-a <additional files location>] [-p <previous RF1 archive] [-u <unzip location>] [-k <retained state location>] [-g <graph cache location>] [-o <graph storage>] [-z] [-l <compression level>] [-t] <rf2 archive location> [<rf2 extension archive>]");
 			print("  b - beta indicator, causes an x to be prepended to output filenames");
 			print("  p - previous RF1 archive required for SubsetId and Relationship Id generation");
+			print("  k - retain the conversion database in this location so that a later release can be applied to it with -d");
+			print("  d - apply the Delta files of the given release to the RF2 snapshot retained with -k, the RF1 files are still generated in full");
+			print("  g - cache the inferred concept graph in this location, to be reused by later runs against the same relationship snapshot");
+			print("  o - hold the concept graph off the heap, either 'direct' in a direct buffer or 'mapped' in a memory mapped temporary file");
+			print("  z - write the RF1 archive directly, without first exporting the files to a temporary directory");
+			print("  l - compression level of the RF1 archive, 0-9 or 'stored' for no compression");
+			print("  t - fill rf2_transitiveclosure from the inferred hierarchy, for queries against the database with -i or -k");
+			print("   or: java ConversionManager " + COMPARE_MODE + " [-v] [-m <sort memory MB>] <previous RF1 archive> <new RF1 archive>");
 			exit();
 		}
 		boolean isUnzipLocation = false;
 		boolean isAdditionalFilesLocation = false;
 		boolean isPreviousRF1Location = false;
+		boolean isStateLocation = false;
+		boolean isGraphCacheLocation = false;
+		boolean isGraphStorage = false;
+		boolean isCompressionLevel = false;
 
 		for (String thisArg : args) {
 			if (thisArg.equals("-v")) {
@@ -509,6 +911,21 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 				isAdditionalFilesLocation = true;
 			} else if (thisArg.equals("-p")) {
 				isPreviousRF1Location = true;
+			} else if (thisArg.equals("-k")) {
+				isStateLocation = true;
+			} else if (thisArg.equals("-g")) {
+				isGraphCacheLocation = true;
+			} else if (thisArg.equals("-o")) {
+				isGraphStorage = true;
+			} else if (thisArg.equals("-d")) {
+				applyDelta = true;
+				releaseType = DELTA;
+			} else if (thisArg.equals("-z")) {
+				writeArchiveDirectly = true;
+			} else if (thisArg.equals("-l")) {
+				isCompressionLevel = true;
+			} else if (thisArg.equals("-t")) {
+				includeTransitiveClosure = true;
 			} else if (thisArg.equals("-q")) {
 				//The rule file for generating these relationships is currently incomplete and incorrect.
 				includeAllQualifyingRelationships = true;
@@ -530,6 +947,24 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 					throw new RF1ConversionException(thisArg + " does not appear to be a valid RF1 archive.");
 				}
 				isPreviousRF1Location = false;
+			} else if (isStateLocation) {
+				stateLocation = new File(thisArg);
+				if (!stateLocation.isDirectory()) {
+					throw new RF1ConversionException(thisArg + " is an invalid location to retain the conversion database.");
+				}
+				isStateLocation = false;
+			} else if (isGraphCacheLocation) {
+				graphCacheLocation = new File(thisArg);
+				if (!graphCacheLocation.isDirectory()) {
+					throw new RF1ConversionException(thisArg + " is an invalid location to cache the concept graph.");
+				}
+				isGraphCacheLocation = false;
+			} else if (isGraphStorage) {
+				graphStorage = parseGraphStorage(thisArg);
+				isGraphStorage = false;
+			} else if (isCompressionLevel) {
+				compressionLevel = parseCompressionLevel(thisArg);
+				isCompressionLevel = false;
 			} else if (intRf2Archive == null){
 				File possibleArchive = new File(thisArg);
 				if (possibleArchive.exists() && !possibleArchive.isDirectory() && possibleArchive.canRead()) {
@@ -548,8 +983,22 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 			exit();
 		}
 
+		if (stateLocation != null && onlyHistory) {
+			throw new RF1ConversionException("Conversion state can only be retained for a complete conversion, not with -H");
+		}
+		
+		if (applyDelta) {
+			if (stateLocation == null || !DBManager.exists(stateLocation)) {
+				throw new RF1ConversionException("Applying a Delta (-d) requires the database retained by a previous run (-k).");
+			}
+			if (previousRF1Location != null) {
+				print("Ignoring previous RF1 archive, ids will be taken from the retained database.");
+				previousRF1Location = null;
+			}
+		}
+
 		db = new DBManager();
-		db.init(dbLocation);
+		db.init(stateLocation == null ? dbLocation : stateLocation);
 	}
 
 	private void loadRF2Data(File loadingArea, Edition edition, String releaseDate, Map<String, String> fileToTable) throws RF1ConversionException {
@@ -557,7 +1006,8 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 		db.startParallelProcessing(3);
 		for (Map.Entry<String, String> entry : fileToTable.entrySet()) {
 			// Replace DATE in the filename with the actual release date
-			String fileName = entry.getKey().replace(DATE, releaseDate)
+			String fileName = entry.getKey().replace(FULL, releaseType)
+								.replace(DATE, releaseDate)
 								.replace(EXT, knownEditionMap.get(edition).editionName)
 								.replace(LNG, knownEditionMap.get(edition).langCode);
 			File file = new File(loadingArea + File.separator + fileName);
@@ -575,39 +1025,175 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 		db.finishParallelProcessing();
 	}
 
-	private void exportRF1Data(Map<String, String> exportMap, String packageReleaseDate, String fileReleaseDate, EditionConfig editionConfig, File exportArea) throws RF1ConversionException {
-		// We can do the export in parallel. Only 3 threads because heavily I/O
-		db.startParallelProcessing(3);
+	private void exportRF1Data(List<Callable<Void>> exporters) throws RF1ConversionException {
+		// Each file is streamed from its own connection. Only 3 threads because heavily I/O
+		ExecutorService executor = Executors.newFixedThreadPool(EXPORT_THREADS);
+		try {
+			List<Future<Void>> exports = new ArrayList<Future<Void>>();
+			for (Callable<Void> exporter : exporters) {
+				exports.add(executor.submit(exporter));
+			}
+			for (Future<Void> export : exports) {
+				export.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RF1ConversionException) {
+				throw (RF1ConversionException) e.getCause();
+			}
+			throw new RF1ConversionException("Failed to export RF1 data", e.getCause());
+		} catch (InterruptedException e) {
+			throw new RF1ConversionException("Interrupted while exporting RF1 data", e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	private List<Callable<Void>> getFileExporters(Map<String, String> exportMap, String packageReleaseDate, String fileReleaseDate, EditionConfig editionConfig) {
+		List<Callable<Void>> exporters = new ArrayList<Callable<Void>>();
 		for (Map.Entry<String, String> entry : exportMap.entrySet()) {
-			// Replace DATE in the filename with the actual release date
-			String fileName = entry.getKey().replaceFirst(DATE, packageReleaseDate)
-					.replace(DATE, fileReleaseDate)
-					.replace(OUT, editionConfig.outputName)
-					.replace(LNG, editionConfig.langCode);
-			
-			fileName = modifyFilenameIfBeta(fileName);
-			String filePath = exportArea + File.separator + fileName;
-			
-			//If we're doing the history file, then we need to prepend the static
-			//resource file
+			String fileName = getReleaseFileName(entry.getKey(), packageReleaseDate, fileReleaseDate, editionConfig);
+			boolean isRelationshipFile = entry.getKey().equals(RELATIONSHIP_FILENAME);
+			exporters.add(new FileExporter(fileName, entry.getValue(), isRelationshipFile));
+		}
+		return exporters;
+	}
+	
+	/**
+	 * Each dialect has its own subset and subset member files, which take the rows for that 
+	 * dialect plus those for the edition's language as a whole.  The subset tables are read
+	 * just once for all dialects, and each row is routed to the files it belongs in.
+	 */
+	private List<Callable<Void>> getSubsetExporters(String releaseDate, EditionConfig editionConfig) {
+		List<String> memberFiles = new ArrayList<String>();
+		List<String> subsetFiles = new ArrayList<String>();
+		List<Set<String>> languageCodes = new ArrayList<Set<String>>();
+		for (Dialect dialect : editionConfig.dialects) {
+			String fileRoot = "SnomedCT_OUT_INT_DATE/Subsets/Language-" + dialect.langCode + "/";
+			memberFiles.add(getReleaseFileName(fileRoot + "der1_SubsetMembers_" + dialect.langCode + "_INT_DATE.txt", releaseDate, releaseDate, editionConfig));
+			subsetFiles.add(getReleaseFileName(fileRoot + "der1_Subsets_" + dialect.langCode + "_INT_DATE.txt", releaseDate, releaseDate, editionConfig));
+			languageCodes.add(new HashSet<String>(Arrays.asList(dialect.langCode, editionConfig.langCode)));
+		}
+		List<Callable<Void>> exporters = new ArrayList<Callable<Void>>();
+		exporters.add(new RoutedExporter(memberFiles, languageCodes,
+				"select sl.languageCode, s.SubsetId, s.MemberID, s.MemberStatus, s.LinkedID from rf21_SUBSETS s, rf21_SUBSETLIST sl where s.SubsetOriginalId = sl.subsetOriginalId"));
+		exporters.add(new RoutedExporter(subsetFiles, languageCodes,
+				"select sl.languageCode, sl.* from rf21_SUBSETLIST sl"));
+		return exporters;
+	}
+	
+	/**
+	 * @return the path of the file within the release, with DATE in the filename replaced with the actual release date
+	 */
+	private String getReleaseFileName(String template, String packageReleaseDate, String fileReleaseDate, EditionConfig editionConfig) {
+		String fileName = template.replace(File.separator, "/")
+				.replaceFirst(DATE, packageReleaseDate)
+				.replace(DATE, fileReleaseDate)
+				.replace(OUT, editionConfig.outputName)
+				.replace(LNG, editionConfig.langCode);
+		return modifyFilenameIfBeta(fileName);
+	}
+	
+	private class FileExporter implements Callable<Void>, ReleaseOutput.EntryWriter {
+		private final String fileName;
+		private final String selectionSql;
+		private final boolean isRelationshipFile;
+
+		FileExporter(String fileName, String selectionSql, boolean isRelationshipFile) {
+			this.fileName = fileName;
+			this.selectionSql = selectionSql;
+			this.isRelationshipFile = isRelationshipFile;
+		}
+
+		@Override
+		public Void call() throws RF1ConversionException {
+			releaseOutput.writeEntry(fileName, this);
+			return null;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws RF1ConversionException {
+			//If we're doing the history file, then we need to append either the previous
+			//release's history, or the static resource file
 			InputStream isInclude = null;
 			if (includeHistory && fileName.contains("ComponentHistory")) {
-				isInclude = ConversionManager.class.getResourceAsStream(ANCIENT_HISTORY);
+				if (previousHistoryFile != null) {
+					isInclude = openWithoutHeader(previousHistoryFile);
+				} else {
+					isInclude = ConversionManager.class.getResourceAsStream(ANCIENT_HISTORY);
+				}
 				if (isInclude == null) {
 					throw new RF1ConversionException("Unable to obtain history file: " + ANCIENT_HISTORY);
 				}
 			}
+			db.export(selectionSql, isInclude, out);
 			
-			db.export(filePath, entry.getValue(), isInclude);
+			//The generated qualifying relationships follow on from those held in the database
+			if (isRelationshipFile && (includeAllQualifyingRelationships || includeLateralityIndicators)) {
+				PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+				if (includeAllQualifyingRelationships) {
+					print ("\nGenerating qualifying relationships");
+					generateQualifyingRelationships(qualifyingRules, pw);
+				}
+				if (includeLateralityIndicators) {
+					print ("\nGenerating laterality qualifying relationships");
+					generateLateralityRelationships(pw);
+				}
+				pw.flush();
+				if (pw.checkError()) {
+					throw new RF1ConversionException("Failure while outputting Qualifying Relationships to " + fileName);
+				}
+			}
+		}
+	}
+
+	private class RoutedExporter implements Callable<Void> {
+		private final List<String> fileNames;
+		private final List<Set<String>> routingKeys;
+		private final String selectionSql;
+
+		RoutedExporter(List<String> fileNames, List<Set<String>> routingKeys, String selectionSql) {
+			this.fileNames = fileNames;
+			this.routingKeys = routingKeys;
+			this.selectionSql = selectionSql;
+		}
+
+		@Override
+		public Void call() throws RF1ConversionException {
+			openEntries(new ArrayList<OutputStream>());
+			return null;
+		}
+
+		//Each file has to be open at once, so open the next within the writer of the last
+		private void openEntries(final List<OutputStream> opened) throws RF1ConversionException {
+			if (opened.size() == fileNames.size()) {
+				db.exportRouted(selectionSql, routingKeys, opened);
+				return;
+			}
+			releaseOutput.writeEntry(fileNames.get(opened.size()), new ReleaseOutput.EntryWriter() {
+				@Override
+				public void writeTo(OutputStream out) throws RF1ConversionException {
+					opened.add(out);
+					openEntries(opened);
+				}
+			});
+		}
+	}
+
+	private InputStream openWithoutHeader(File file) throws RF1ConversionException {
+		try {
+			InputStream is = new BufferedInputStream(new FileInputStream(file));
+			int b;
+			while ((b = is.read()) != -1 && b != '\n');
+			return is;
+		} catch (IOException e) {
+			throw new RF1ConversionException("Unable to read " + file, e);
 		}
-		db.finishParallelProcessing();
 	}
-	
 
 	private String modifyFilenameIfBeta(String fileName) {
 		if (isBeta) {
 			//Beta prefix before the file shortname, but also for the leading directory
-			int lastSlash = fileName.lastIndexOf(File.separator) + 1;
+			int lastSlash = fileName.lastIndexOf("/") + 1;
 			fileName = BETA_PREFIX + fileName.substring(0,lastSlash) + BETA_PREFIX + fileName.substring(lastSlash);
 		}
 		return fileName;
@@ -616,20 +1202,64 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 	private void loadRelationshipHierarchy(File intLoadingArea) throws RF1ConversionException {
 		String fileName = intLoadingArea.getAbsolutePath() + File.separator + "sct2_Relationship_Snapshot_INT_DATE.txt";
 		fileName = fileName.replace(DATE, intReleaseDate);
-		GraphLoader gl = new GraphLoader (fileName);
-		gl.loadRelationships();
+		GraphLoader gl = new GraphLoader (fileName, graphCacheLocation, graphStorage);
+		conceptGraph = gl.loadRelationships();
+		graphLoadSummary = gl.getLoadSummary();
 	}
 	
 
-	private Set<QualifyingRelationshipAttribute> loadQualifyingRelationshipRules() {
-		GsonBuilder gsonBuilder = new GsonBuilder();
-		gsonBuilder.registerTypeAdapter(Concept.class, new ConceptDeserializer());
-		Gson gson = gsonBuilder.create();
+	private void calculateTransitiveClosure() throws RF1ConversionException {
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		try {
+			transitiveClosureFile = File.createTempFile("rf2_transitiveclosure_", ".txt");
+			transitiveClosureFile.deleteOnExit();
+		} catch (IOException e) {
+			throw new RF1ConversionException("Unable to create a file for the transitive closure", e);
+		}
+		TransitiveClosure closure = new TransitiveClosure(conceptGraph, Runtime.getRuntime().availableProcessors());
+		long rows = closure.write(transitiveClosureFile, intReleaseDate);
+		print("\nCalculated transitive closure of " + rows + " subtype relationships in " + stopwatch);
+	}
+
+	private void loadTransitiveClosure() throws RF1ConversionException {
+		try {
+			TransitiveClosure.load(db, transitiveClosureFile);
+		} finally {
+			transitiveClosureFile.delete();
+		}
+	}
+
+	/**
+	 * Compiles the qualifying relationship rules to a table of ids.  With a graph cache, the
+	 * compiled table is kept there too, named for the digest of the rules it was compiled from,
+	 * and is read back in place of the JSON on later runs.
+	 */
+	private QualifyingRuleTable loadQualifyingRelationshipRules() throws RF1ConversionException {
+		File tableFile = null;
+		if (graphCacheLocation != null) {
+			try (InputStream rulesStream = ConversionManager.class.getResourceAsStream(QUALIFYING_RULES)) {
+				tableFile = new File(graphCacheLocation, "qualifying_rules_" + ConceptGraphCache.digest(rulesStream) + ".bin");
+			} catch (IOException e) {
+				throw new RF1ConversionException("Unable to read qualifying relationship rules " + QUALIFYING_RULES, e);
+			}
+			if (tableFile.isFile()) {
+				QualifyingRuleTable table = QualifyingRuleTable.read(tableFile);
+				debug("Read " + table.getAttributeCount() + " qualifying attributes from " + tableFile);
+				return table;
+			}
+		}
+		QualifyingRuleTable table;
 		InputStream jsonStream = ConversionManager.class.getResourceAsStream(QUALIFYING_RULES);
-		BufferedReader jsonReader = new BufferedReader(new InputStreamReader(jsonStream));
-		Type listType = new TypeToken<Set<QualifyingRelationshipAttribute>>() {}.getType();
-		Set<QualifyingRelationshipAttribute> attributes = gson.fromJson(jsonReader, listType);
-		return attributes;
+		try (BufferedReader jsonReader = new BufferedReader(new InputStreamReader(jsonStream, StandardCharsets.UTF_8))) {
+			table = QualifyingRuleTable.compile(jsonReader);
+		} catch (IOException e) {
+			throw new RF1ConversionException("Unable to read qualifying relationship rules " + QUALIFYING_RULES, e);
+		}
+		if (tableFile != null) {
+			table.write(tableFile);
+		}
+		debug("Compiled " + table.getAttributeCount() + " qualifying attributes from " + QUALIFYING_RULES);
+		return table;
 	}
 	
 	/**
@@ -649,131 +1279,99 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 			throw new RF1ConversionException ("Unable to determine laterality reference file from release date " + releaseDate + " expected January or July for International Edition");
 		}
 		String lateralityResourceName = "/LateralityReference" + monthName + year + ".txt"; 
-		InputStream lateralityStream = ConversionManager.class.getResourceAsStream(lateralityResourceName);
-		
-		try (BufferedReader br = new BufferedReader(new InputStreamReader(lateralityStream))) {
-			String line;
-			boolean firstLine = true;
-			while ((line = br.readLine()) != null) {
-				if (!firstLine) {
-					LateralityIndicator.registerIndicator(line);
-				} else {
-					firstLine = false;
-				}
-			}
-		} catch (IOException ioe) {
-			throw new RF1ConversionException ("Unable to import laterality reference file " + lateralityResourceName, ioe);
-		}
+		lateralityIndex = LateralityIndicator.load(lateralityResourceName);
+		debug("Loaded " + lateralityIndex.size() + " laterality indicators from " + lateralityResourceName);
 	}
 	
 
-	private void generateQualifyingRelationships(
-			Set<QualifyingRelationshipAttribute> ruleAttributes, String filePath) throws RF1ConversionException {
-		//For each attribute, work through each rule creating rules for self and all children of starting points,
+	private void generateQualifyingRelationships(QualifyingRuleTable rules, PrintWriter out) {
+		//For each attribute, work through each rule creating rules for all children of starting points,
 		//except for exceptions
-		
-		try(FileWriter fw = new FileWriter(filePath, true);
-				BufferedWriter bw = new BufferedWriter(fw);
-				PrintWriter out = new PrintWriter(bw))
-			{
-				for (QualifyingRelationshipAttribute thisAttribute : ruleAttributes) {
-					StringBuffer commonRF1 = new StringBuffer().append(FIELD_DELIMITER)
-											.append(thisAttribute.getType().getSctId()).append(FIELD_DELIMITER)
-											.append(thisAttribute.getDestination().getSctId()).append(FIELD_DELIMITER)
-											.append("1\t")//Qualifying Rel type
-											.append(thisAttribute.getRefinability()).append("\t0"); //Refineable, Group 0
-					for (QualifyingRelationshipRule thisRule : thisAttribute.getRules()) {
-						Set<Concept> potentialApplications = thisRule.getStartPoint().getAllDescendents(Concept.DEPTH_NOT_SET);
-						Collection<Concept> ruleAppliedTo = CollectionUtils.subtract(potentialApplications, thisRule.getExceptions());
-						for (Concept thisException : thisRule.getExceptions()) {
-							Set<Concept> exceptionDescendents = thisException.getAllDescendents(Concept.DEPTH_NOT_SET);
-							ruleAppliedTo = CollectionUtils.subtract(ruleAppliedTo, exceptionDescendents);
-						}
-						//Now the remaining concepts that the rules applies to can be written out to file
-						for (Concept thisConcept : ruleAppliedTo) {
-							//Concept may already have this attribute as a defining relationship, skip if so.
-							if (!thisConcept.hasAttribute(thisAttribute)) {
-								String rf1Line = FIELD_DELIMITER + thisConcept.getSctId() + commonRF1;
-								out.println(rf1Line);
-							}
-						}
+		for (int attribute = 0; attribute < rules.getAttributeCount(); attribute++) {
+			long typeId = rules.getTypeId(attribute);
+			long destinationId = rules.getDestinationId(attribute);
+			StringBuffer commonRF1 = new StringBuffer().append(FIELD_DELIMITER)
+									.append(typeId).append(FIELD_DELIMITER)
+									.append(destinationId).append(FIELD_DELIMITER)
+									.append("1\t")//Qualifying Rel type
+									.append(rules.getRefinability(attribute)).append("\t0"); //Refineable, Group 0
+			for (int rule = rules.getFirstRule(attribute); rule < rules.getRuleEnd(attribute); rule++) {
+				long[] potentialApplications = conceptGraph.getAllDescendents(rules.getStartPointId(rule));
+				long[] excluded = getExcluded(rules.getExceptionIds(rule));
+				//Now the remaining concepts that the rules applies to can be written out to file
+				for (long conceptId : potentialApplications) {
+					//Concept may already have this attribute as a defining relationship, skip if so.
+					if (Arrays.binarySearch(excluded, conceptId) < 0 && !conceptGraph.hasAttribute(conceptId, typeId, destinationId)) {
+						String rf1Line = FIELD_DELIMITER + conceptId + commonRF1;
+						out.println(rf1Line);
 					}
 				}
-			} catch (IOException e) {
-				throw new RF1ConversionException ("Failure while outputting Qualifying Relationships: " + e.toString());
 			}
+		}
+	}
+
+	/**
+	 * @return the exceptions and all their descendants, sorted so they can be searched
+	 */
+	private long[] getExcluded(long[] exceptionIds) {
+		long[] excluded = Arrays.copyOf(exceptionIds, exceptionIds.length);
+		int count = excluded.length;
+		for (long exceptionId : exceptionIds) {
+			long[] descendents = conceptGraph.getAllDescendents(exceptionId);
+			if (count + descendents.length > excluded.length) {
+				excluded = Arrays.copyOf(excluded, Math.max(excluded.length * 2, count + descendents.length));
+			}
+			System.arraycopy(descendents, 0, excluded, count, descendents.length);
+			count += descendents.length;
+		}
+		excluded = Arrays.copyOf(excluded, count);
+		Arrays.sort(excluded);
+		return excluded;
 	}
 	
-	private void generateLateralityRelationships(String filePath) throws RF1ConversionException {
-		//Check every concept to see if has a laterality indicator, and doesn't already have that 
-		//attribute as a defining relationship
-		Set<Concept> allConcepts = Concept.getConcept(SNOMED_ROOT_CONCEPT).getAllDescendents(Concept.DEPTH_NOT_SET);
+	private void generateLateralityRelationships(PrintWriter out) throws RF1ConversionException {
+		//Only concepts with a laterality indicator are checked, to see that they are part of the
+		//hierarchy and don't already have that attribute as a defining relationship
+		long[] lateralConcepts = lateralityIndex.getConceptIds(LateralityIndicator.Lattomidsag.YES);
 		StringBuffer commonRF1 = new StringBuffer().append(FIELD_DELIMITER)
 				.append(LATERALITY_ATTRIB).append(FIELD_DELIMITER)
 				.append(SIDE_VALUE).append(FIELD_DELIMITER)
 				.append("1\t")//Qualifying Rel type
 				.append(RF1Constants.MUST_REFINE).append("\t0"); //Refineable, Group 0
 		
-		Concept lat = Concept.getConcept(Long.parseLong(LATERALITY_ATTRIB));
-		Concept side = Concept.getConcept(Long.parseLong(SIDE_VALUE));
-		QualifyingRelationshipAttribute LateralityAttribute = new QualifyingRelationshipAttribute (lat, side, RF1Constants.MUST_REFINE);
+		long lateralityId = Long.parseLong(LATERALITY_ATTRIB);
+		long sideId = Long.parseLong(SIDE_VALUE);
 		
-		try(FileWriter fw = new FileWriter(filePath, true);
-				BufferedWriter bw = new BufferedWriter(fw);
-				PrintWriter out = new PrintWriter(bw))
-			{
-				for (Concept thisConcept : allConcepts) {
-					if (LateralityIndicator.hasLateralityIndicator(thisConcept.getSctId(), LateralityIndicator.Lattomidsag.YES)) {
-						if (!thisConcept.hasAttribute(LateralityAttribute)) {
-							String relId = "";  //Default is to blank relationship ids
-							if (useRelationshipIds) {
-								relId = RF1Constants.lookupRelationshipId(thisConcept.getSctId().toString(),
-									LATERALITY_ATTRIB,
-									SIDE_VALUE,
-									UNGROUPED,
-									false);  //working with inferred relationship ids
-							}
-							String rf1Line = relId + FIELD_DELIMITER + thisConcept.getSctId() + commonRF1;
-							out.println(rf1Line);
+		for (long conceptId : lateralConcepts) {
+			if (conceptGraph.hasAncestor(conceptId, SNOMED_ROOT_CONCEPT)) {
+				if (!conceptGraph.hasAttribute(conceptId, lateralityId, sideId)) {
+					String relId = "";  //Default is to blank relationship ids
+					if (useRelationshipIds) {
+						try {
+							relId = RF1Constants.lookupRelationshipId(Long.toString(conceptId),
+								LATERALITY_ATTRIB,
+								SIDE_VALUE,
+								UNGROUPED,
+								false);  //working with inferred relationship ids
+						} catch (IOException e) {
+							throw new RF1ConversionException ("Failure while output Laterality Relationships: " + e.toString());
 						}
 					}
-					
+					String rf1Line = relId + FIELD_DELIMITER + conceptId + commonRF1;
+					out.println(rf1Line);
 				}
-			}catch (IOException e){
-				throw new RF1ConversionException ("Failure while output Laterality Relationships: " + e.toString());
 			}
-	}
-
-
-	private String getQualifyingRelationshipFilepath(String intReleaseDate,
-			String extReleaseDate, EditionConfig editionConfig, File exportArea) throws RF1ConversionException {
-		// Replace the top level Date with the Extension Date, and the 
-		// Relationship file with the extension release date
-		String fileName = RELATIONSHIP_FILENAME.replaceFirst(DATE, extReleaseDate)
-				.replace(DATE, intReleaseDate)
-				.replace(OUT, editionConfig.outputName)
-				.replace(LNG, editionConfig.langCode);
-		fileName = modifyFilenameIfBeta(fileName);
-		String filePath = exportArea + File.separator + fileName;
-		File outputFile = new File(filePath);
-		try{
-			if (!outputFile.exists()) {
-				outputFile.getParentFile().mkdirs();
-				outputFile.createNewFile();
-			}
-		} catch (IOException e) {
-			throw new RF1ConversionException("Unable to create file for Qualifying Relationships: " + e);
+			
 		}
-		return filePath;
 	}
 
-	private boolean includeAdditionalFiles(File outputDirectory, String releaseDate, EditionConfig editionConfig){
+	private boolean includeAdditionalFiles(String releaseDate, EditionConfig editionConfig){
 		Map<String, String> targetLocation = new HashMap<String, String>();
 		boolean documentationIncluded = false;
 		targetLocation.put(".pdf", DOCUMENTATION_DIR);
 		targetLocation.put("KeyIndex_", "Resources/Indexes/");
 		targetLocation.put("Canonical", "Resources/Canonical Table/");
-		String rootPath = getOutputRootPath(outputDirectory, releaseDate, editionConfig);
+		String rootPath = getOutputRoot(releaseDate, editionConfig) + "/";
 		File[] directoryListing = additionalFilesLocation.listFiles();
 		if (directoryListing != null) {
 			for (File child : directoryListing) {
@@ -786,16 +1384,13 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 						break;
 					}
 				}
-				//Ensure path exists for where file is being copied to
-				File copiedFile = new File (rootPath + childFilename);
-				copiedFile.getParentFile().mkdirs();
 				try {
-					FileUtils.copyFile(child, copiedFile);
-					print ("Copied additional file to " + copiedFile.getAbsolutePath());
-					if (copiedFile.getName().contains(RELEASE_NOTES)) {
+					releaseOutput.addFile(rootPath + childFilename, child);
+					print ("Copied additional file to " + rootPath + childFilename);
+					if (child.getName().contains(RELEASE_NOTES)) {
 						documentationIncluded = true;
 					}
-				} catch (IOException e) {
+				} catch (RF1ConversionException e) {
 					print ("Unable to copy additional file " + childFilename + " due to " + e.getMessage());
 				}
 			}
@@ -804,43 +1399,98 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 	}
 
 
-	private String getOutputRootPath(File outputDirectory, String releaseDate,
-			EditionConfig editionConfig) {
-		String rootPath = outputDirectory.getAbsolutePath() 
-			+ File.separator 
-			+ (isBeta?BETA_PREFIX:"")
-			+ outputFolderTemplate  
-			+ File.separator;
+	/**
+	 * @return the name of the top level directory of the release
+	 */
+	private String getOutputRoot(String releaseDate, EditionConfig editionConfig) {
+		String rootPath = (isBeta?BETA_PREFIX:"") + outputFolderTemplate;
 		rootPath = rootPath.replace(OUT, editionConfig.outputName)
 			.replace(DATE, releaseDate);
 		return rootPath;
 	}
 
-	private void loadPreviousRF1(EditionConfig config) throws RF1ConversionException {
+	/**
+	 * The previous relationship Ids aren't needed until populate_rf1_rel_ids.sql, so the inferred and
+	 * stated relationship files are parsed concurrently while the RF2 is extracted and loaded.
+	 */
+	private List<Stage> addPreviousRelationshipStages(StageScheduler scheduler) throws RF1ConversionException {
 		try {
-			ZipInputStream zis = new ZipInputStream(new FileInputStream(previousRF1Location));
-			ZipEntry ze = zis.getNextEntry();
+			previousRF1Archive = new ZipFile(previousRF1Location);
+		} catch (IOException e) {
+			throw new RF1ConversionException("Failed to open previous RF1 archive " + previousRF1Location.getName(), e);
+		}
+		List<Stage> stages = new ArrayList<Stage>();
+		Enumeration<? extends ZipEntry> entries = previousRF1Archive.entries();
+		while (entries.hasMoreElements()) {
+			ZipEntry ze = entries.nextElement();
+			String fileName = Paths.get(ze.getName()).getFileName().toString();
+			if (!ze.isDirectory() && fileName.contains("sct1_Relationships")) {
+				stages.add(scheduler.add("Parse previous RF1 inferred relationships", new PreviousRelationshipLoader(ze, false)));
+			} else if (!ze.isDirectory() && fileName.contains("res1_StatedRelationships")) {
+				stages.add(scheduler.add("Parse previous RF1 stated relationships", new PreviousRelationshipLoader(ze, true)));
+			}
+		}
+		return stages;
+	}
+
+	private class PreviousRelationshipLoader implements Callable<Void> {
+		private final ZipEntry entry;
+		private final boolean statedRelationships;
+
+		PreviousRelationshipLoader(ZipEntry entry, boolean statedRelationships) {
+			this.entry = entry;
+			this.statedRelationships = statedRelationships;
+		}
+
+		@Override
+		public Void call() throws RF1ConversionException {
+			print ("\nLoading previous RF1 " + (statedRelationships ? "stated" : "inferred") + " relationships");
+			try (InputStream is = previousRF1Archive.getInputStream(entry)) {
+				//We need to use static methods here so that H2 can access as functions.
+				RF1Constants.loadPreviousRelationships(is, statedRelationships);
+			} catch (IOException e) {
+				throw new RF1ConversionException("Failed to load previous relationships from " + entry.getName(), e);
+			}
+			return null;
+		}
+	}
+
+	private void closePreviousRF1Archive() {
+		if (previousRF1Archive != null) {
 			try {
-				while (ze != null) {
-					if (!ze.isDirectory()) {
-						Path p = Paths.get(ze.getName());
-						String fileName = p.getFileName().toString();
-						if (fileName.contains("der1_Subsets")) {
-							updateSubsetIds(zis, config);
-						} else if (fileName.contains("sct1_Relationships")) {
-							//We need to use static methods here so that H2 can access as functions.
-							print ("\nLoading previous RF1 inferred relationships");
-							RF1Constants.loadPreviousRelationships(zis, false);
-						}else if (fileName.contains("res1_StatedRelationships")) {
-							print ("\nLoading previous RF1 stated relationships");
-							RF1Constants.loadPreviousRelationships(zis, true);
+				previousRF1Archive.close();
+			} catch (IOException e) {
+				debug("Unable to close previous RF1 archive: " + e.getMessage());
+			}
+			previousRF1Archive = null;
+		}
+	}
+
+	private void loadPreviousRF1(EditionConfig config, File loadingArea, String releaseDate) throws RF1ConversionException {
+		try {
+			Enumeration<? extends ZipEntry> entries = previousRF1Archive.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry ze = entries.nextElement();
+				if (!ze.isDirectory()) {
+					Path p = Paths.get(ze.getName());
+					String fileName = p.getFileName().toString();
+					if (fileName.contains("der1_Subsets")) {
+						try (InputStream is = previousRF1Archive.getInputStream(ze)) {
+							updateSubsetIds(is, config);
+						}
+					} else if (fileName.contains("sct1_ComponentHistory")) {
+						//History up to the previous release can be reused rather than recalculated
+						previousRF1ReleaseDate = findDateInString(fileName, false);
+						if (previousRF1ReleaseDate.compareTo(releaseDate) >= 0) {
+							throw new RF1ConversionException("Previous RF1 history " + previousRF1ReleaseDate + " is not earlier than release " + releaseDate + " being converted");
+						}
+						previousHistoryFile = new File(loadingArea, fileName);
+						try (InputStream is = previousRF1Archive.getInputStream(ze);
+								FileOutputStream fos = new FileOutputStream(previousHistoryFile)) {
+							IOUtils.copy(is, fos);
 						}
 					}
-					ze = zis.getNextEntry();
 				}
-			} finally {
-				zis.closeEntry();
-				zis.close();
 			}
 		} catch (IOException e) {
 			throw new RF1ConversionException("Failed to load previous RF1 archive " + previousRF1Location.getName(), e);
@@ -848,9 +1498,13 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 		
 	}
 	
-	private void updateSubsetIds(ZipInputStream zis, EditionConfig config) throws NumberFormatException, IOException {
+	private void updateSubsetIds(InputStream is, EditionConfig config) throws NumberFormatException, IOException {
 		//This function will also pick up and set the previous subset version
-		Long subsetId = loadSubsetsFile(zis);
+		Long subsetId = loadSubsetsFile(is);
+		allocateSubsetIds(subsetId, config);
+	}
+	
+	private void allocateSubsetIds(Long subsetId, EditionConfig config) throws IOException {
 		//Do we need to recover a new set of subsetIds?
 		if (maxPreviousSubsetId == null || subsetId > maxPreviousSubsetId) {
 			maxPreviousSubsetId = subsetId;
@@ -875,9 +1529,9 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 	/*
 	 * @return the greatest subsetId in the file
 	 */
-	private Long loadSubsetsFile(ZipInputStream zis) throws IOException {
+	private Long loadSubsetsFile(InputStream is) throws IOException {
 		Long maxSubsetIdInFile = null;
-		BufferedReader br = new BufferedReader(new InputStreamReader(zis, StandardCharsets.UTF_8));
+		BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
 		String line;
 		boolean isFirstLine = true;
 		while ((line = br.readLine()) != null) {
@@ -940,16 +1594,14 @@ public class ConversionManager implements RF2SchemaConstants, RF1SchemaConstants
 	}
 	
 
-	private void pullDocumentationFromRF2(File loadingArea, File exportArea, String releaseDate, EditionConfig editionConfig) {
+	private void pullDocumentationFromRF2(File loadingArea, String releaseDate, EditionConfig editionConfig) {
 		FileFilter fileFilter = new WildcardFileFilter("*" + RELEASE_NOTES + "*");
 		File[] files = loadingArea.listFiles(fileFilter);
-		String outputRootPath = getOutputRootPath(exportArea, releaseDate, editionConfig);
-		String destDir = outputRootPath + File.separator + DOCUMENTATION_DIR + File.separator;
+		String destDir = getOutputRoot(releaseDate, editionConfig) + "/" + DOCUMENTATION_DIR;
 		for (File file : files) {
 			try{
-				File destFile = new File (destDir + file.getName());
-				FileUtils.copyFile(file, destFile);
-			} catch (IOException e) {
+				releaseOutput.addFile(destDir + file.getName(), file);
+			} catch (RF1ConversionException e) {
 				debug ("Failed to copy "  + file +  " to destination area: " + e.toString());
 			}
 		}
@@ -2,11 +2,13 @@ package org.ihtsdo.snomed.rf2torf1conversion;
 
 import static org.ihtsdo.snomed.rf2torf1conversion.GlobalUtils.*;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
 import java.sql.Connection;
 import java.sql.ResultSet;
@@ -14,8 +16,10 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.io.IOUtils;
@@ -29,8 +33,12 @@ public class DBManager {
 	private static final String DB_DRIVER = "org.h2.Driver";
 	//private static final String DB_OPTIONS = "MULTI_THREADED=0;LOG=0;CACHE_SIZE=1048576;LOCK_MODE=3";
 	private static final String DB_OPTIONS = "";
-	private static final String DEFAULT_FILE_SEPARATOR = "/";
+	private static final String DB_NAME = "rf2-to-rf1-conversion";
 	private static final String SQL_DELIMITER = ";";
+	private static final int EXPORT_FETCH_SIZE = 10000;
+	private static final int EXPORT_BUFFER_SIZE = 1024 * 1024;
+	private static final char EXPORT_FIELD_SEPARATOR = '\t';
+	private static final String EXPORT_LINE_SEPARATOR = "\r\n";
 
 	// In Memory Database fails when we try to load in the full relationship file
 	// private static final String DB_CONNECTION = "jdbc:h2:mem:rf1_conversion;DB_CLOSE_DELAY=-1";
@@ -63,6 +71,13 @@ public class DBManager {
 		 */
 	}
 
+	/**
+	 * @return true if a database has previously been created (and retained) in this location
+	 */
+	public static boolean exists(File dbLocation) {
+		return new File(dbLocation, DB_NAME + ".mv.db").exists() || new File(dbLocation, DB_NAME + ".h2.db").exists();
+	}
+
 	public void init(File dbLocation) throws RF1ConversionException {
 		print("Initialising Database");
 		getDBConnection(dbLocation);
@@ -71,7 +86,7 @@ public class DBManager {
 	private void getDBConnection(File dbLocationParent) throws RF1ConversionException {
 		try {
 			Class.forName(DB_DRIVER);
-			String dblocation = dbLocationParent.getPath() + File.separator + "rf2-to-rf1-conversion";
+			String dblocation = dbLocationParent.getPath() + File.separator + DB_NAME;
 			debug("Creating temporary data in folder: " + dblocation);
 			String dbConnectionStr = "jdbc:h2:" + dblocation + DB_OPTIONS;
 			dbPool = JdbcConnectionPool.create(dbConnectionStr, DB_USER, DB_PASSWORD);
@@ -114,6 +129,59 @@ public class DBManager {
 		runStatement(sql);
 	}
 
+	/**
+	 * @return the values of the first row returned by the query, or null if there were no rows
+	 */
+	public String[] selectFirstRow(String sql) throws RF1ConversionException {
+		debug("\nSelecting: " + sql);
+		try (Connection conn = dbPool.getConnection();
+				Statement stmt = conn.createStatement();
+				ResultSet rs = stmt.executeQuery(sql)) {
+			if (!rs.next()) {
+				return null;
+			}
+			int columnCount = rs.getMetaData().getColumnCount();
+			String[] row = new String[columnCount];
+			for (int i = 0; i < columnCount; i++) {
+				row[i] = rs.getString(i + 1);
+			}
+			return row;
+		} catch (SQLException e) {
+			throw new RF1ConversionException("Failed to select from database: " + sql, e);
+		}
+	}
+
+	/**
+	 * Reads the relationship ids already assigned in a retained RF1 relationship table
+	 * so they can be reused when that table is rebuilt
+	 */
+	public void loadPreviousRelationships(String tableName, boolean statedRelationships) throws RF1ConversionException {
+		String sql = "SELECT RELATIONSHIPID, CONCEPTID1, RELATIONSHIPTYPE, CONCEPTID2, RELATIONSHIPGROUP FROM " + tableName
+				+ " WHERE RELATIONSHIPID IS NOT NULL";
+		try (Connection conn = dbPool.getConnection();
+				Statement stmt = conn.createStatement();
+				ResultSet rs = stmt.executeQuery(sql)) {
+			while (rs.next()) {
+				RF1Constants.registerPreviousRelationship(rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5),
+						rs.getString(1), statedRelationships);
+			}
+		} catch (SQLException e) {
+			throw new RF1ConversionException("Failed to load previous relationships from " + tableName, e);
+		}
+	}
+
+	/**
+	 * @return a connection from the pool, for stages that work outside of SQL scripts.
+	 * The caller is responsible for closing it.
+	 */
+	public Connection getConnection() throws RF1ConversionException {
+		try {
+			return dbPool.getConnection();
+		} catch (SQLException e) {
+			throw new RF1ConversionException("Failed to obtain database connection", e);
+		}
+	}
+
 	public void shutDown(boolean deleteFiles) throws RF1ConversionException {
 			if (deleteFiles) {
 				runStatement("DROP ALL OBJECTS DELETE FILES");
@@ -122,33 +190,117 @@ public class DBManager {
 			dbPool.dispose();
 	}
 
-	public void export(String outputFilePath, String selectionSql, InputStream includeStream) throws RF1ConversionException {
-			// Make the path separator compatible with the OS
-			outputFilePath = outputFilePath.replace(DEFAULT_FILE_SEPARATOR, File.separator);
+	/**
+	 * Streams the results of the selection as tab separated values with a header row and
+	 * Windows line terminators, as CSVWRITE would have produced, followed by the include
+	 * stream (if any) in the same pass.  Each export uses its own connection so that
+	 * several may be run concurrently.  The output stream is flushed but left open.
+	 */
+	public void export(String selectionSql, InputStream includeStream, OutputStream os) throws RF1ConversionException {
+		try (Connection conn = dbPool.getConnection();
+				Statement stmt = conn.createStatement()) {
+			stmt.setFetchSize(EXPORT_FETCH_SIZE);
+			OutputStream buffered = new BufferedOutputStream(os, EXPORT_BUFFER_SIZE);
+			Writer out = new OutputStreamWriter(buffered, Charsets.UTF_8);
+			try (ResultSet rs = stmt.executeQuery(selectionSql)) {
+				ResultSetMetaData md = rs.getMetaData();
+				int columnCount = md.getColumnCount();
+				for (int i = 1; i <= columnCount; i++) {
+					if (i > 1) {
+						out.write(EXPORT_FIELD_SEPARATOR);
+					}
+					out.write(md.getColumnLabel(i));
+				}
+				out.write(EXPORT_LINE_SEPARATOR);
 
-			// Create the parent directory structure if required
-			File outputFile = new File(outputFilePath);
-			outputFile.getParentFile().mkdirs();
+				while (rs.next()) {
+					for (int i = 1; i <= columnCount; i++) {
+						if (i > 1) {
+							out.write(EXPORT_FIELD_SEPARATOR);
+						}
+						// Nulls are written as empty fields, with no delimiter or escaping
+						String value = rs.getString(i);
+						if (value != null) {
+							out.write(value);
+						}
+					}
+					out.write(EXPORT_LINE_SEPARATOR);
+				}
+			}
+			out.flush();
 
-			debug("Exporting data into " + outputFile.getName());
-			// Field separator set to ASCII 21 = NAK to ensure double quotes (the default separator) are ignored
-			// Use Windows line terminators, tab field separator and no delimiter (double quote by default)
-			String sql = "CALL CSVWRITE('" + outputFile.getPath() + "', '" + selectionSql + "',"
-					+ "'charset=UTF-8 lineSeparator=' || CHAR(13) || CHAR(10) ||' fieldSeparator=' || CHAR(9) || ' fieldDelimiter= escape=');";
-			runStatement(sql);
-			
 			if (includeStream != null) {
-				debug ("Including additional resource...");
-				try {
-					OutputStream os = new FileOutputStream (outputFile, true);
-					IOUtils.copy(includeStream, os);
-					os.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+				debug("Including additional resource...");
+				IOUtils.copy(includeStream, buffered);
 			}
+			buffered.flush();
+			updateProgress();
+		} catch (SQLException | IOException e) {
+			throw new RF1ConversionException("Failed to export data: " + selectionSql, e);
+		} finally {
+			IOUtils.closeQuietly(includeStream);
+		}
 	}
 	
+	/**
+	 * Exports the selection to several outputs from a single scan.  The first column of the
+	 * selection is not written but instead determines which outputs each row goes to: a row is
+	 * written to every output whose routing keys contain that value.  Otherwise the files are
+	 * written as for export().  The output streams are flushed but left open.
+	 */
+	public void exportRouted(String selectionSql, List<Set<String>> routingKeys, List<OutputStream> outputs) throws RF1ConversionException {
+		try (Connection conn = dbPool.getConnection();
+				Statement stmt = conn.createStatement()) {
+			stmt.setFetchSize(EXPORT_FETCH_SIZE);
+			List<Writer> writers = new ArrayList<Writer>();
+			for (OutputStream os : outputs) {
+				writers.add(new OutputStreamWriter(new BufferedOutputStream(os, EXPORT_BUFFER_SIZE), Charsets.UTF_8));
+			}
+			try (ResultSet rs = stmt.executeQuery(selectionSql)) {
+				ResultSetMetaData md = rs.getMetaData();
+				int columnCount = md.getColumnCount();
+				StringBuilder line = new StringBuilder();
+				for (int i = 2; i <= columnCount; i++) {
+					if (i > 2) {
+						line.append(EXPORT_FIELD_SEPARATOR);
+					}
+					line.append(md.getColumnLabel(i));
+				}
+				line.append(EXPORT_LINE_SEPARATOR);
+				for (Writer out : writers) {
+					out.write(line.toString());
+				}
+
+				while (rs.next()) {
+					line.setLength(0);
+					for (int i = 2; i <= columnCount; i++) {
+						if (i > 2) {
+							line.append(EXPORT_FIELD_SEPARATOR);
+						}
+						String value = rs.getString(i);
+						if (value != null) {
+							line.append(value);
+						}
+					}
+					line.append(EXPORT_LINE_SEPARATOR);
+					String text = line.toString();
+					String routingValue = rs.getString(1);
+					for (int route = 0; route < writers.size(); route++) {
+						if (routingKeys.get(route).contains(routingValue)) {
+							writers.get(route).write(text);
+						}
+					}
+				}
+			}
+			for (Writer out : writers) {
+				out.flush();
+			}
+			updateProgress();
+		} catch (SQLException | IOException e) {
+			throw new RF1ConversionException("Failed to export data: " + selectionSql, e);
+		}
+	}
+
 	public void runStatement(String sql) {
 		// Are we running this synchronously or in parallel?
 		if (parallelMode) {
@@ -0,0 +1,84 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import static org.ihtsdo.snomed.rf2torf1conversion.GlobalUtils.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Writes each file of the release into an export directory, which is then zipped
+ * up as a whole once complete.
+ */
+public class DirectoryReleaseOutput implements ReleaseOutput {
+
+	private final File exportArea;
+	private final int compressionLevel;
+	private final String releaseDate;
+
+	public DirectoryReleaseOutput(File exportArea, int compressionLevel, String releaseDate) {
+		this.exportArea = exportArea;
+		this.compressionLevel = compressionLevel;
+		this.releaseDate = releaseDate;
+	}
+
+	@Override
+	public void writeEntry(String path, EntryWriter writer) throws RF1ConversionException {
+		File outputFile = getOutputFile(path);
+		debug("Exporting data into " + outputFile.getName());
+		try (OutputStream out = new FileOutputStream(outputFile)) {
+			writer.writeTo(out);
+		} catch (IOException e) {
+			throw new RF1ConversionException("Failed to write " + outputFile.getPath(), e);
+		}
+	}
+
+	@Override
+	public void addFile(String path, File file) throws RF1ConversionException {
+		File outputFile = getOutputFile(path);
+		try {
+			FileUtils.copyFile(file, outputFile);
+		} catch (IOException e) {
+			throw new RF1ConversionException("Failed to copy " + file + " to " + outputFile.getPath(), e);
+		}
+	}
+
+	@Override
+	public void addFile(String path, File file, EntryFilter filter) throws RF1ConversionException {
+		File outputFile = getOutputFile(path);
+		try (InputStream in = new FileInputStream(file);
+				OutputStream out = new FileOutputStream(outputFile)) {
+			IOUtils.copy(in, filter.wrap(out));
+		} catch (IOException e) {
+			throw new RF1ConversionException("Failed to copy " + file + " to " + outputFile.getPath(), e);
+		}
+	}
+
+	@Override
+	public void awaitFiles() {
+		// Files are copied as soon as they are added
+	}
+
+	@Override
+	public void finish() throws RF1ConversionException {
+		createArchive(exportArea, compressionLevel, releaseDate);
+	}
+
+	@Override
+	public void discard() {
+		// The export area is removed along with the rest of the temporary files
+	}
+
+	private File getOutputFile(String path) {
+		// Make the path separator compatible with the OS and create the parent directory structure if required
+		File outputFile = new File(exportArea, path.replace("/", File.separator));
+		outputFile.getParentFile().mkdirs();
+		return outputFile;
+	}
+}
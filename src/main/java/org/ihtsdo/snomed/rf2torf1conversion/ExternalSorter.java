@@ -0,0 +1,213 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Sorts the lines of a file that may be too large to hold in memory.  Lines are collected
+ * until the memory allowed is used, then sorted and spilled to disk as a run.  The runs are
+ * then merged back together as the sorted lines are read.
+ */
+public class ExternalSorter {
+
+	/** Runs merged at once.  More than this are first merged down into larger runs. */
+	private static final int MAX_MERGE_WIDTH = 64;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/** Approximate memory taken by a String beyond its characters */
+	private static final int LINE_OVERHEAD = 64;
+
+	private final File workArea;
+	private final long maxMemory;
+	private final Comparator<String> comparator;
+
+	/**
+	 * @param workArea directory in which runs are spilled, which must already exist
+	 * @param maxMemory approximate number of bytes of lines to hold in memory at once
+	 */
+	public ExternalSorter(File workArea, long maxMemory, Comparator<String> comparator) {
+		this.workArea = workArea;
+		this.maxMemory = maxMemory;
+		this.comparator = comparator;
+	}
+
+	/**
+	 * Reads the remaining lines from the reader, leaving it open.
+	 * @return the lines in sorted order, which must be closed to remove any runs spilled.
+	 */
+	public SortedLines sort(BufferedReader in) throws RF1ConversionException {
+		List<File> runs = new ArrayList<File>();
+		List<String> lines = new ArrayList<String>();
+		try {
+			long memoryUsed = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				lines.add(line);
+				memoryUsed += line.length() * 2 + LINE_OVERHEAD;
+				if (memoryUsed >= maxMemory) {
+					runs.add(spill(lines));
+					lines.clear();
+					memoryUsed = 0;
+				}
+			}
+			// Where everything fitted in memory, there's no need to spill it
+			if (runs.isEmpty()) {
+				Collections.sort(lines, comparator);
+				return new SortedLines(lines);
+			}
+			if (!lines.isEmpty()) {
+				runs.add(spill(lines));
+				lines.clear();
+			}
+			while (runs.size() > MAX_MERGE_WIDTH) {
+				runs = mergeRuns(runs);
+			}
+			return new SortedLines(runs, comparator);
+		} catch (IOException e) {
+			deleteRuns(runs);
+			throw new RF1ConversionException("Failed to sort lines in " + workArea, e);
+		}
+	}
+
+	private File spill(List<String> lines) throws IOException {
+		Collections.sort(lines, comparator);
+		File run = File.createTempFile("run", ".txt", workArea);
+		try (Writer out = openRun(run)) {
+			for (String line : lines) {
+				out.write(line);
+				out.write('\n');
+			}
+		}
+		GlobalUtils.debug("Spilled " + lines.size() + " sorted lines to " + run.getName());
+		return run;
+	}
+
+	/**
+	 * Merges the runs in groups of MAX_MERGE_WIDTH, giving fewer, longer runs
+	 */
+	private List<File> mergeRuns(List<File> runs) throws IOException, RF1ConversionException {
+		List<File> merged = new ArrayList<File>();
+		for (int i = 0; i < runs.size(); i += MAX_MERGE_WIDTH) {
+			List<File> group = runs.subList(i, Math.min(i + MAX_MERGE_WIDTH, runs.size()));
+			File run = File.createTempFile("run", ".txt", workArea);
+			try (Writer out = openRun(run); SortedLines lines = new SortedLines(new ArrayList<File>(group), comparator)) {
+				String line;
+				while ((line = lines.next()) != null) {
+					out.write(line);
+					out.write('\n');
+				}
+			}
+			merged.add(run);
+		}
+		return merged;
+	}
+
+	private static Writer openRun(File run) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(run), StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	private static void deleteRuns(List<File> runs) {
+		for (File run : runs) {
+			run.delete();
+		}
+	}
+
+	/**
+	 * The sorted lines, either held in memory or merged from the runs spilled to disk.
+	 */
+	public static class SortedLines implements Closeable {
+		private final List<String> lines;
+		private int nextLine = 0;
+		private final List<File> runs;
+		private final List<BufferedReader> readers = new ArrayList<BufferedReader>();
+		private final PriorityQueue<RunHead> heads;
+
+		SortedLines(List<String> lines) {
+			this.lines = lines;
+			this.runs = Collections.emptyList();
+			this.heads = null;
+		}
+
+		SortedLines(List<File> runs, final Comparator<String> comparator) throws RF1ConversionException {
+			this.lines = null;
+			this.runs = runs;
+			this.heads = new PriorityQueue<RunHead>(runs.size(), new Comparator<RunHead>() {
+				@Override
+				public int compare(RunHead a, RunHead b) {
+					int result = comparator.compare(a.line, b.line);
+					// Keep lines that compare equal in the order of their runs, so the sort is stable
+					return result != 0 ? result : Integer.compare(a.run, b.run);
+				}
+			});
+			try {
+				for (File run : runs) {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(run), StandardCharsets.UTF_8), BUFFER_SIZE);
+					readers.add(reader);
+					advance(readers.size() - 1);
+				}
+			} catch (IOException e) {
+				close();
+				throw new RF1ConversionException("Failed to open sorted runs", e);
+			}
+		}
+
+		/**
+		 * @return the next line in sorted order, or null when there are no more
+		 */
+		public String next() throws RF1ConversionException {
+			if (lines != null) {
+				return nextLine < lines.size() ? lines.get(nextLine++) : null;
+			}
+			RunHead head = heads.poll();
+			if (head == null) {
+				return null;
+			}
+			try {
+				advance(head.run);
+			} catch (IOException e) {
+				throw new RF1ConversionException("Failed to read sorted run " + runs.get(head.run), e);
+			}
+			return head.line;
+		}
+
+		private void advance(int run) throws IOException {
+			String line = readers.get(run).readLine();
+			if (line != null) {
+				heads.add(new RunHead(line, run));
+			}
+		}
+
+		@Override
+		public void close() {
+			for (BufferedReader reader : readers) {
+				IOUtils.closeQuietly(reader);
+			}
+			deleteRuns(runs);
+		}
+	}
+
+	private static class RunHead {
+		final String line;
+		final int run;
+
+		RunHead(String line, int run) {
+			this.line = line;
+			this.run = run;
+		}
+	}
+}
@@ -7,19 +7,21 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 
 public class GlobalUtils {
 
 	public static boolean verbose;
 
-	private static long targetOperationCount = 443;
+	private static long targetOperationCount = 390;
 	private static long queriesRun = 0;
 	private static String BETA_PREFIX = "x";
 
@@ -41,13 +43,18 @@ public class GlobalUtils {
 		}
 	}
 
-	public static void unzipFlat(File archive, File targetDir, String[] matchArray) throws RF1ConversionException {
+	/**
+	 * @return the digest of the whole archive, calculated as it is read
+	 */
+	public static MessageDigest unzipFlat(File archive, File targetDir, String[] matchArray) throws RF1ConversionException {
 
 		if (!targetDir.exists() || !targetDir.isDirectory()) {
 			throw new RF1ConversionException(targetDir + " is not a viable directory in which to extract archive");
 		}
+		MessageDigest digest = ManifestReleaseOutput.createDigest();
 		try {
-			ZipInputStream zis = new ZipInputStream(new FileInputStream(archive));
+			DigestInputStream dis = new DigestInputStream(new FileInputStream(archive), digest);
+			ZipInputStream zis = new ZipInputStream(dis);
 			ZipEntry ze = zis.getNextEntry();
 			try {
 				while (ze != null) {
@@ -71,6 +78,8 @@ public class GlobalUtils {
 					}
 					ze = zis.getNextEntry();
 				}
+				//Read past the central directory so the digest covers the whole file
+				IOUtils.copy(dis, new NullOutputStream());
 			} finally {
 				zis.closeEntry();
 				zis.close();
@@ -78,6 +87,7 @@ public class GlobalUtils {
 		} catch (IOException e) {
 			throw new RF1ConversionException("Failed to expand archive " + archive.getName(), e);
 		}
+		return digest;
 	}
 
 	public static String findDateInString(String str, boolean optional) throws RF1ConversionException {
@@ -114,45 +124,45 @@ public class GlobalUtils {
 		}
 	}
 
-	public static void createArchive(File exportLocation) throws RF1ConversionException {
+	public static void createArchive(File exportLocation, int compressionLevel, String releaseDate) throws RF1ConversionException {
+		// The zip filename will be the name of the first thing in the zip location
+		// ie in this case the directory SnomedCT_RF1Release_INT_20150731
+		File zipFile = getArchiveFile(exportLocation.listFiles()[0].getName());
+		ArchiveBuilder builder = new ArchiveBuilder(zipFile, compressionLevel, Runtime.getRuntime().availableProcessors(), releaseDate);
+		String rootLocation = exportLocation.getAbsolutePath() + File.separator;
+		debug("Creating archive : " + zipFile + " from files found in " + rootLocation);
 		try {
-			// The zip filename will be the name of the first thing in the zip location
-			// ie in this case the directory SnomedCT_RF1Release_INT_20150731
-			String zipFileName = exportLocation.listFiles()[0].getName() + ".zip";
-			int fileNameModifier = 1;
-			while (new File(zipFileName).exists()) {
-				zipFileName = exportLocation.listFiles()[0].getName() + "_" + fileNameModifier++ + ".zip";
-			}
-			ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFileName));
-			String rootLocation = exportLocation.getAbsolutePath() + File.separator;
-			debug("Creating archive : " + zipFileName + " from files found in " + rootLocation);
-			addDir(rootLocation, exportLocation, out);
-			out.close();
-		} catch (IOException e) {
-			throw new RF1ConversionException("Failed to create RF1 Archive from " + exportLocation, e);
+			addDir(rootLocation, exportLocation, builder);
+			builder.build();
+		} catch (RF1ConversionException e) {
+			builder.discard();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return a file in the current directory named after the root directory of the archive,
+	 * with a numeric suffix if that name is already taken
+	 */
+	public static File getArchiveFile(String rootName) {
+		File zipFile = new File(rootName + ".zip");
+		int fileNameModifier = 1;
+		while (zipFile.exists()) {
+			zipFile = new File(rootName + "_" + fileNameModifier++ + ".zip");
 		}
+		return zipFile;
 	}
 
-	public static void addDir(String rootLocation, File dirObj, ZipOutputStream out) throws IOException {
+	public static void addDir(String rootLocation, File dirObj, ArchiveBuilder builder) {
 		File[] files = dirObj.listFiles();
-		byte[] tmpBuf = new byte[1024];
 
 		for (int i = 0; i < files.length; i++) {
 			if (files[i].isDirectory()) {
-				addDir(rootLocation, files[i], out);
+				addDir(rootLocation, files[i], builder);
 				continue;
 			}
-			FileInputStream in = new FileInputStream(files[i].getAbsolutePath());
 			String relativePath = files[i].getAbsolutePath().substring(rootLocation.length());
-			debug(" Adding: " + relativePath);
-			updateProgress();
-			out.putNextEntry(new ZipEntry(relativePath));
-			int len;
-			while ((len = in.read(tmpBuf)) > 0) {
-				out.write(tmpBuf, 0, len);
-			}
-			out.closeEntry();
-			in.close();
+			builder.addFile(relativePath.replace(File.separator, "/"), files[i]);
 		}
 	}
 }
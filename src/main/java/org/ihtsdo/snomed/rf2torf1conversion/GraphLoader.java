@@ -1,57 +1,98 @@
 package org.ihtsdo.snomed.rf2torf1conversion;
 
-import java.io.BufferedReader;
+import static org.ihtsdo.snomed.rf2torf1conversion.GlobalUtils.*;
+
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.ihtsdo.snomed.rf2torf1conversion.pojo.RF2SchemaConstants;
-import org.ihtsdo.snomed.rf2torf1conversion.pojo.Relationship;
+
+import com.google.common.base.Stopwatch;
 
 public class GraphLoader implements RF2SchemaConstants {
 
 	private final String inferredFile;
-	private Map<String, Relationship> inferredRelationships;
+	private final File graphCacheLocation;
+	private final ConceptGraph.Storage storage;
+	private String loadSummary;
 
 	public GraphLoader(String inferredFile) {
+		this(inferredFile, null, ConceptGraph.Storage.HEAP);
+	}
+
+	/**
+	 * @param graphCacheLocation directory in which the loaded graph is cached for later runs
+	 * against the same relationship snapshot, or null to always parse the snapshot
+	 * @param storage where the graph is held once loaded
+	 */
+	public GraphLoader(String inferredFile, File graphCacheLocation, ConceptGraph.Storage storage) {
 		this.inferredFile = inferredFile;
+		this.graphCacheLocation = graphCacheLocation;
+		this.storage = storage;
 	}
 	
-	public void loadRelationships() throws RF1ConversionException {
-		inferredRelationships = loadRelationshipFile(inferredFile, CHARACTERISTIC.INFERRED);
+	public ConceptGraph loadRelationships() throws RF1ConversionException {
+		return loadRelationshipFile(inferredFile, CHARACTERISTIC.INFERRED);
 	}
 	
 
-	private Map<String, Relationship> loadRelationshipFile(String filePath, CHARACTERISTIC characteristic) throws RF1ConversionException {
-		Map<String, Relationship> loadedRelationships = new HashMap<String, Relationship>();
+	private ConceptGraph loadRelationshipFile(String filePath, CHARACTERISTIC characteristic) throws RF1ConversionException {
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		File file;
 		try {
 			// Does this file exist and not as a directory?
-			File file = getFile(filePath);
-
-			try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-				String line;
-				boolean isFirstLine = true;
-				while ((line = br.readLine()) != null) {
-					if (!isFirstLine) {
-						String[] lineItems = line.split(FIELD_DELIMITER);
-						// Only store active ISA relationships
-						if (lineItems[REL_IDX_ACTIVE].equals(ACTIVE_FLAG)
-								&& !lineItems[REL_IDX_CHARACTERISTICTYPEID].equals(ADDITIONAL_RELATIONSHIP)) {
-							Relationship r = new Relationship(lineItems, characteristic);
-							loadedRelationships.put(r.getUuid(), r);
-						}
-					} else {
-						isFirstLine = false;
-						continue;
-					}
-				}
-			}
+			file = getFile(filePath);
 		} catch (IOException e) {
 			throw new RF1ConversionException ("IO Exception while loading Relationship file: " + filePath, e);
 		}
-		return loadedRelationships;
+
+		RelationshipEdges edges = new RelationshipEdges();
+		ConceptGraphCache cache = graphCacheLocation == null ? null : new ConceptGraphCache(graphCacheLocation, file);
+		if (cache != null && cache.exists()) {
+			// The cache holds the relationships already sorted with any repeats removed
+			long coldLoadMillis = cache.read(edges);
+			ConceptGraph graph = createGraph(edges, characteristic);
+			loadSummary = String.format("Concept graph of %d relationships loaded from cache %s into %s storage in %s (cold load from snapshot took %s)",
+					edges.size(), cache.getFile().getName(), storage, formatMillis(stopwatch.elapsed(TimeUnit.MILLISECONDS)), formatMillis(coldLoadMillis));
+			return graph;
+		}
+
+		// Only active, non-additional relationships reach the handler.  The file is parsed on all
+		// available cores, but the handler is called in file order from this thread
+		RelationshipFileParser parser = new RelationshipFileParser(file, Runtime.getRuntime().availableProcessors());
+		parser.parse(edges);
+		print(parser.getThroughputSummary());
+		// A repeated relationship would add nothing to the graph
+		edges.sortAndDeduplicate();
+		ConceptGraph graph = createGraph(edges, characteristic);
+		long coldLoadMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+		loadSummary = String.format("Concept graph of %d relationships loaded from snapshot into %s storage in %s (cold load)",
+				edges.size(), storage, formatMillis(coldLoadMillis));
+		if (cache != null) {
+			cache.write(edges, coldLoadMillis);
+			loadSummary += ", cached to " + cache.getFile().getName() + " for warm loads";
+		}
+		return graph;
+	}
+
+	private ConceptGraph createGraph(RelationshipEdges edges, CHARACTERISTIC characteristic) throws RF1ConversionException {
+		if (storage == ConceptGraph.Storage.HEAP) {
+			return new HeapConceptGraph(edges, characteristic);
+		}
+		return new OffHeapConceptGraph(edges, storage);
+	}
+
+	/**
+	 * @return how the graph was loaded and how long it took, both from the snapshot and
+	 * from the cache where one was used
+	 */
+	public String getLoadSummary() {
+		return loadSummary;
+	}
+
+	private static String formatMillis(long millis) {
+		return String.format("%.3fs", millis / 1000d);
 	}
 	
 	private File getFile(String filePath) throws IOException {
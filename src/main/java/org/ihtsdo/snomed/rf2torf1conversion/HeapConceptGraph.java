@@ -0,0 +1,81 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.ihtsdo.snomed.rf2torf1conversion.pojo.Concept;
+import org.ihtsdo.snomed.rf2torf1conversion.pojo.RF2SchemaConstants.CHARACTERISTIC;
+import org.ihtsdo.snomed.rf2torf1conversion.pojo.Relationship;
+
+/**
+ * Holds the graph as Concept objects, each with its parents, children and attributes.
+ */
+public class HeapConceptGraph implements ConceptGraph {
+
+	private final long[] conceptIds;
+
+	// Each relationship registers its concepts and adds itself to them as it is created
+	public HeapConceptGraph(RelationshipEdges edges, CHARACTERISTIC characteristic) throws RF1ConversionException {
+		conceptIds = edges.getConceptIds();
+		for (int i = 0; i < edges.size(); i++) {
+			new Relationship(edges.getSourceId(i), edges.getDestinationId(i), edges.getGroup(i), edges.getTypeId(i), characteristic);
+		}
+	}
+
+	@Override
+	public long[] getAllDescendents(long conceptId) {
+		Concept concept = Concept.getConcept(conceptId);
+		if (concept == null) {
+			return new long[0];
+		}
+		Set<Concept> descendents = concept.getAllDescendents(Concept.DEPTH_NOT_SET);
+		long[] descendentIds = new long[descendents.size()];
+		int i = 0;
+		for (Concept descendent : descendents) {
+			descendentIds[i++] = descendent.getSctId();
+		}
+		Arrays.sort(descendentIds);
+		return descendentIds;
+	}
+
+	@Override
+	public boolean hasAncestor(long conceptId, long ancestorId) {
+		Concept concept = Concept.getConcept(conceptId);
+		if (concept == null) {
+			return false;
+		}
+		Set<Concept> visited = new HashSet<Concept>();
+		Deque<Concept> toVisit = new ArrayDeque<Concept>();
+		toVisit.push(concept);
+		while (!toVisit.isEmpty()) {
+			for (Concept parent : toVisit.pop().getParents()) {
+				if (parent.getSctId() == ancestorId) {
+					return true;
+				}
+				if (visited.add(parent)) {
+					toVisit.push(parent);
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean hasAttribute(long conceptId, long typeId, long destinationId) {
+		Concept concept = Concept.getConcept(conceptId);
+		return concept != null && concept.hasAttribute(typeId, destinationId);
+	}
+
+	@Override
+	public int getConceptCount() {
+		return conceptIds.length;
+	}
+
+	@Override
+	public long[] getConceptIds() {
+		return conceptIds.clone();
+	}
+}
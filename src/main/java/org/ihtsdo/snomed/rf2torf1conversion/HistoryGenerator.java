@@ -0,0 +1,887 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import static org.ihtsdo.snomed.rf2torf1conversion.GlobalUtils.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Works out the RF1 Component History from the RF2 full tables.
+ *
+ * Each of the _sv tables is read once in component id order, so that the version chain of
+ * every description, and then every concept, can be walked in memory rather than being
+ * queried with correlated MAX(effectiveTime) subqueries.  Rows that are already held in
+ * rf21_COMPONENTHISTORY take part in the comparisons but are not written again.
+ */
+public class HistoryGenerator {
+
+	private static final long FSN = 900000000000003001L;
+	private static final long CONCEPT_INACT_RS = 900000000000489007L;
+	private static final long DESC_INACT_RS = 900000000000490003L;
+	private static final long US_REFSET = 900000000000509007L;
+	private static final long GB_REFSET = 900000000000508004L;
+	private static final long PREFERRED = 900000000000548007L;
+
+	private static final String CS_CHANGE = "CONCEPTSTATUS CHANGE";
+	private static final String DS_CHANGE = "DESCRIPTIONSTATUS CHANGE";
+	private static final String DT_CHANGE = "DESCRIPTIONTYPE CHANGE";
+	private static final String LC_CHANGE = "LANGUAGECODE CHANGE";
+	private static final String DT_LC_CHANGE = "DESCRIPTIONTYPE CHANGE, LANGUAGECODE CHANGE";
+	private static final String ICS_CHANGE = "INITIALCAPITALSTATUS CHANGE";
+	private static final String DT_ICS_CHANGE = "DESCRIPTIONTYPE CHANGE, INITIALCAPITALSTATUS CHANGE";
+	private static final String FSN_CHANGE = "FULLYSPECIFIEDNAME CHANGE";
+
+	private static final int ADDED = 0;
+	private static final int STATUS_CHANGE = 1;
+	private static final int OTHER_CHANGE = 2;
+	private static final int NOT_SET = -1;
+
+	private static final int BATCH_SIZE = 10000;
+
+	private static final Comparator<Timed> BY_EFFECTIVE_TIME = new Comparator<Timed>() {
+		@Override
+		public int compare(Timed a, Timed b) {
+			return Long.compare(a.getEffectiveTime(), b.getEffectiveTime());
+		}
+	};
+
+	private final Connection conn;
+	private final long historyStart;
+
+	private Map<Long, List<Version>> conceptVersions;
+	// Concepts that have ever been metadata concepts, mapped to whether they have had some other FSN
+	private Map<Long, Boolean> metadataConcepts;
+	private Set<Long> conceptsWithFsn;
+	private Map<Long, List<Member>> conceptInactivations = new HashMap<Long, List<Member>>();
+	private Map<Long, List<Long>> fsnChanges = new HashMap<Long, List<Long>>();
+
+	private PreparedStatement insert;
+	private int batchCount = 0;
+	private long rowsInserted = 0;
+
+	/**
+	 * @param historyStart entries are calculated from this release version onwards.  Any
+	 * earlier entries are expected to be held in rf21_COMPONENTHISTORY already.
+	 */
+	public HistoryGenerator(Connection conn, long historyStart) {
+		this.conn = conn;
+		this.historyStart = historyStart;
+	}
+
+	public void generate() throws RF1ConversionException {
+		try {
+			runStatement("CREATE INDEX IF NOT EXISTS idx_comphist_id ON rf21_COMPONENTHISTORY(componentId)");
+			runStatement("CREATE INDEX IF NOT EXISTS idx_comphist_et ON rf21_COMPONENTHISTORY(releaseVersion)");
+
+			loadConceptVersions();
+			loadMetadataConcepts();
+			loadConceptsWithFsn();
+			updateProgress();
+
+			insert = conn.prepareStatement("INSERT INTO rf21_COMPONENTHISTORY "
+					+ "(COMPONENTID, RELEASEVERSION, CHANGETYPE, STATUS, REASON, ISCONCEPT, PREVIOUSVERSION) "
+					+ "VALUES (?, ?, ?, ?, ?, ?, ?)");
+			try {
+				generateDescriptionHistory();
+				updateProgress();
+				generateConceptHistory();
+				insert.executeBatch();
+			} finally {
+				insert.close();
+			}
+			debug("History rows inserted: " + rowsInserted);
+			updateProgress();
+		} catch (SQLException e) {
+			throw new RF1ConversionException("Failed to generate RF1 Component History", e);
+		}
+	}
+
+	private void loadConceptVersions() throws SQLException {
+		conceptVersions = new HashMap<Long, List<Version>>();
+		try (ComponentReader<Version> reader = new VersionReader(conn,
+				"SELECT id, effectiveTime, active FROM rf2_concept_sv ORDER BY id", false)) {
+			for (long id = reader.nextId(); id != Long.MAX_VALUE; id = reader.nextId()) {
+				conceptVersions.put(id, reader.read(id));
+			}
+		}
+	}
+
+	private void loadMetadataConcepts() throws SQLException {
+		metadataConcepts = new HashMap<Long, Boolean>();
+		try (Statement stmt = conn.createStatement();
+				ResultSet rs = stmt.executeQuery("SELECT conceptId, hasOtherFsn FROM rf2_metadata_concept_sv")) {
+			while (rs.next()) {
+				metadataConcepts.put(rs.getLong(1), rs.getBoolean(2));
+			}
+		}
+	}
+
+	private void loadConceptsWithFsn() throws SQLException {
+		conceptsWithFsn = new HashSet<Long>();
+		try (Statement stmt = conn.createStatement();
+				ResultSet rs = stmt.executeQuery("SELECT DISTINCT conceptId FROM rf2_term_sv WHERE typeId = " + FSN)) {
+			while (rs.next()) {
+				conceptsWithFsn.add(rs.getLong(1));
+			}
+		}
+	}
+
+	/**
+	 * Descriptions are taken first because a new FSN also results in an entry for its concept.
+	 * Concept inactivation indicators are collected on the way through for the same reason.
+	 */
+	private void generateDescriptionHistory() throws SQLException, RF1ConversionException {
+		try (ComponentReader<Version> terms = new VersionReader(conn,
+				"SELECT id, effectiveTime, active, conceptId, typeId, term, caseSignificanceId FROM rf2_term_sv ORDER BY id", true);
+			ComponentReader<Member> members = new MemberReader(conn,
+				"SELECT referencedComponentId, effectiveTime, refsetId, active, linkedComponentId FROM rf2_crefset_sv ORDER BY referencedComponentId");
+			ComponentReader<HistoryRow> existing = new HistoryReader(conn)) {
+
+			for (long id = Math.min(terms.nextId(), members.nextId()); id != Long.MAX_VALUE;
+					id = Math.min(terms.nextId(), members.nextId())) {
+				List<Version> versions = terms.read(id);
+				List<Member> componentMembers = members.read(id);
+				for (Member m : componentMembers) {
+					if (m.refsetId == CONCEPT_INACT_RS) {
+						getList(conceptInactivations, id).add(m);
+					}
+				}
+				recordFsnChanges(versions);
+				List<HistoryRow> rows = existing.read(id);
+				addDescriptionHistory(versions, componentMembers, rows);
+				write(id, rows);
+			}
+		}
+	}
+
+	private void generateConceptHistory() throws SQLException, RF1ConversionException {
+		Set<Long> conceptIds = new TreeSet<Long>(conceptVersions.keySet());
+		conceptIds.addAll(conceptInactivations.keySet());
+		conceptIds.addAll(fsnChanges.keySet());
+		try (ComponentReader<HistoryRow> existing = new HistoryReader(conn)) {
+			for (Long id : conceptIds) {
+				List<HistoryRow> rows = existing.read(id);
+				addConceptHistory(id, rows);
+				write(id, rows);
+			}
+		}
+	}
+
+	private void addDescriptionHistory(List<Version> versions, List<Member> members, List<HistoryRow> rows) {
+		// Add all Description entries from the full file - creations, activations and inactivations
+		// Where the term has no previous entry, mark the status as 0 - Created.
+		// Watch out for components that are created in an inactive state however.
+		addVersionRows(versions, rows, false);
+
+		// Where the term has been created and there is immediate inactivation indicator
+		for (HistoryRow row : rows) {
+			if (row.isNew && row.changeType == ADDED) {
+				for (Member s : members) {
+					if (s.refsetId == DESC_INACT_RS && s.active && s.effectiveTime == row.releaseVersion) {
+						row.status = magicNumberFor(s.linkedComponentId);
+						break;
+					}
+				}
+			}
+		}
+
+		// DESCRIPTION INACTIVATION
+		// Where there is no other change, but the inactivation indicator is modified, add a new row.
+		// But not when the previous entry has the same status, nor where there is a duplicate
+		// inactivation with the same active state
+		List<HistoryRow> inactivations = new ArrayList<HistoryRow>();
+		for (Member s : members) {
+			if (s.refsetId != DESC_INACT_RS || s.effectiveTime < historyStart
+					|| latestHasStatus(rows, s.effectiveTime, magicNumberFor(s.linkedComponentId))
+					|| isRepeatedIndicator(s, members)) {
+				continue;
+			}
+			Integer status;
+			if (s.active) {
+				status = magicNumberFor(s.linkedComponentId);
+			} else {
+				// Find the most recent active flag for the description and concept
+				status = null;
+				Version d = latest(versions, s.effectiveTime);
+				if (d != null) {
+					Version c = latest(conceptVersions.get(d.conceptId), s.effectiveTime);
+					if (c != null) {
+						status = (int) RF1Constants.translateDescriptionActive(d.active, c.active);
+					}
+				}
+			}
+			inactivations.add(new HistoryRow(s.effectiveTime, STATUS_CHANGE, status, DS_CHANGE, false, null));
+		}
+		rows.addAll(inactivations);
+
+		removeUnsetDuplicates(rows);
+
+		addLanguageChanges(versions, members, rows);
+
+		// Where there was a component change and the previous version had a different
+		// case sensitivity, set an INITIALCAPITALSTATUS CHANGE, but not where there was also
+		// a change in active status, which takes priority.
+		for (HistoryRow row : rows) {
+			if (row.isNew && row.changeType == NOT_SET && caseSignificanceChanged(versions, row)) {
+				row.changeType = OTHER_CHANGE;
+				row.status = currentInactivationStatus(members, row.releaseVersion);
+				row.reason = hasLanguageChange(members, row.releaseVersion) ? DT_ICS_CHANGE : ICS_CHANGE;
+			}
+		}
+
+		// Where there's been a status change but we haven't found an inactivation reason,
+		// just set the status to 1 - reason unknown
+		setStatusChanges(versions, rows, DS_CHANGE);
+
+		removeInsignificantChanges(rows);
+	}
+
+	private void addConceptHistory(long conceptId, List<HistoryRow> rows) {
+		List<Version> versions = conceptVersions.get(conceptId);
+		if (versions == null) {
+			versions = Collections.emptyList();
+		}
+		// Filter out model component module concepts
+		if (!metadataConcepts.containsKey(conceptId)) {
+			addVersionRows(versions, rows, true);
+		}
+
+		// CONCEPT INACTIVATION
+		// Where there is no other change, but the inactivation indicator is modified, add a new row.
+		// But not when the previous entry has the same status - is not a change in that case.
+		List<Member> inactivations = conceptInactivations.get(conceptId);
+		if (inactivations == null) {
+			inactivations = Collections.emptyList();
+		}
+		List<HistoryRow> inactivationRows = new ArrayList<HistoryRow>();
+		for (Member s : inactivations) {
+			if (s.effectiveTime < historyStart
+					|| latestHasStatus(rows, s.effectiveTime, magicNumberFor(s.linkedComponentId))) {
+				continue;
+			}
+			Integer status;
+			if (s.active) {
+				status = magicNumberFor(s.linkedComponentId);
+			} else {
+				Version c = latest(versions, s.effectiveTime);
+				status = c == null ? null : statusFor(c.active);
+			}
+			inactivationRows.add(new HistoryRow(s.effectiveTime, STATUS_CHANGE, status, CS_CHANGE, true, null));
+		}
+		rows.addAll(inactivationRows);
+
+		removeUnsetDuplicates(rows);
+
+		// When a description that is an FSN is added, but not at the same time as the concept
+		// then add a row to indicate an FSN change for the concept.
+		// The status code in this case relates to the inactivation reason for the concept
+		List<Long> fsnTimes = fsnChanges.get(conceptId);
+		if (fsnTimes != null) {
+			List<HistoryRow> fsnRows = new ArrayList<HistoryRow>();
+			for (Long effectiveTime : fsnTimes) {
+				if (!hasRow(rows, effectiveTime, ADDED)) {
+					Integer status = latestActiveIndicator(inactivations, CONCEPT_INACT_RS, effectiveTime);
+					if (status == null) {
+						Version c = latest(versions, effectiveTime);
+						status = c == null ? null : statusFor(c.active);
+					}
+					fsnRows.add(new HistoryRow(effectiveTime, OTHER_CHANGE, status, FSN_CHANGE, true, null));
+				}
+			}
+			rows.addAll(fsnRows);
+		}
+
+		setStatusChanges(versions, rows, CS_CHANGE);
+
+		removeInsignificantChanges(rows);
+	}
+
+	/**
+	 * Adds an entry for each version from the start of the history, noting the version
+	 * that preceded it.  Where there is no preceding version, the component was created.
+	 */
+	private void addVersionRows(List<Version> versions, List<HistoryRow> rows, boolean isConcept) {
+		for (Version v : versions) {
+			if (v.effectiveTime < historyStart || (!isConcept && metadataConcepts.containsKey(v.conceptId))) {
+				continue;
+			}
+			Long previousVersion = null;
+			for (Version v2 : versions) {
+				if (v2.effectiveTime < v.effectiveTime) {
+					previousVersion = v2.effectiveTime;
+				}
+			}
+			HistoryRow row = new HistoryRow(v.effectiveTime, NOT_SET, NOT_SET, "", isConcept, previousVersion);
+			if (previousVersion == null) {
+				row.changeType = ADDED;
+				row.status = statusFor(at(versions, v.effectiveTime).active);
+			}
+			rows.add(row);
+		}
+	}
+
+	/**
+	 * Language Refset Processing
+	 * Where there's been a change in the language acceptability, capture that too.
+	 * A change from PREF to ACCEPT results in DT_CHANGE
+	 * Just becoming acceptable for the first time is a LC_CHANGE
+	 * A first time change in either lang refsets generates DT_LC_CHANGE
+	 * unless it was previously Preferred in the other language
+	 */
+	private void addLanguageChanges(List<Version> versions, List<Member> members, List<HistoryRow> rows) {
+		// Text Definitions are also in the Lang Refset, so check this description belongs to a
+		// concept with an FSN, and not a metadata concept
+		boolean hasFsn = false;
+		for (Version v : versions) {
+			if (conceptsWithFsn.contains(v.conceptId) && !Boolean.FALSE.equals(metadataConcepts.get(v.conceptId))) {
+				hasFsn = true;
+				break;
+			}
+		}
+		if (!hasFsn) {
+			return;
+		}
+		List<HistoryRow> changes = new ArrayList<HistoryRow>();
+		for (Member s : members) {
+			if (!isLanguageRefset(s.refsetId) || s.effectiveTime < historyStart
+					|| hasRow(rows, s.effectiveTime, null)) {
+				continue;
+			}
+			// Find the status for an attribute value active at that time, or just work from description status otherwise
+			Integer status = latestActiveIndicator(members, DESC_INACT_RS, s.effectiveTime);
+			if (status == null) {
+				Version t = latest(versions, s.effectiveTime);
+				status = t == null ? null : statusFor(t.active);
+			}
+			String reason;
+			if (hasPreviousAcceptability(s, members)) {
+				reason = DT_CHANGE;
+			} else if (isFirstAcceptability(s, members)) {
+				reason = DT_LC_CHANGE;
+			} else {
+				reason = LC_CHANGE;
+			}
+			HistoryRow change = new HistoryRow(s.effectiveTime, OTHER_CHANGE, status, reason, false, null);
+			boolean isDuplicate = false;
+			for (HistoryRow existing : changes) {
+				isDuplicate |= existing.isSameChange(change);
+			}
+			if (!isDuplicate) {
+				changes.add(change);
+			}
+		}
+		rows.addAll(changes);
+	}
+
+	private boolean hasPreviousAcceptability(Member s, List<Member> members) {
+		for (Member s2 : members) {
+			if (s2.refsetId == s.refsetId && s2.linkedComponentId != s.linkedComponentId && s2.effectiveTime < s.effectiveTime) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isFirstAcceptability(Member s, List<Member> members) {
+		for (Member s4 : members) {
+			if (s4.effectiveTime == s.effectiveTime && isLanguageRefset(s4.refsetId)) {
+				// Check for previous preferred in the other language
+				boolean previouslyPreferred = false;
+				if (s4.linkedComponentId == PREFERRED) {
+					for (Member s5 : members) {
+						if (isLanguageRefset(s5.refsetId) && s5.refsetId != s4.refsetId
+								&& s5.effectiveTime < s4.effectiveTime && s5.linkedComponentId == PREFERRED) {
+							previouslyPreferred = true;
+							break;
+						}
+					}
+				}
+				if (!previouslyPreferred) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if a language refset entry changed at this time, other than a first time
+	 * entry that is already inactive
+	 */
+	private boolean hasLanguageChange(List<Member> members, long releaseVersion) {
+		for (Member s2 : members) {
+			if (s2.effectiveTime == releaseVersion && isLanguageRefset(s2.refsetId)) {
+				if (s2.active) {
+					return true;
+				}
+				for (Member s3 : members) {
+					if (s3.refsetId == s2.refsetId && s3.effectiveTime < s2.effectiveTime && s3.active) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Status will be taken from the most recent inactivation indicator, which itself might be inactive
+	 */
+	private Integer currentInactivationStatus(List<Member> members, long releaseVersion) {
+		long latestTime = latestMemberTime(members, DESC_INACT_RS, releaseVersion);
+		Integer status = null;
+		for (Member s : members) {
+			if (s.refsetId == DESC_INACT_RS && s.effectiveTime == latestTime) {
+				Integer memberStatus = s.active ? magicNumberFor(s.linkedComponentId) : Integer.valueOf(0);
+				if (memberStatus != null && (status == null || memberStatus > status)) {
+					status = memberStatus;
+				}
+			}
+		}
+		return status == null ? Integer.valueOf(0) : status;
+	}
+
+	/**
+	 * @return the status given by the most recent indicator in the refset, if that indicator is active
+	 */
+	private Integer latestActiveIndicator(List<Member> members, long refsetId, long effectiveTime) {
+		long latestTime = latestMemberTime(members, refsetId, effectiveTime);
+		for (Member s : members) {
+			if (s.refsetId == refsetId && s.effectiveTime == latestTime && s.active) {
+				return magicNumberFor(s.linkedComponentId);
+			}
+		}
+		return null;
+	}
+
+	private long latestMemberTime(List<Member> members, long refsetId, long effectiveTime) {
+		long latestTime = Long.MIN_VALUE;
+		for (Member s : members) {
+			if (s.refsetId == refsetId && s.effectiveTime <= effectiveTime) {
+				latestTime = Math.max(latestTime, s.effectiveTime);
+			}
+		}
+		return latestTime;
+	}
+
+	/**
+	 * @return true if the most recent entry of any refset, before this one, was the same
+	 * inactivation with the same active state, or the same inactivation also exists as
+	 * inactive with the same effective time
+	 */
+	private boolean isRepeatedIndicator(Member s, List<Member> members) {
+		long previousTime = Long.MIN_VALUE;
+		for (Member s3 : members) {
+			if (s3.effectiveTime < s.effectiveTime) {
+				previousTime = Math.max(previousTime, s3.effectiveTime);
+			}
+		}
+		for (Member s2 : members) {
+			if (s2.refsetId == s.refsetId && s2.linkedComponentId == s.linkedComponentId) {
+				if (s2.active == s.active && s2.effectiveTime == previousTime) {
+					return true;
+				}
+				if (s.active && !s2.active && s2.effectiveTime == s.effectiveTime) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if an entry at the most recent release version up to this time has this status
+	 */
+	private boolean latestHasStatus(List<HistoryRow> rows, long effectiveTime, Integer status) {
+		long latestVersion = Long.MIN_VALUE;
+		for (HistoryRow row : rows) {
+			if (row.releaseVersion <= effectiveTime) {
+				latestVersion = Math.max(latestVersion, row.releaseVersion);
+			}
+		}
+		for (HistoryRow row : rows) {
+			if (row.releaseVersion == latestVersion && status != null && status.equals(row.status)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean hasRow(List<HistoryRow> rows, long releaseVersion, Integer changeType) {
+		for (HistoryRow row : rows) {
+			if (row.releaseVersion == releaseVersion && (changeType == null || changeType == row.changeType)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean caseSignificanceChanged(List<Version> versions, HistoryRow row) {
+		for (Version t1 : versions) {
+			for (Version t2 : versions) {
+				if (t1.effectiveTime == row.releaseVersion && row.previousVersion != null
+						&& t2.effectiveTime == row.previousVersion
+						&& t1.active == t2.active && t1.caseSignificanceId != t2.caseSignificanceId) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void setStatusChanges(List<Version> versions, List<HistoryRow> rows, String reason) {
+		for (HistoryRow row : rows) {
+			if (row.isNew && row.status != null && row.status == NOT_SET && activeStateChanged(versions, row)) {
+				row.changeType = STATUS_CHANGE;
+				row.status = statusFor(at(versions, row.releaseVersion).active);
+				row.reason = reason;
+			}
+		}
+	}
+
+	private boolean activeStateChanged(List<Version> versions, HistoryRow row) {
+		for (Version v1 : versions) {
+			for (Version v2 : versions) {
+				if (v1.effectiveTime == row.releaseVersion && row.previousVersion != null
+						&& v2.effectiveTime == row.previousVersion && v1.active != v2.active) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Where rows that do not have a status set are duplicates of rows that do, remove them
+	 * before we can't tell between them.
+	 */
+	private void removeUnsetDuplicates(List<HistoryRow> rows) {
+		List<HistoryRow> toRemove = new ArrayList<HistoryRow>();
+		for (HistoryRow ch : rows) {
+			if (isUnset(ch)) {
+				for (HistoryRow ch2 : rows) {
+					if (ch2.releaseVersion == ch.releaseVersion && ch2.status != null && !isUnset(ch2)) {
+						toRemove.add(ch);
+						break;
+					}
+				}
+			}
+		}
+		rows.removeAll(toRemove);
+	}
+
+	/**
+	 * Delete anything we haven't found a reason for.  Eg changes to definitionStatusId
+	 * And where we have two changes, delete the less significant eg type 2
+	 * Or where completely identical, the shorter of the two reasons
+	 */
+	private void removeInsignificantChanges(List<HistoryRow> rows) {
+		for (Iterator<HistoryRow> i = rows.iterator(); i.hasNext();) {
+			if (isUnset(i.next())) {
+				i.remove();
+			}
+		}
+		List<HistoryRow> toRemove = new ArrayList<HistoryRow>();
+		for (HistoryRow ch : rows) {
+			if (ch.releaseVersion < historyStart) {
+				continue;
+			}
+			for (HistoryRow ch2 : rows) {
+				if (ch2.releaseVersion == ch.releaseVersion && isLessSignificant(ch, ch2)) {
+					toRemove.add(ch);
+					break;
+				}
+			}
+		}
+		rows.removeAll(toRemove);
+	}
+
+	private boolean isLessSignificant(HistoryRow ch, HistoryRow ch2) {
+		if (ch.changeType != ch2.changeType) {
+			return ch.changeType > ch2.changeType;
+		}
+		return (hasStatus(ch, 1) && ch2.status != null && !hasStatus(ch2, 1))
+				|| (hasStatus(ch, 0) && ch2.status != null && !hasStatus(ch2, 0))
+				|| ch.reason.length() < ch2.reason.length();
+	}
+
+	private static boolean hasStatus(HistoryRow row, int status) {
+		return row.status != null && row.status == status;
+	}
+
+	private static boolean isUnset(HistoryRow row) {
+		return hasStatus(row, NOT_SET);
+	}
+
+	private void recordFsnChanges(List<Version> versions) {
+		for (Version t : versions) {
+			if (t.typeId == FSN && t.active && t.effectiveTime >= historyStart
+					&& !metadataConcepts.containsKey(t.conceptId) && !isCaseChangeOnly(t, versions)) {
+				getList(fsnChanges, t.conceptId).add(t.effectiveTime);
+			}
+		}
+	}
+
+	/**
+	 * @return true if an earlier active version has the same text but a different case sensitivity
+	 */
+	private boolean isCaseChangeOnly(Version t, List<Version> versions) {
+		for (Version t2 : versions) {
+			if (t2.effectiveTime < t.effectiveTime && t2.active && t2.term.equals(t.term)
+					&& t2.caseSignificanceId != t.caseSignificanceId) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void write(long componentId, List<HistoryRow> rows) throws SQLException, RF1ConversionException {
+		for (HistoryRow row : rows) {
+			if (!row.isNew) {
+				continue;
+			}
+			if (row.status == null) {
+				throw new RF1ConversionException("Unable to determine history status for component " + componentId
+						+ " at " + row.releaseVersion);
+			}
+			insert.setLong(1, componentId);
+			insert.setLong(2, row.releaseVersion);
+			insert.setString(3, Integer.toString(row.changeType));
+			insert.setString(4, row.status.toString());
+			insert.setString(5, row.reason);
+			insert.setBoolean(6, row.isConcept);
+			if (row.previousVersion == null) {
+				insert.setNull(7, java.sql.Types.BIGINT);
+			} else {
+				insert.setLong(7, row.previousVersion);
+			}
+			insert.addBatch();
+			rowsInserted++;
+			if (++batchCount == BATCH_SIZE) {
+				insert.executeBatch();
+				batchCount = 0;
+			}
+		}
+	}
+
+	private void runStatement(String sql) throws SQLException {
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute(sql);
+		}
+	}
+
+	private static Version latest(List<Version> versions, long effectiveTime) {
+		Version latest = null;
+		if (versions != null) {
+			for (Version v : versions) {
+				if (v.effectiveTime <= effectiveTime) {
+					latest = v;
+				}
+			}
+		}
+		return latest;
+	}
+
+	private static Version at(List<Version> versions, long effectiveTime) {
+		for (Version v : versions) {
+			if (v.effectiveTime == effectiveTime) {
+				return v;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isLanguageRefset(long refsetId) {
+		return refsetId == US_REFSET || refsetId == GB_REFSET;
+	}
+
+	private static int statusFor(boolean active) {
+		return RF1Constants.translateActive(active);
+	}
+
+	private static Integer magicNumberFor(long sctid) {
+		Byte magicNumber = RF1Constants.getMagicNumber(Long.toString(sctid));
+		return magicNumber == null ? null : Integer.valueOf(magicNumber);
+	}
+
+	private static <T> List<T> getList(Map<Long, List<T>> map, long id) {
+		List<T> list = map.get(id);
+		if (list == null) {
+			list = new ArrayList<T>();
+			map.put(id, list);
+		}
+		return list;
+	}
+
+	private interface Timed {
+		long getEffectiveTime();
+	}
+
+	private static class Version implements Timed {
+		long effectiveTime;
+		boolean active;
+		long conceptId;
+		long typeId;
+		String term;
+		long caseSignificanceId;
+
+		public long getEffectiveTime() {
+			return effectiveTime;
+		}
+	}
+
+	private static class Member implements Timed {
+		long effectiveTime;
+		long refsetId;
+		boolean active;
+		long linkedComponentId;
+
+		public long getEffectiveTime() {
+			return effectiveTime;
+		}
+	}
+
+	private static class HistoryRow implements Timed {
+		final long releaseVersion;
+		int changeType;
+		Integer status;
+		String reason;
+		final boolean isConcept;
+		final Long previousVersion;
+		// Rows already held in the table are only used for comparison
+		final boolean isNew;
+
+		HistoryRow(long releaseVersion, int changeType, Integer status, String reason, boolean isConcept, Long previousVersion) {
+			this(releaseVersion, changeType, status, reason, isConcept, previousVersion, true);
+		}
+
+		HistoryRow(long releaseVersion, int changeType, Integer status, String reason, boolean isConcept, Long previousVersion, boolean isNew) {
+			this.releaseVersion = releaseVersion;
+			this.changeType = changeType;
+			this.status = status;
+			this.reason = reason;
+			this.isConcept = isConcept;
+			this.previousVersion = previousVersion;
+			this.isNew = isNew;
+		}
+
+		public long getEffectiveTime() {
+			return releaseVersion;
+		}
+
+		/**
+		 * @return true if this row records the same change as the other
+		 */
+		boolean isSameChange(HistoryRow other) {
+			return releaseVersion == other.releaseVersion && changeType == other.changeType
+					&& (status == null ? other.status == null : status.equals(other.status))
+					&& reason.equals(other.reason);
+		}
+	}
+
+	/**
+	 * Reads a result set ordered by component id (the first column), one component at a time.
+	 * The rows for each component are returned in effective time order.
+	 */
+	private abstract static class ComponentReader<T extends Timed> implements AutoCloseable {
+		private final Statement stmt;
+		private final ResultSet rs;
+		private boolean hasRow;
+
+		ComponentReader(Connection conn, String sql) throws SQLException {
+			stmt = conn.createStatement();
+			rs = stmt.executeQuery(sql);
+			hasRow = rs.next();
+		}
+
+		long nextId() throws SQLException {
+			return hasRow ? rs.getLong(1) : Long.MAX_VALUE;
+		}
+
+		List<T> read(long id) throws SQLException {
+			while (hasRow && rs.getLong(1) < id) {
+				hasRow = rs.next();
+			}
+			List<T> rows = new ArrayList<T>();
+			while (hasRow && rs.getLong(1) == id) {
+				rows.add(readRow(rs));
+				hasRow = rs.next();
+			}
+			Collections.sort(rows, BY_EFFECTIVE_TIME);
+			return rows;
+		}
+
+		abstract T readRow(ResultSet rs) throws SQLException;
+
+		@Override
+		public void close() throws SQLException {
+			rs.close();
+			stmt.close();
+		}
+	}
+
+	private static class VersionReader extends ComponentReader<Version> {
+		private final boolean isDescription;
+
+		VersionReader(Connection conn, String sql, boolean isDescription) throws SQLException {
+			super(conn, sql);
+			this.isDescription = isDescription;
+		}
+
+		@Override
+		Version readRow(ResultSet rs) throws SQLException {
+			Version v = new Version();
+			v.effectiveTime = rs.getLong(2);
+			v.active = rs.getBoolean(3);
+			if (isDescription) {
+				v.conceptId = rs.getLong(4);
+				v.typeId = rs.getLong(5);
+				v.term = rs.getString(6);
+				v.caseSignificanceId = rs.getLong(7);
+			}
+			return v;
+		}
+	}
+
+	private static class MemberReader extends ComponentReader<Member> {
+		MemberReader(Connection conn, String sql) throws SQLException {
+			super(conn, sql);
+		}
+
+		@Override
+		Member readRow(ResultSet rs) throws SQLException {
+			Member m = new Member();
+			m.effectiveTime = rs.getLong(2);
+			m.refsetId = rs.getLong(3);
+			m.active = rs.getBoolean(4);
+			m.linkedComponentId = rs.getLong(5);
+			return m;
+		}
+	}
+
+	private static class HistoryReader extends ComponentReader<HistoryRow> {
+		HistoryReader(Connection conn) throws SQLException {
+			super(conn, "SELECT COMPONENTID, RELEASEVERSION, CHANGETYPE, STATUS, REASON FROM rf21_COMPONENTHISTORY ORDER BY COMPONENTID");
+		}
+
+		@Override
+		HistoryRow readRow(ResultSet rs) throws SQLException {
+			String reason = rs.getString(5);
+			return new HistoryRow(rs.getLong(2), Integer.parseInt(rs.getString(3).trim()), Integer.valueOf(rs.getString(4).trim()),
+					reason == null ? "" : reason, false, null, false);
+		}
+	}
+}
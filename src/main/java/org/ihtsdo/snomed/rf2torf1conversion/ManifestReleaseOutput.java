@@ -0,0 +1,212 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Records the SHA-256 digest, size and line count of every file as it is written to the
+ * release, so that nothing needs to read the files back to check them.  The results are
+ * added to the release as a manifest, along with those of the RF2 archives converted.
+ */
+public class ManifestReleaseOutput implements ReleaseOutput {
+
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	private static final String FIELD_DELIMITER = "\t";
+	private static final String LINE_DELIMITER = "\r\n";
+
+	private final ReleaseOutput output;
+	private final String manifestPath;
+	private final Map<String, FileSummary> inputs = new TreeMap<String, FileSummary>();
+	private final Map<String, FileSummary> outputs = new TreeMap<String, FileSummary>();
+	private final Map<FileSummary, MessageDigest> pendingDigests = new HashMap<FileSummary, MessageDigest>();
+
+	public ManifestReleaseOutput(ReleaseOutput output, String manifestPath) {
+		this.output = output;
+		this.manifestPath = manifestPath;
+	}
+
+	/**
+	 * @return a new digest of the algorithm used for the manifest
+	 */
+	public static MessageDigest createDigest() throws RF1ConversionException {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RF1ConversionException("Unable to calculate " + DIGEST_ALGORITHM + " digests", e);
+		}
+	}
+
+	/**
+	 * Records a file read in the process of the conversion, given the digest of its entire content
+	 */
+	synchronized public void recordInput(File file, MessageDigest digest) {
+		FileSummary summary = new FileSummary();
+		summary.bytes = file.length();
+		summary.complete(digest);
+		inputs.put(file.getName(), summary);
+	}
+
+	@Override
+	public void writeEntry(String path, final EntryWriter writer) throws RF1ConversionException {
+		final FileSummary summary = new FileSummary();
+		final MessageDigest digest = createDigest();
+		output.writeEntry(path, new EntryWriter() {
+			@Override
+			public void writeTo(OutputStream out) throws RF1ConversionException {
+				writer.writeTo(new SummaryOutputStream(out, summary, digest));
+			}
+		});
+		summary.complete(digest);
+		synchronized (this) {
+			outputs.put(path, summary);
+		}
+	}
+
+	@Override
+	public void addFile(String path, File file) throws RF1ConversionException {
+		addFile(path, file, null);
+	}
+
+	/**
+	 * The file is summarised as the underlying output copies it, which may be later on
+	 * another thread, so its digest is only completed by awaitFiles.
+	 */
+	@Override
+	public void addFile(String path, File file, final EntryFilter filter) throws RF1ConversionException {
+		final FileSummary summary = new FileSummary();
+		final MessageDigest digest = createDigest();
+		synchronized (this) {
+			outputs.put(path, summary);
+			pendingDigests.put(summary, digest);
+		}
+		output.addFile(path, file, new EntryFilter() {
+			@Override
+			public OutputStream wrap(OutputStream out) {
+				OutputStream summarised = new SummaryOutputStream(out, summary, digest);
+				return filter == null ? summarised : filter.wrap(summarised);
+			}
+		});
+	}
+
+	@Override
+	public void awaitFiles() throws RF1ConversionException {
+		output.awaitFiles();
+		synchronized (this) {
+			for (Map.Entry<FileSummary, MessageDigest> pending : pendingDigests.entrySet()) {
+				pending.getKey().complete(pending.getValue());
+			}
+			pendingDigests.clear();
+		}
+	}
+
+	@Override
+	public void finish() throws RF1ConversionException {
+		awaitFiles();
+		final String manifest = getManifest();
+		output.writeEntry(manifestPath, new EntryWriter() {
+			@Override
+			public void writeTo(OutputStream out) throws RF1ConversionException {
+				try {
+					out.write(manifest.getBytes(StandardCharsets.UTF_8));
+				} catch (IOException e) {
+					throw new RF1ConversionException("Failed to write manifest " + manifestPath, e);
+				}
+			}
+		});
+		output.finish();
+	}
+
+	@Override
+	public void discard() {
+		output.discard();
+	}
+
+	/**
+	 * @return the inputs and the files written so far, one per line, tab separated with a header.
+	 * Line counts are only given for the files written.
+	 */
+	synchronized public String getManifest() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("TYPE").append(FIELD_DELIMITER)
+			.append("PATH").append(FIELD_DELIMITER)
+			.append("BYTES").append(FIELD_DELIMITER)
+			.append("LINES").append(FIELD_DELIMITER)
+			.append(DIGEST_ALGORITHM).append(LINE_DELIMITER);
+		for (Map.Entry<String, FileSummary> input : inputs.entrySet()) {
+			input.getValue().append(sb, "input", input.getKey(), false);
+		}
+		for (Map.Entry<String, FileSummary> output : outputs.entrySet()) {
+			output.getValue().append(sb, "output", output.getKey(), true);
+		}
+		return sb.toString();
+	}
+
+	private static class FileSummary {
+		String digest;
+		long bytes = 0;
+		long lines = 0;
+
+		void complete(MessageDigest messageDigest) {
+			digest = BaseEncoding.base16().lowerCase().encode(messageDigest.digest());
+		}
+
+		void append(StringBuilder sb, String type, String path, boolean includeLines) {
+			sb.append(type).append(FIELD_DELIMITER)
+				.append(path).append(FIELD_DELIMITER)
+				.append(bytes).append(FIELD_DELIMITER)
+				.append(includeLines ? Long.toString(lines) : "").append(FIELD_DELIMITER)
+				.append(digest).append(LINE_DELIMITER);
+		}
+	}
+
+	/**
+	 * Updates the summary with everything written through to the entry
+	 */
+	private static class SummaryOutputStream extends FilterOutputStream {
+		private final FileSummary summary;
+		private final MessageDigest digest;
+
+		SummaryOutputStream(OutputStream out, FileSummary summary, MessageDigest digest) {
+			super(out);
+			this.summary = summary;
+			this.digest = digest;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			digest.update((byte) b);
+			summary.bytes++;
+			if (b == '\n') {
+				summary.lines++;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			digest.update(b, off, len);
+			summary.bytes += len;
+			for (int i = off; i < off + len; i++) {
+				if (b[i] == '\n') {
+					summary.lines++;
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.ihtsdo.snomed.rf2torf1conversion.pojo.RF2SchemaConstants;
+
+/**
+ * Holds the graph outside of the heap, in a single buffer which is either allocated directly
+ * or mapped from a temporary file.  Whatever the size of the edition, the heap only holds
+ * the buffer and the positions of its sections.  The buffer holds:
+ *   the sorted ids of every concept,
+ *   an offset into the children for each concept, then the index of each child,
+ *   an offset into the parents for each concept, then the index of each parent,
+ *   an offset into the attributes for each concept, then the type and destination id of
+ *   each attribute.
+ * Primitive arrays are used while the buffer is being built, and are released once it is.
+ */
+public class OffHeapConceptGraph implements ConceptGraph, RF2SchemaConstants {
+
+	private static final int ID_BYTES = 8;
+	private static final int INDEX_BYTES = 4;
+	private static final int ATTRIBUTE_BYTES = 8 + 8;
+
+	private final ByteBuffer buffer;
+	private final int conceptCount;
+	private final int childOffsetsStart;
+	private final int childrenStart;
+	private final int parentOffsetsStart;
+	private final int parentsStart;
+	private final int attributeOffsetsStart;
+	private final int attributesStart;
+
+	public OffHeapConceptGraph(RelationshipEdges edges, Storage storage) throws RF1ConversionException {
+		long[] conceptIds = edges.getConceptIds();
+		conceptCount = conceptIds.length;
+
+		//Count the children and attributes of each concept so that each can be given its range
+		int[] childCounts = new int[conceptCount];
+		int[] parentCounts = new int[conceptCount];
+		int[] attributeCounts = new int[conceptCount];
+		int childCount = 0;
+		for (int i = 0; i < edges.size(); i++) {
+			if (edges.getTypeId(i) == ISA_ID) {
+				childCounts[indexOf(conceptIds, edges.getDestinationId(i))]++;
+				parentCounts[indexOf(conceptIds, edges.getSourceId(i))]++;
+				childCount++;
+			} else {
+				attributeCounts[indexOf(conceptIds, edges.getSourceId(i))]++;
+			}
+		}
+		int attributeCount = edges.size() - childCount;
+
+		long offsetsSize = (conceptCount + 1L) * INDEX_BYTES;
+		//Each ISA relationship gives one concept a child and the other a parent
+		long bufferSize = (long) conceptCount * ID_BYTES + 2 * (offsetsSize + (long) childCount * INDEX_BYTES)
+				+ offsetsSize + (long) attributeCount * ATTRIBUTE_BYTES;
+		if (bufferSize > Integer.MAX_VALUE) {
+			throw new RF1ConversionException("Concept graph of " + edges.size() + " relationships is too large to hold in a single buffer");
+		}
+		childOffsetsStart = conceptCount * ID_BYTES;
+		childrenStart = childOffsetsStart + (int) offsetsSize;
+		parentOffsetsStart = childrenStart + childCount * INDEX_BYTES;
+		parentsStart = parentOffsetsStart + (int) offsetsSize;
+		attributeOffsetsStart = parentsStart + childCount * INDEX_BYTES;
+		attributesStart = attributeOffsetsStart + (int) offsetsSize;
+		buffer = allocate((int) bufferSize, storage);
+
+		for (int i = 0; i < conceptCount; i++) {
+			buffer.putLong(i * ID_BYTES, conceptIds[i]);
+		}
+		//Counts become the position of the next entry to fill for each concept
+		fillOffsets(childCounts, childOffsetsStart);
+		fillOffsets(parentCounts, parentOffsetsStart);
+		fillOffsets(attributeCounts, attributeOffsetsStart);
+		for (int i = 0; i < edges.size(); i++) {
+			if (edges.getTypeId(i) == ISA_ID) {
+				int parent = indexOf(conceptIds, edges.getDestinationId(i));
+				int child = indexOf(conceptIds, edges.getSourceId(i));
+				buffer.putInt(childrenStart + childCounts[parent]++ * INDEX_BYTES, child);
+				buffer.putInt(parentsStart + parentCounts[child]++ * INDEX_BYTES, parent);
+			} else {
+				int position = attributesStart + attributeCounts[indexOf(conceptIds, edges.getSourceId(i))]++ * ATTRIBUTE_BYTES;
+				buffer.putLong(position, edges.getTypeId(i));
+				buffer.putLong(position + ID_BYTES, edges.getDestinationId(i));
+			}
+		}
+	}
+
+	private static int indexOf(long[] conceptIds, long conceptId) {
+		return Arrays.binarySearch(conceptIds, conceptId);
+	}
+
+	/**
+	 * Writes the running total of the counts as the offsets, and replaces each count with the
+	 * concept's starting offset
+	 */
+	private void fillOffsets(int[] counts, int offsetsStart) {
+		int offset = 0;
+		for (int i = 0; i < counts.length; i++) {
+			buffer.putInt(offsetsStart + i * INDEX_BYTES, offset);
+			int count = counts[i];
+			counts[i] = offset;
+			offset += count;
+		}
+		buffer.putInt(offsetsStart + counts.length * INDEX_BYTES, offset);
+	}
+
+	private static ByteBuffer allocate(int size, Storage storage) throws RF1ConversionException {
+		if (storage == Storage.DIRECT) {
+			return ByteBuffer.allocateDirect(size);
+		}
+		//The mapping outlives both the channel and the file, so the file needn't be kept
+		File mappedFile = null;
+		try {
+			mappedFile = File.createTempFile("concept_graph_", ".bin");
+			try (RandomAccessFile raf = new RandomAccessFile(mappedFile, "rw"); FileChannel channel = raf.getChannel()) {
+				raf.setLength(size);
+				return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+		} catch (IOException e) {
+			throw new RF1ConversionException("Unable to map a temporary file for the concept graph", e);
+		} finally {
+			if (mappedFile != null && !mappedFile.delete()) {
+				mappedFile.deleteOnExit();
+			}
+		}
+	}
+
+	private int find(long conceptId) {
+		int low = 0;
+		int high = conceptCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleId = buffer.getLong(middle * ID_BYTES);
+			if (middleId < conceptId) {
+				low = middle + 1;
+			} else if (middleId > conceptId) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public long[] getAllDescendents(long conceptId) {
+		int concept = find(conceptId);
+		if (concept < 0) {
+			return new long[0];
+		}
+		//Concepts are held in id order, so the descendants found come out sorted
+		BitSet descendents = new BitSet(conceptCount);
+		int[] toVisit = new int[64];
+		int waiting = 0;
+		toVisit[waiting++] = concept;
+		while (waiting > 0) {
+			int parent = toVisit[--waiting];
+			int end = buffer.getInt(childOffsetsStart + (parent + 1) * INDEX_BYTES);
+			for (int i = buffer.getInt(childOffsetsStart + parent * INDEX_BYTES); i < end; i++) {
+				int child = buffer.getInt(childrenStart + i * INDEX_BYTES);
+				if (!descendents.get(child)) {
+					descendents.set(child);
+					if (waiting == toVisit.length) {
+						toVisit = Arrays.copyOf(toVisit, waiting * 2);
+					}
+					toVisit[waiting++] = child;
+				}
+			}
+		}
+		long[] descendentIds = new long[descendents.cardinality()];
+		int i = 0;
+		for (int d = descendents.nextSetBit(0); d >= 0; d = descendents.nextSetBit(d + 1)) {
+			descendentIds[i++] = buffer.getLong(d * ID_BYTES);
+		}
+		return descendentIds;
+	}
+
+	@Override
+	public boolean hasAncestor(long conceptId, long ancestorId) {
+		int concept = find(conceptId);
+		int ancestor = find(ancestorId);
+		if (concept < 0 || ancestor < 0) {
+			return false;
+		}
+		//Walking up is quick, as a concept has few ancestors compared to the descendants most have
+		BitSet visited = new BitSet(conceptCount);
+		int[] toVisit = new int[64];
+		int waiting = 0;
+		toVisit[waiting++] = concept;
+		while (waiting > 0) {
+			int child = toVisit[--waiting];
+			int end = buffer.getInt(parentOffsetsStart + (child + 1) * INDEX_BYTES);
+			for (int i = buffer.getInt(parentOffsetsStart + child * INDEX_BYTES); i < end; i++) {
+				int parent = buffer.getInt(parentsStart + i * INDEX_BYTES);
+				if (parent == ancestor) {
+					return true;
+				}
+				if (!visited.get(parent)) {
+					visited.set(parent);
+					if (waiting == toVisit.length) {
+						toVisit = Arrays.copyOf(toVisit, waiting * 2);
+					}
+					toVisit[waiting++] = parent;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean hasAttribute(long conceptId, long typeId, long destinationId) {
+		int concept = find(conceptId);
+		if (concept < 0) {
+			return false;
+		}
+		int end = buffer.getInt(attributeOffsetsStart + (concept + 1) * INDEX_BYTES);
+		for (int i = buffer.getInt(attributeOffsetsStart + concept * INDEX_BYTES); i < end; i++) {
+			int position = attributesStart + i * ATTRIBUTE_BYTES;
+			if (buffer.getLong(position) == typeId && buffer.getLong(position + ID_BYTES) == destinationId) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public int getConceptCount() {
+		return conceptCount;
+	}
+
+	@Override
+	public long[] getConceptIds() {
+		long[] conceptIds = new long[conceptCount];
+		for (int i = 0; i < conceptCount; i++) {
+			conceptIds[i] = buffer.getLong(i * ID_BYTES);
+		}
+		return conceptIds;
+	}
+}
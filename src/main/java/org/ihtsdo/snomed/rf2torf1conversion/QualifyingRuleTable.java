@@ -0,0 +1,355 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * The qualifying relationship rules compiled to a table of ids.  Each attribute - a type and
+ * destination with its refinability - owns a run of rules, and each rule - a start point and
+ * whether the start point itself is included - owns a run of exception ids.  The rules are
+ * read from JSON with a streaming reader, keeping only the SCTID of each "id |FSN|" string,
+ * and the table can be written to and read back from a small binary file.
+ */
+public class QualifyingRuleTable {
+
+	private static final int MAGIC = 0x52463151;  //RF1Q
+	private static final int VERSION = 1;
+
+	private final long[] typeIds;
+	private final long[] destinationIds;
+	private final int[] refinabilities;
+	private final int[] ruleOffsets;
+	private final long[] startPointIds;
+	private final boolean[] includesSelf;
+	private final int[] exceptionOffsets;
+	private final long[] exceptionIds;
+
+	private QualifyingRuleTable(long[] typeIds, long[] destinationIds, int[] refinabilities, int[] ruleOffsets,
+			long[] startPointIds, boolean[] includesSelf, int[] exceptionOffsets, long[] exceptionIds) {
+		this.typeIds = typeIds;
+		this.destinationIds = destinationIds;
+		this.refinabilities = refinabilities;
+		this.ruleOffsets = ruleOffsets;
+		this.startPointIds = startPointIds;
+		this.includesSelf = includesSelf;
+		this.exceptionOffsets = exceptionOffsets;
+		this.exceptionIds = exceptionIds;
+	}
+
+	/**
+	 * Compiles the rules from their JSON form.  Should an attribute appear more than once, the
+	 * first appearance is the one kept.
+	 */
+	public static QualifyingRuleTable compile(Reader json) throws RF1ConversionException {
+		Builder builder = new Builder();
+		Set<String> attributesSeen = new HashSet<String>();
+		try (JsonReader reader = new JsonReader(json)) {
+			reader.beginArray();
+			while (reader.hasNext()) {
+				long typeId = 0;
+				long destinationId = 0;
+				int refinability = 0;
+				int firstRule = builder.ruleCount;
+				int firstException = builder.exceptionCount;
+				reader.beginObject();
+				while (reader.hasNext()) {
+					String name = reader.nextName();
+					if (name.equals("type")) {
+						typeId = parseSctId(reader.nextString());
+					} else if (name.equals("destination")) {
+						destinationId = parseSctId(reader.nextString());
+					} else if (name.equals("refinability")) {
+						refinability = reader.nextInt();
+					} else if (name.equals("rules") && reader.peek() != JsonToken.NULL) {
+						reader.beginArray();
+						while (reader.hasNext()) {
+							compileRule(reader, builder);
+						}
+						reader.endArray();
+					} else {
+						reader.skipValue();
+					}
+				}
+				reader.endObject();
+				if (attributesSeen.add(typeId + "_" + destinationId)) {
+					builder.addAttribute(typeId, destinationId, refinability);
+				} else {
+					builder.ruleCount = firstRule;
+					builder.exceptionCount = firstException;
+				}
+			}
+			reader.endArray();
+		} catch (IOException | IllegalStateException | NumberFormatException e) {
+			throw new RF1ConversionException("Unable to compile qualifying relationship rules", e);
+		}
+		return builder.build();
+	}
+
+	private static void compileRule(JsonReader reader, Builder builder) throws IOException, RF1ConversionException {
+		long startPointId = 0;
+		boolean self = false;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("startPoint")) {
+				String startPoint = reader.nextString().trim();
+				self = startPoint.startsWith("<<");
+				startPointId = parseSctId(startPoint);
+			} else if (name.equals("exceptions") && reader.peek() != JsonToken.NULL) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					builder.addException(parseSctId(reader.nextString()));
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		builder.addRule(startPointId, self);
+	}
+
+	/**
+	 * @return the SCTID from an "id |FSN|" string, which may be preceded by a constraint
+	 */
+	static long parseSctId(String expression) throws RF1ConversionException {
+		int i = 0;
+		while (i < expression.length() && (expression.charAt(i) == '<' || expression.charAt(i) == ' ')) {
+			i++;
+		}
+		int start = i;
+		long sctId = 0;
+		while (i < expression.length() && Character.isDigit(expression.charAt(i))) {
+			sctId = sctId * 10 + (expression.charAt(i++) - '0');
+		}
+		if (i == start || expression.indexOf('|', i) < 0) {
+			throw new RF1ConversionException("Unable to extract SCTID from " + expression);
+		}
+		return sctId;
+	}
+
+	/**
+	 * Reads a table written by write, checking it is complete before returning it
+	 */
+	public static QualifyingRuleTable read(File file) throws RF1ConversionException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new RF1ConversionException(file + " is not a qualifying rule table of version " + VERSION);
+			}
+			int attributeCount = in.readInt();
+			int ruleCount = in.readInt();
+			int exceptionCount = in.readInt();
+			if (attributeCount < 0 || ruleCount < 0 || exceptionCount < 0) {
+				throw new RF1ConversionException("Qualifying rule table " + file + " is corrupt");
+			}
+			long[] typeIds = readLongs(in, attributeCount);
+			long[] destinationIds = readLongs(in, attributeCount);
+			int[] refinabilities = readInts(in, attributeCount);
+			int[] ruleOffsets = readOffsets(in, attributeCount, ruleCount, file);
+			long[] startPointIds = readLongs(in, ruleCount);
+			boolean[] includesSelf = new boolean[ruleCount];
+			for (int i = 0; i < ruleCount; i++) {
+				includesSelf[i] = in.readBoolean();
+			}
+			int[] exceptionOffsets = readOffsets(in, ruleCount, exceptionCount, file);
+			long[] exceptionIds = readLongs(in, exceptionCount);
+			if (in.read() != -1) {
+				throw new RF1ConversionException("Qualifying rule table " + file + " has unexpected trailing data");
+			}
+			return new QualifyingRuleTable(typeIds, destinationIds, refinabilities, ruleOffsets,
+					startPointIds, includesSelf, exceptionOffsets, exceptionIds);
+		} catch (EOFException e) {
+			throw new RF1ConversionException("Qualifying rule table " + file + " is truncated", e);
+		} catch (IOException e) {
+			throw new RF1ConversionException("Failed to read qualifying rule table " + file, e);
+		}
+	}
+
+	private static long[] readLongs(DataInputStream in, int count) throws IOException {
+		long[] values = new long[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = in.readLong();
+		}
+		return values;
+	}
+
+	private static int[] readInts(DataInputStream in, int count) throws IOException {
+		int[] values = new int[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	private static int[] readOffsets(DataInputStream in, int ownerCount, int ownedCount, File file) throws IOException, RF1ConversionException {
+		int[] offsets = readInts(in, ownerCount + 1);
+		for (int i = 0; i <= ownerCount; i++) {
+			if (offsets[i] < (i == 0 ? 0 : offsets[i - 1]) || offsets[i] > ownedCount) {
+				throw new RF1ConversionException("Qualifying rule table " + file + " has invalid offsets");
+			}
+		}
+		if (offsets[ownerCount] != ownedCount) {
+			throw new RF1ConversionException("Qualifying rule table " + file + " has invalid offsets");
+		}
+		return offsets;
+	}
+
+	/**
+	 * Writes the table via a temporary file, so that a partial table is never left behind
+	 */
+	public void write(File file) throws RF1ConversionException {
+		File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(getAttributeCount());
+			out.writeInt(startPointIds.length);
+			out.writeInt(exceptionIds.length);
+			for (long typeId : typeIds) {
+				out.writeLong(typeId);
+			}
+			for (long destinationId : destinationIds) {
+				out.writeLong(destinationId);
+			}
+			for (int refinability : refinabilities) {
+				out.writeInt(refinability);
+			}
+			for (int offset : ruleOffsets) {
+				out.writeInt(offset);
+			}
+			for (long startPointId : startPointIds) {
+				out.writeLong(startPointId);
+			}
+			for (boolean self : includesSelf) {
+				out.writeBoolean(self);
+			}
+			for (int offset : exceptionOffsets) {
+				out.writeInt(offset);
+			}
+			for (long exceptionId : exceptionIds) {
+				out.writeLong(exceptionId);
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			throw new RF1ConversionException("Failed to write qualifying rule table " + file, e);
+		}
+		if (!tempFile.renameTo(file)) {
+			tempFile.delete();
+			throw new RF1ConversionException("Unable to move qualifying rule table into place at " + file);
+		}
+	}
+
+	public int getAttributeCount() {
+		return typeIds.length;
+	}
+
+	public long getTypeId(int attribute) {
+		return typeIds[attribute];
+	}
+
+	public long getDestinationId(int attribute) {
+		return destinationIds[attribute];
+	}
+
+	public int getRefinability(int attribute) {
+		return refinabilities[attribute];
+	}
+
+	/**
+	 * Rules are numbered across the whole table, from getFirstRule up to but excluding
+	 * getFirstRule of the next attribute
+	 */
+	public int getFirstRule(int attribute) {
+		return ruleOffsets[attribute];
+	}
+
+	public int getRuleEnd(int attribute) {
+		return ruleOffsets[attribute + 1];
+	}
+
+	public long getStartPointId(int rule) {
+		return startPointIds[rule];
+	}
+
+	/**
+	 * @return true if the rule's constraint is descendant or self, rather than descendant only
+	 */
+	public boolean includesSelf(int rule) {
+		return includesSelf[rule];
+	}
+
+	public long[] getExceptionIds(int rule) {
+		return Arrays.copyOfRange(exceptionIds, exceptionOffsets[rule], exceptionOffsets[rule + 1]);
+	}
+
+	/**
+	 * Grows the arrays of the table as the JSON is read
+	 */
+	private static class Builder {
+		long[] typeIds = new long[64];
+		long[] destinationIds = new long[64];
+		int[] refinabilities = new int[64];
+		int[] ruleOffsets = new int[65];
+		int attributeCount = 0;
+		long[] startPointIds = new long[256];
+		boolean[] includesSelf = new boolean[256];
+		int[] exceptionOffsets = new int[257];
+		int ruleCount = 0;
+		long[] exceptionIds = new long[16 * 1024];
+		int exceptionCount = 0;
+
+		void addException(long exceptionId) {
+			if (exceptionCount == exceptionIds.length) {
+				exceptionIds = Arrays.copyOf(exceptionIds, exceptionCount * 2);
+			}
+			exceptionIds[exceptionCount++] = exceptionId;
+		}
+
+		//A rule owns the exceptions added since the previous rule
+		void addRule(long startPointId, boolean self) {
+			if (ruleCount == startPointIds.length) {
+				startPointIds = Arrays.copyOf(startPointIds, ruleCount * 2);
+				includesSelf = Arrays.copyOf(includesSelf, ruleCount * 2);
+				exceptionOffsets = Arrays.copyOf(exceptionOffsets, ruleCount * 2 + 1);
+			}
+			startPointIds[ruleCount] = startPointId;
+			includesSelf[ruleCount] = self;
+			exceptionOffsets[++ruleCount] = exceptionCount;
+		}
+
+		//An attribute owns the rules added since the previous attribute
+		void addAttribute(long typeId, long destinationId, int refinability) {
+			if (attributeCount == typeIds.length) {
+				typeIds = Arrays.copyOf(typeIds, attributeCount * 2);
+				destinationIds = Arrays.copyOf(destinationIds, attributeCount * 2);
+				refinabilities = Arrays.copyOf(refinabilities, attributeCount * 2);
+				ruleOffsets = Arrays.copyOf(ruleOffsets, attributeCount * 2 + 1);
+			}
+			typeIds[attributeCount] = typeId;
+			destinationIds[attributeCount] = destinationId;
+			refinabilities[attributeCount] = refinability;
+			ruleOffsets[++attributeCount] = ruleCount;
+		}
+
+		QualifyingRuleTable build() {
+			return new QualifyingRuleTable(Arrays.copyOf(typeIds, attributeCount), Arrays.copyOf(destinationIds, attributeCount),
+					Arrays.copyOf(refinabilities, attributeCount), Arrays.copyOf(ruleOffsets, attributeCount + 1),
+					Arrays.copyOf(startPointIds, ruleCount), Arrays.copyOf(includesSelf, ruleCount),
+					Arrays.copyOf(exceptionOffsets, ruleCount + 1), Arrays.copyOf(exceptionIds, exceptionCount));
+		}
+	}
+}
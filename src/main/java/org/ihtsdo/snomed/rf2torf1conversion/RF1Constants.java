@@ -5,10 +5,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.Types;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.zip.ZipInputStream;
 
+import org.h2.tools.SimpleResultSet;
 import org.ihtsdo.snomed.rf2torf1conversion.pojo.RF1SchemaConstants;
 
 public class RF1Constants implements RF1SchemaConstants{
@@ -171,11 +173,21 @@ public class RF1Constants implements RF1SchemaConstants{
 		return null;
 	}
 	
-	public static Byte getMagicNumberDebug(String refsetId, String sctid) {
-		if (rf1Map.containsKey(sctid)) {
-			return rf1Map.get(sctid);
+	/**
+	 * Table function for SQL, registered as rf1MagicNumbers, from which create_rf1_schema.sql
+	 * fills rf1_magic_number so that the translation can be made with a join
+	 */
+	public static ResultSet getMagicNumbers() {
+		SimpleResultSet rs = new SimpleResultSet();
+		rs.addColumn("SCTID", Types.BIGINT, 18, 0);
+		rs.addColumn("MAGICNUMBER", Types.TINYINT, 3, 0);
+		for (Map.Entry<String, Byte> entry : rf1Map.entrySet()) {
+			//Concepts with no RF1 value, and the placeholder for unspecified, have no row
+			if (entry.getValue() != null && entry.getKey().matches("[0-9]+")) {
+				rs.addRow(Long.parseLong(entry.getKey()), entry.getValue());
+			}
 		}
-		return null;
+		return rs;
 	}
 
 	private static Map<String, String> sourceMap = new HashMap<String, String>();
@@ -188,11 +200,18 @@ public class RF1Constants implements RF1SchemaConstants{
 		sourceMap.put("999000021000001108","UKDR"); /* SNOMED CT United Kingdom pharmacy extension reference set module (core metadata concept) */
 	}	
 	
-	public static String getModuleSource(String sctid) {
-		if (sourceMap.containsKey(sctid)) {
-			return sourceMap.get(sctid);
+	/**
+	 * Table function for SQL, registered as rf1ModuleSources, from which create_rf1_schema.sql
+	 * fills rf1_module_source.  Modules with no row are given the source ERRR.
+	 */
+	public static ResultSet getModuleSources() {
+		SimpleResultSet rs = new SimpleResultSet();
+		rs.addColumn("MODULEID", Types.BIGINT, 18, 0);
+		rs.addColumn("SOURCE", Types.VARCHAR, 4, 0);
+		for (Map.Entry<String, String> entry : sourceMap.entrySet()) {
+			rs.addRow(Long.parseLong(entry.getKey()), entry.getValue());
 		}
-		return "ERRR";
+		return rs;
 	}
 
 	public static byte translateActive(boolean rf2Active) {
@@ -212,30 +231,6 @@ public class RF1Constants implements RF1SchemaConstants{
 		}
 	}
 
-	public static byte translateDescType(String sctid) {
-		return sctid.equals(FSN) ? (byte) 3 : (byte) 2;
-	}
-
-	public static byte translateCaseSensitive(String sctid) {
-		return sctid.equals(ENTIRE_TERM_CS) ? (byte) 1 : (byte) 0;
-	}
-	
-	public static byte translateRefinability(String characteristicType) {
-		// Qualifying Relationships (1) are Mandatory Refinable (2)
-		// everything else is no refinable (0)
-		return characteristicType.equals(1) ? (byte) 2 : (byte) 0;
-	}
-
-	public static byte translateCharacteristic(String sctid) {
-		switch (sctid) {
-			case STATED: return 1;
-			case INFERRED: return 0;
-			case ADDITIONAL: return 3;
-		}
-		return 9;  //Invalid value
-	}
-	
-	
 	public static String lookupRelationshipId(String source, String type, String destination, String groupNum, boolean statedRelationships) throws RF1ConversionException, IOException {
 		Map<String, String> previousRelationships = statedRelationships ? previousStatedRelationships : previousInferredRelationships;
 		String key = source + DELIM + type + DELIM + destination + DELIM + groupNum;
@@ -287,30 +282,48 @@ public class RF1Constants implements RF1SchemaConstants{
 	
 	/**
 	 * Stores the previous relationships in a map of triple+group to sctid, so they can 
-	 * be used for reconciliation or augmented with relationships from available_sctids_partition_02
+	 * be used for reconciliation or augmented with relationships from available_sctids_partition_02.
+	 * The inferred and stated relationships are held in separate maps, so may be loaded concurrently.
 	 */
-	public static void loadPreviousRelationships(ZipInputStream zis, boolean statedRelationships) throws IOException {
-
-		String line;
-		boolean isFirstLine = true;
-		//We don't want to close this reader because we have more to get out of zis
-		BufferedReader br = new BufferedReader(new InputStreamReader(zis, StandardCharsets.UTF_8));
+	public static void loadPreviousRelationships(InputStream is, boolean statedRelationships) throws IOException {
+		Map<String, String> previousRelationships = statedRelationships ? previousStatedRelationships : previousInferredRelationships;
+		BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+		//Skip the header
+		String line = br.readLine();
+		StringBuilder key = new StringBuilder();
+		int[] fieldStarts = new int[RF1_IDX_RELATIONSHIPGROUP + 2];
 		while ((line = br.readLine()) != null) {
-			if (isFirstLine) {
-				isFirstLine = false;
-				continue;
+			//Find where each field starts rather than splitting the line, as there are millions of them
+			int fieldCount = 1;
+			for (int i = 0; i < line.length() && fieldCount <= RF1_IDX_RELATIONSHIPGROUP; i++) {
+				if (line.charAt(i) == '\t') {
+					fieldStarts[fieldCount++] = i + 1;
+				}
 			}
-			String[] lineItems = line.split(RF1_FIELD_DELIMITER);
-			String triplePlusGroup = lineItems[RF1_IDX_CONCEPTID1] + DELIM 
-									+ lineItems[RF1_IDX_RELATIONSHIPTYPE] + DELIM
-									+ lineItems[RF1_IDX_CONCEPTID2] + DELIM
-									+ lineItems[RF1_IDX_RELATIONSHIPGROUP];
-			if (statedRelationships) {
-				previousStatedRelationships.put(triplePlusGroup, lineItems[RF1_IDX_RELATIONSHIPID]);
-			} else {
-				previousInferredRelationships.put(triplePlusGroup, lineItems[RF1_IDX_RELATIONSHIPID]);
+			if (fieldCount <= RF1_IDX_RELATIONSHIPGROUP) {
+				continue;
 			}
+			int groupEnd = line.indexOf('\t', fieldStarts[RF1_IDX_RELATIONSHIPGROUP]);
+			fieldStarts[RF1_IDX_RELATIONSHIPGROUP + 1] = (groupEnd < 0 ? line.length() : groupEnd) + 1;
+			key.setLength(0);
+			appendField(key, line, fieldStarts, RF1_IDX_CONCEPTID1).append(DELIM);
+			appendField(key, line, fieldStarts, RF1_IDX_RELATIONSHIPTYPE).append(DELIM);
+			appendField(key, line, fieldStarts, RF1_IDX_CONCEPTID2).append(DELIM);
+			appendField(key, line, fieldStarts, RF1_IDX_RELATIONSHIPGROUP);
+			previousRelationships.put(key.toString(), line.substring(0, fieldStarts[RF1_IDX_RELATIONSHIPID + 1] - 1));
+		}
+	}
+	
+	private static StringBuilder appendField(StringBuilder sb, String line, int[] fieldStarts, int field) {
+		return sb.append(line, fieldStarts[field], fieldStarts[field + 1] - 1);
+	}
+	
+	public static void registerPreviousRelationship(String source, String type, String destination, String groupNum, String sctId, boolean statedRelationships) {
+		String triplePlusGroup = source + DELIM + type + DELIM + destination + DELIM + groupNum;
+		if (statedRelationships) {
+			previousStatedRelationships.put(triplePlusGroup, sctId);
+		} else {
+			previousInferredRelationships.put(triplePlusGroup, sctId);
 		}
-		
 	}
 }
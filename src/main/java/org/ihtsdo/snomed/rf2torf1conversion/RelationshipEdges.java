@@ -0,0 +1,161 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.util.Arrays;
+
+/**
+ * Holds relationships as packed longs - source, group, type and destination for each - so
+ * that a whole relationship snapshot can be held without an object per relationship.  The
+ * fields are packed in the order relationships sort, so that each can be compared in turn.
+ */
+public class RelationshipEdges implements RelationshipFileParser.RelationshipHandler {
+
+	private static final int FIELDS = 4;
+	private static final int SOURCE = 0;
+	private static final int GROUP = 1;
+	private static final int TYPE = 2;
+	private static final int DESTINATION = 3;
+	/** Ranges this small are sorted by insertion rather than partitioned again */
+	private static final int INSERTION_SORT_SIZE = 12;
+
+	private long[] edges = new long[FIELDS * 1024];
+	private int size = 0;
+
+	@Override
+	public void handle(long sourceId, long destinationId, int group, long typeId) {
+		if (size + FIELDS > edges.length) {
+			edges = Arrays.copyOf(edges, edges.length * 2);
+		}
+		edges[size + SOURCE] = sourceId;
+		edges[size + GROUP] = group;
+		edges[size + TYPE] = typeId;
+		edges[size + DESTINATION] = destinationId;
+		size += FIELDS;
+	}
+
+	/**
+	 * @return the number of relationships held
+	 */
+	public int size() {
+		return size / FIELDS;
+	}
+
+	public long getSourceId(int edge) {
+		return edges[edge * FIELDS + SOURCE];
+	}
+
+	public int getGroup(int edge) {
+		return (int) edges[edge * FIELDS + GROUP];
+	}
+
+	public long getTypeId(int edge) {
+		return edges[edge * FIELDS + TYPE];
+	}
+
+	public long getDestinationId(int edge) {
+		return edges[edge * FIELDS + DESTINATION];
+	}
+
+	/**
+	 * @return the ids of every source and destination concept, in ascending order
+	 */
+	public long[] getConceptIds() {
+		long[] ids = new long[size() * 2];
+		for (int i = 0; i < size(); i++) {
+			ids[i * 2] = getSourceId(i);
+			ids[i * 2 + 1] = getDestinationId(i);
+		}
+		Arrays.sort(ids);
+		int unique = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (unique == 0 || ids[i] != ids[unique - 1]) {
+				ids[unique++] = ids[i];
+			}
+		}
+		return Arrays.copyOf(ids, unique);
+	}
+
+	/**
+	 * Passes every relationship held on to the handler, in the order they are held
+	 * @return the number of relationships passed on
+	 */
+	public long replay(RelationshipFileParser.RelationshipHandler handler) throws RF1ConversionException {
+		for (int i = 0; i < size; i += FIELDS) {
+			handler.handle(edges[i + SOURCE], edges[i + DESTINATION], (int) edges[i + GROUP], edges[i + TYPE]);
+		}
+		return size();
+	}
+
+	/**
+	 * Sorts the relationships on source, group, type and destination - the same order as
+	 * Relationship.compareTo - and drops any that are repeated.
+	 */
+	public void sortAndDeduplicate() {
+		sort(0, size() - 1);
+		int kept = 0;
+		for (int i = 0; i < size; i += FIELDS) {
+			if (kept == 0 || compare(i, kept - FIELDS) != 0) {
+				System.arraycopy(edges, i, edges, kept, FIELDS);
+				kept += FIELDS;
+			}
+		}
+		size = kept;
+	}
+
+	// Quicksort of whole relationships in place, recursing into the smaller partition only
+	private void sort(int low, int high) {
+		while (high - low >= INSERTION_SORT_SIZE) {
+			int middle = (low + high) >>> 1;
+			//Median of three as the pivot, which is then held at the end of the range
+			if (compare(middle * FIELDS, low * FIELDS) < 0) {
+				swap(middle, low);
+			}
+			if (compare(high * FIELDS, low * FIELDS) < 0) {
+				swap(high, low);
+			}
+			if (compare(high * FIELDS, middle * FIELDS) < 0) {
+				swap(high, middle);
+			}
+			swap(middle, high);
+			int pivot = high * FIELDS;
+			int store = low;
+			for (int i = low; i < high; i++) {
+				if (compare(i * FIELDS, pivot) < 0) {
+					swap(i, store++);
+				}
+			}
+			swap(store, high);
+			if (store - low < high - store) {
+				sort(low, store - 1);
+				low = store + 1;
+			} else {
+				sort(store + 1, high);
+				high = store - 1;
+			}
+		}
+		for (int i = low + 1; i <= high; i++) {
+			for (int j = i; j > low && compare(j * FIELDS, (j - 1) * FIELDS) < 0; j--) {
+				swap(j, j - 1);
+			}
+		}
+	}
+
+	private int compare(int a, int b) {
+		for (int field = 0; field < FIELDS; field++) {
+			int result = Long.compare(edges[a + field], edges[b + field]);
+			if (result != 0) {
+				return result;
+			}
+		}
+		return 0;
+	}
+
+	private void swap(int a, int b) {
+		if (a != b) {
+			for (int field = 0; field < FIELDS; field++) {
+				long held = edges[a * FIELDS + field];
+				edges[a * FIELDS + field] = edges[b * FIELDS + field];
+				edges[b * FIELDS + field] = held;
+			}
+		}
+	}
+}
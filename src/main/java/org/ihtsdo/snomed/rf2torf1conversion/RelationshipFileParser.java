@@ -0,0 +1,225 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.ihtsdo.snomed.rf2torf1conversion.pojo.RF2SchemaConstants;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * Reads an RF2 relationship file by memory mapping it and scanning the bytes of each line,
+ * so that no Strings are created.  All the columns of the relationship file are numeric, so
+ * the fields needed are parsed directly to longs, and inactive or additional relationships
+ * are passed over before anything is handed on.  The header, and any other line that is
+ * not entirely numeric, is skipped.
+ * With more than one thread, each mapped window is cut into chunks on line boundaries which
+ * are parsed in parallel into their own edge buffers.  The buffers are then handed on in
+ * file order from the calling thread, so the handler need not be thread safe and sees
+ * exactly the same sequence of relationships however many threads are used.
+ */
+public class RelationshipFileParser implements RF2SchemaConstants {
+
+	/** Largest part of the file mapped at once, so that files over 2GB can be read */
+	private static final long MAX_WINDOW = 1L << 30;
+	private static final long ADDITIONAL_RELATIONSHIP_ID = Long.parseLong(ADDITIONAL_RELATIONSHIP);
+	private static final int COLUMN_COUNT = REL_MAX_COLUMN + 1;
+	/** Smallest chunk worth handing to another thread */
+	private static final int DEFAULT_MIN_CHUNK = 1 << 20;
+	/** Chunks per thread, so that a slow chunk doesn't leave the other threads idle */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	public interface RelationshipHandler {
+		void handle(long sourceId, long destinationId, int group, long typeId) throws RF1ConversionException;
+	}
+
+	private final File file;
+	private final int threadCount;
+	private final int minChunk;
+	private long relationshipsParsed = 0;
+	private Stopwatch stopwatch;
+
+	public RelationshipFileParser(File file) {
+		this(file, 1);
+	}
+
+	public RelationshipFileParser(File file, int threadCount) {
+		this(file, threadCount, DEFAULT_MIN_CHUNK);
+	}
+
+	RelationshipFileParser(File file, int threadCount, int minChunk) {
+		this.file = file;
+		this.threadCount = Math.max(threadCount, 1);
+		this.minChunk = Math.max(minChunk, 1);
+	}
+
+	/**
+	 * Passes each active, non-additional relationship in the file to the handler, in file order
+	 * and always from the calling thread
+	 */
+	public void parse(RelationshipHandler handler) throws RF1ConversionException {
+		stopwatch = Stopwatch.createStarted();
+		ExecutorService executor = threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			long fileSize = channel.size();
+			long position = 0;
+			while (position < fileSize) {
+				long windowSize = Math.min(MAX_WINDOW, fileSize - position);
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+				boolean lastWindow = position + windowSize == fileSize;
+				int end = lastWindow ? (int) windowSize : lastLineEnd(window, (int) windowSize);
+				if (end == 0) {
+					throw new RF1ConversionException("Line longer than " + MAX_WINDOW + " bytes in " + file);
+				}
+				if (executor == null) {
+					relationshipsParsed += parseLines(window, 0, end, handler);
+				} else {
+					relationshipsParsed += parseChunks(window, end, handler, executor);
+				}
+				position += end;
+			}
+		} catch (IOException e) {
+			throw new RF1ConversionException("Failed to read relationship file " + file, e);
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+		stopwatch.stop();
+	}
+
+	private long parseChunks(final MappedByteBuffer window, int end, RelationshipHandler handler, ExecutorService executor) throws RF1ConversionException {
+		int chunkSize = Math.max(end / (threadCount * CHUNKS_PER_THREAD), minChunk);
+		List<Future<RelationshipEdges>> chunks = new ArrayList<Future<RelationshipEdges>>();
+		int start = 0;
+		while (start < end) {
+			final int chunkStart = start;
+			final int chunkEnd = end - start <= chunkSize ? end : nextLineEnd(window, start + chunkSize, end);
+			chunks.add(executor.submit(new Callable<RelationshipEdges>() {
+				@Override
+				public RelationshipEdges call() throws RF1ConversionException {
+					RelationshipEdges edges = new RelationshipEdges();
+					parseLines(window, chunkStart, chunkEnd, edges);
+					return edges;
+				}
+			}));
+			start = chunkEnd;
+		}
+
+		// Merge the chunks back in file order, dropping each buffer once it's been handed on
+		long handled = 0;
+		try {
+			for (int i = 0; i < chunks.size(); i++) {
+				handled += chunks.get(i).get().replay(handler);
+				chunks.set(i, null);
+			}
+		} catch (InterruptedException e) {
+			throw new RF1ConversionException("Interrupted while parsing " + file, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RF1ConversionException) {
+				throw (RF1ConversionException) e.getCause();
+			}
+			throw new RF1ConversionException("Failed to parse " + file, e.getCause());
+		}
+		return handled;
+	}
+
+	/**
+	 * @return the position just after the first line feed at or after from, or end if there isn't one
+	 */
+	static int nextLineEnd(MappedByteBuffer buffer, int from, int end) {
+		for (int i = from; i < end; i++) {
+			if (buffer.get(i) == '\n') {
+				return i + 1;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * @return the position just after the last line feed in the buffer, or 0 if there isn't one
+	 */
+	static int lastLineEnd(MappedByteBuffer buffer, int limit) {
+		for (int i = limit - 1; i >= 0; i--) {
+			if (buffer.get(i) == '\n') {
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Parses the lines between start and end, which must fall on line boundaries.
+	 * @return the number of relationships passed to the handler
+	 */
+	static long parseLines(MappedByteBuffer buffer, int start, int end, RelationshipHandler handler) throws RF1ConversionException {
+		long[] fields = new long[COLUMN_COUNT];
+		long handled = 0;
+		int field = 0;
+		long value = 0;
+		boolean numeric = true;
+		boolean lineStarted = false;
+		for (int i = start; i <= end; i++) {
+			//The end of the range also ends any final line that has no line feed
+			byte b = i < end ? buffer.get(i) : (byte) '\n';
+			if (b >= '0' && b <= '9') {
+				value = value * 10 + (b - '0');
+				lineStarted = true;
+			} else if (b == '\t') {
+				if (field < COLUMN_COUNT) {
+					fields[field] = value;
+				}
+				field++;
+				value = 0;
+				lineStarted = true;
+			} else if (b == '\n') {
+				if (lineStarted && numeric && field == REL_MAX_COLUMN) {
+					fields[field] = value;
+					if (isWanted(fields)) {
+						handler.handle(fields[REL_IDX_SOURCEID], fields[REL_IDX_DESTINATIONID],
+								(int) fields[REL_IDX_RELATIONSHIPGROUP], fields[REL_IDX_TYPEID]);
+						handled++;
+					}
+				}
+				field = 0;
+				value = 0;
+				numeric = true;
+				lineStarted = false;
+			} else if (b != '\r') {
+				numeric = false;
+				lineStarted = true;
+			}
+		}
+		return handled;
+	}
+
+	// Only active relationships are of interest, and not additional ones
+	private static boolean isWanted(long[] fields) {
+		return fields[REL_IDX_ACTIVE] == 1 && fields[REL_IDX_CHARACTERISTICTYPEID] != ADDITIONAL_RELATIONSHIP_ID;
+	}
+
+	public long getRelationshipsParsed() {
+		return relationshipsParsed;
+	}
+
+	/**
+	 * @return the size of the file, how long it took to read and the rate at which it was read
+	 */
+	public String getThroughputSummary() {
+		double megabytes = file.length() / (1024d * 1024d);
+		double seconds = Math.max(stopwatch.elapsed(TimeUnit.MICROSECONDS), 1) / 1000000d;
+		return String.format("Parsed %d relationships from %s (%.1f MB) in %.3fs using %d thread(s), %.1f MB/s",
+				relationshipsParsed, file.getName(), megabytes, seconds, threadCount, megabytes / seconds);
+	}
+}
@@ -0,0 +1,392 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import static org.ihtsdo.snomed.rf2torf1conversion.GlobalUtils.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.ihtsdo.snomed.rf2torf1conversion.pojo.RF1SchemaConstants;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Stopwatch;
+import com.google.common.io.Files;
+
+/**
+ * Compares two RF1 archives, typically the output of two builds of the converter from the same
+ * RF2, without loading either into the database.  The rows of each pair of files are sorted by
+ * the file's key columns, spilling to disk where they won't fit in memory, and the sorted rows
+ * are then merged to count those added, removed and changed.
+ *
+ * Files are paired by their path within the archive, ignoring any dates in the path.
+ */
+public class ReleaseComparator {
+
+	private static final long DEFAULT_SORT_MEMORY_MB = 64;
+	private static final int SAMPLES_SHOWN = 10;
+	private static final String DATE_PATTERN = "\\d{8}";
+	private static final String TEXT_FILE = ".txt";
+
+	/** Key columns of each known RF1 file, by its header.  Files not listed are keyed by the whole row. */
+	private static final Map<String, String[]> KEY_COLUMNS = new HashMap<String, String[]>();
+	static {
+		KEY_COLUMNS.put("CONCEPTID\tCONCEPTSTATUS\tFULLYSPECIFIEDNAME\tCTV3ID\tSNOMEDID\tISPRIMITIVE",
+				new String[] { "CONCEPTID" });
+		KEY_COLUMNS.put("DESCRIPTIONID\tDESCRIPTIONSTATUS\tCONCEPTID\tTERM\tINITIALCAPITALSTATUS\tDESCRIPTIONTYPE\tLANGUAGECODE",
+				new String[] { "DESCRIPTIONID" });
+		//Relationship Ids are generated, so a relationship is identified by its content
+		KEY_COLUMNS.put("RELATIONSHIPID\tCONCEPTID1\tRELATIONSHIPTYPE\tCONCEPTID2\tCHARACTERISTICTYPE\tREFINABILITY\tRELATIONSHIPGROUP",
+				new String[] { "CONCEPTID1", "RELATIONSHIPTYPE", "CONCEPTID2", "RELATIONSHIPGROUP", "CHARACTERISTICTYPE" });
+		KEY_COLUMNS.put("CONCEPTID\tSNOMEDID\tFULLYSPECIFIEDNAME\tDEFINITION",
+				new String[] { "CONCEPTID" });
+		KEY_COLUMNS.put("COMPONENTID\tRELEASEVERSION\tCHANGETYPE\tSTATUS\tREASON",
+				new String[] { "COMPONENTID", "RELEASEVERSION" });
+		KEY_COLUMNS.put("SUBSETID\tMEMBERID\tMEMBERSTATUS\tLINKEDID",
+				new String[] { "SUBSETID", "MEMBERID" });
+		KEY_COLUMNS.put("SUBSETID\tSUBSETORIGINALID\tSUBSETVERSION\tSUBSETNAME\tSUBSETTYPE\tLANGUAGECODE\tREALMID\tCONTEXTID",
+				new String[] { "SUBSETORIGINALID" });
+		KEY_COLUMNS.put("TYPE\tPATH\tBYTES\tLINES\tSHA-256",
+				new String[] { "TYPE", "PATH" });
+	}
+
+	private final long sortMemory;
+	private final File workArea;
+
+	public ReleaseComparator(long sortMemory, File workArea) {
+		this.sortMemory = sortMemory;
+		this.workArea = workArea;
+	}
+
+	public static void main(String[] args) throws RF1ConversionException {
+		long sortMemoryMb = DEFAULT_SORT_MEMORY_MB;
+		List<File> archives = new ArrayList<File>();
+		boolean isSortMemory = false;
+		for (String thisArg : args) {
+			if (thisArg.equals("-v")) {
+				GlobalUtils.verbose = true;
+			} else if (thisArg.equals("-m")) {
+				isSortMemory = true;
+			} else if (isSortMemory) {
+				try {
+					sortMemoryMb = Long.parseLong(thisArg);
+				} catch (NumberFormatException e) {
+					throw new RF1ConversionException(thisArg + " is not a valid amount of memory in MB for sorting.");
+				}
+				isSortMemory = false;
+			} else {
+				archives.add(new File(thisArg));
+			}
+		}
+		if (archives.size() != 2) {
+			print("Usage: java ConversionManager compare [-v] [-m <sort memory MB>] <previous RF1 archive> <new RF1 archive>");
+			print("  v - show a sample of the rows that differ in each file");
+			print("  m - memory in MB used to sort each file before spilling to disk, default " + DEFAULT_SORT_MEMORY_MB);
+			exit();
+		}
+		for (File archive : archives) {
+			if (!archive.isFile() || !archive.canRead()) {
+				throw new RF1ConversionException(archive + " does not appear to be a valid RF1 archive.");
+			}
+		}
+
+		File workArea = Files.createTempDir();
+		boolean identical;
+		try {
+			ReleaseComparator comparator = new ReleaseComparator(sortMemoryMb * 1024 * 1024, workArea);
+			identical = comparator.compare(archives.get(0), archives.get(1));
+		} finally {
+			try {
+				FileUtils.deleteDirectory(workArea);
+			} catch (IOException e) {
+				debug("Unable to remove sort area " + workArea + ": " + e.getMessage());
+			}
+		}
+		if (!identical) {
+			exit();
+		}
+	}
+
+	/**
+	 * Compares each file of the two archives, printing a report of the differences
+	 * @return true if the archives hold the same rows
+	 */
+	public boolean compare(File previousArchive, File newArchive) throws RF1ConversionException {
+		print("Comparing " + previousArchive + " with " + newArchive);
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		// The two sides of each file are sorted concurrently
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try (ZipFile previous = new ZipFile(previousArchive); ZipFile current = new ZipFile(newArchive)) {
+			Map<String, ZipEntry> previousEntries = getEntries(previous);
+			Map<String, ZipEntry> newEntries = getEntries(current);
+			TreeSet<String> paths = new TreeSet<String>(previousEntries.keySet());
+			paths.addAll(newEntries.keySet());
+
+			boolean identical = true;
+			for (String path : paths) {
+				ZipEntry previousEntry = previousEntries.get(path);
+				ZipEntry newEntry = newEntries.get(path);
+				if (previousEntry == null) {
+					print("Only in new release: " + newEntry.getName());
+					identical = false;
+				} else if (newEntry == null) {
+					print("Only in previous release: " + previousEntry.getName());
+					identical = false;
+				} else if (!path.endsWith(TEXT_FILE)) {
+					if (previousEntry.getCrc() != newEntry.getCrc() || previousEntry.getSize() != newEntry.getSize()) {
+						print(newEntry.getName() + ": content differs");
+						identical = false;
+					}
+				} else {
+					FileDifference difference = compareFile(previous, previousEntry, current, newEntry, executor);
+					print(difference.toString());
+					for (String sample : difference.samples) {
+						print(sample);
+					}
+					identical &= difference.isIdentical();
+				}
+			}
+			print("Comparison completed in " + stopwatch + (identical ? ", the releases hold the same rows." : ", the releases differ."));
+			return identical;
+		} catch (IOException e) {
+			throw new RF1ConversionException("Failed to compare " + previousArchive + " with " + newArchive, e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the file entries of the archive, keyed by their path with any dates removed
+	 */
+	private Map<String, ZipEntry> getEntries(ZipFile archive) {
+		Map<String, ZipEntry> entries = new TreeMap<String, ZipEntry>();
+		Enumeration<? extends ZipEntry> zipEntries = archive.entries();
+		while (zipEntries.hasMoreElements()) {
+			ZipEntry entry = zipEntries.nextElement();
+			if (!entry.isDirectory()) {
+				entries.put(entry.getName().replaceAll(DATE_PATTERN, "DATE"), entry);
+			}
+		}
+		return entries;
+	}
+
+	private FileDifference compareFile(ZipFile previous, ZipEntry previousEntry, ZipFile current, ZipEntry newEntry,
+			ExecutorService executor) throws IOException, RF1ConversionException {
+		FileDifference difference = new FileDifference(newEntry.getName());
+		try (BufferedReader previousReader = openEntry(previous, previousEntry);
+				BufferedReader newReader = openEntry(current, newEntry)) {
+			String previousHeader = previousReader.readLine();
+			String newHeader = newReader.readLine();
+			if (previousHeader == null || newHeader == null || !previousHeader.equals(newHeader)) {
+				difference.headerChanged = true;
+				return difference;
+			}
+			RowComparator rowComparator = new RowComparator(previousHeader);
+			ExternalSorter sorter = new ExternalSorter(workArea, sortMemory, rowComparator);
+			Future<ExternalSorter.SortedLines> previousSort = executor.submit(sortTask(sorter, previousReader));
+			Future<ExternalSorter.SortedLines> newSort = executor.submit(sortTask(sorter, newReader));
+			try (ExternalSorter.SortedLines previousLines = getSorted(previousSort);
+					ExternalSorter.SortedLines newLines = getSorted(newSort)) {
+				mergeDiff(previousLines, newLines, rowComparator, difference);
+			}
+		}
+		return difference;
+	}
+
+	private BufferedReader openEntry(ZipFile archive, ZipEntry entry) throws IOException {
+		return new BufferedReader(new InputStreamReader(archive.getInputStream(entry), StandardCharsets.UTF_8));
+	}
+
+	private Callable<ExternalSorter.SortedLines> sortTask(final ExternalSorter sorter, final BufferedReader reader) {
+		return new Callable<ExternalSorter.SortedLines>() {
+			@Override
+			public ExternalSorter.SortedLines call() throws RF1ConversionException {
+				return sorter.sort(reader);
+			}
+		};
+	}
+
+	private ExternalSorter.SortedLines getSorted(Future<ExternalSorter.SortedLines> sort) throws RF1ConversionException {
+		try {
+			return sort.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RF1ConversionException) {
+				throw (RF1ConversionException) e.getCause();
+			}
+			throw new RF1ConversionException("Failed to sort RF1 file", e.getCause());
+		} catch (InterruptedException e) {
+			throw new RF1ConversionException("Interrupted while sorting RF1 file", e);
+		}
+	}
+
+	/**
+	 * Walks both sets of sorted rows together.  Rows sharing a key are paired in the order
+	 * of their full content, so any surplus on either side is counted as added or removed.
+	 */
+	void mergeDiff(ExternalSorter.SortedLines previousLines, ExternalSorter.SortedLines newLines,
+			RowComparator rowComparator, FileDifference difference) throws RF1ConversionException {
+		String previousRow = previousLines.next();
+		String newRow = newLines.next();
+		while (previousRow != null || newRow != null) {
+			int keyOrder;
+			if (previousRow == null) {
+				keyOrder = 1;
+			} else if (newRow == null) {
+				keyOrder = -1;
+			} else {
+				keyOrder = rowComparator.compareKeys(previousRow, newRow);
+			}
+
+			if (keyOrder < 0) {
+				difference.removed++;
+				difference.addSample("- " + previousRow);
+			} else if (keyOrder > 0) {
+				difference.added++;
+				difference.addSample("+ " + newRow);
+			} else if (!previousRow.equals(newRow)) {
+				difference.changed++;
+				difference.addSample("- " + previousRow);
+				difference.addSample("+ " + newRow);
+			}
+
+			if (keyOrder <= 0) {
+				difference.previousRows++;
+				previousRow = previousLines.next();
+			}
+			if (keyOrder >= 0) {
+				difference.newRows++;
+				newRow = newLines.next();
+			}
+		}
+	}
+
+	/**
+	 * Orders rows by their key columns and then by the whole row, without splitting them up.
+	 */
+	static class RowComparator implements Comparator<String> {
+		private final int[] keyIndexes;
+
+		RowComparator(String header) {
+			String[] keyColumns = KEY_COLUMNS.get(header);
+			if (keyColumns == null) {
+				keyIndexes = new int[0];
+			} else {
+				List<String> columns = Arrays.asList(header.split(RF1SchemaConstants.RF1_FIELD_DELIMITER));
+				keyIndexes = new int[keyColumns.length];
+				for (int i = 0; i < keyColumns.length; i++) {
+					keyIndexes[i] = columns.indexOf(keyColumns[i]);
+				}
+			}
+		}
+
+		@Override
+		public int compare(String a, String b) {
+			int result = compareKeys(a, b);
+			return result != 0 ? result : a.compareTo(b);
+		}
+
+		/**
+		 * @return the order of the two rows by their key columns alone, or of the whole rows where the file has no key.
+		 */
+		int compareKeys(String a, String b) {
+			if (keyIndexes.length == 0) {
+				return a.compareTo(b);
+			}
+			for (int keyIndex : keyIndexes) {
+				int aStart = fieldStart(a, keyIndex);
+				int bStart = fieldStart(b, keyIndex);
+				int result = compareField(a, aStart, fieldEnd(a, aStart), b, bStart, fieldEnd(b, bStart));
+				if (result != 0) {
+					return result;
+				}
+			}
+			return 0;
+		}
+
+		private static int fieldStart(String row, int index) {
+			int start = 0;
+			for (int i = 0; i < index; i++) {
+				int delimiter = row.indexOf('\t', start);
+				if (delimiter < 0) {
+					return row.length();
+				}
+				start = delimiter + 1;
+			}
+			return start;
+		}
+
+		private static int fieldEnd(String row, int start) {
+			int end = row.indexOf('\t', start);
+			return end < 0 ? row.length() : end;
+		}
+
+		private static int compareField(String a, int aStart, int aEnd, String b, int bStart, int bEnd) {
+			int aLength = aEnd - aStart;
+			int bLength = bEnd - bStart;
+			int length = Math.min(aLength, bLength);
+			for (int i = 0; i < length; i++) {
+				int result = a.charAt(aStart + i) - b.charAt(bStart + i);
+				if (result != 0) {
+					return result;
+				}
+			}
+			return aLength - bLength;
+		}
+	}
+
+	static class FileDifference {
+		final String path;
+		boolean headerChanged = false;
+		long previousRows = 0;
+		long newRows = 0;
+		long added = 0;
+		long removed = 0;
+		long changed = 0;
+		final List<String> samples = new ArrayList<String>();
+
+		FileDifference(String path) {
+			this.path = path;
+		}
+
+		boolean isIdentical() {
+			return !headerChanged && added == 0 && removed == 0 && changed == 0;
+		}
+
+		void addSample(String row) {
+			if (verbose && samples.size() < SAMPLES_SHOWN * 2) {
+				samples.add("    " + row);
+			}
+		}
+
+		@Override
+		public String toString() {
+			if (headerChanged) {
+				return path + ": header differs, rows not compared";
+			}
+			return path + ": " + Joiner.on(", ").join(
+					previousRows + " previous rows",
+					newRows + " new rows",
+					added + " added",
+					removed + " removed",
+					changed + " changed");
+		}
+	}
+}
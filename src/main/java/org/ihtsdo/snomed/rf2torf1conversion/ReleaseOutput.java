@@ -0,0 +1,57 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.File;
+import java.io.OutputStream;
+
+/**
+ * Destination for the files of the RF1 release.  Files are addressed by their path
+ * within the release, using "/" as the separator.
+ */
+public interface ReleaseOutput {
+
+	/**
+	 * Produces the content of a single file of the release
+	 */
+	interface EntryWriter {
+		void writeTo(OutputStream out) throws RF1ConversionException;
+	}
+
+	/**
+	 * Sees the content of an existing file as it is copied into the release
+	 */
+	interface EntryFilter {
+		OutputStream wrap(OutputStream out);
+	}
+
+	/**
+	 * Writes a file of the release.  May be called from several threads at once.
+	 * The writer must not close the stream it is given.
+	 */
+	void writeEntry(String path, EntryWriter writer) throws RF1ConversionException;
+
+	/**
+	 * Copies an existing file into the release
+	 */
+	void addFile(String path, File file) throws RF1ConversionException;
+
+	/**
+	 * Copies an existing file into the release through the given filter.  The copy may be
+	 * made later on another thread, so the filter has only seen it all once awaitFiles returns.
+	 */
+	void addFile(String path, File file, EntryFilter filter) throws RF1ConversionException;
+
+	/**
+	 * Waits for the files added so far to be copied into the release
+	 */
+	void awaitFiles() throws RF1ConversionException;
+
+	/**
+	 * Completes the release archive once all files have been written
+	 */
+	void finish() throws RF1ConversionException;
+
+	/**
+	 * Abandons an incomplete release, removing anything partially written
+	 */
+	void discard();
+}
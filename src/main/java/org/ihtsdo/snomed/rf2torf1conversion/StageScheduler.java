@@ -0,0 +1,189 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import static org.ihtsdo.snomed.rf2torf1conversion.GlobalUtils.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the stages of a conversion on a shared thread pool, each as soon as the stages it
+ * depends on have completed, so that independent I/O and CPU bound work can overlap.
+ * Once all stages are complete, the critical path through them can be reported - the
+ * chain of stages that determined how long the whole took.
+ */
+public class StageScheduler {
+
+	private final int threadCount;
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private ExecutorService executor;
+	private int stagesRunning = 0;
+	private int stagesCompleted = 0;
+	private Throwable failure = null;
+	private long startTime;
+
+	public StageScheduler(int threadCount) {
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * @param dependencies stages that must complete before this one starts.  Null entries are
+	 * ignored, so that optional stages can be passed without checking for them.
+	 */
+	synchronized public Stage add(String name, Callable<Void> task, Stage... dependencies) {
+		if (executor != null) {
+			throw new IllegalStateException("Stages must all be added before the scheduler is run");
+		}
+		Stage stage = new Stage(name, task);
+		for (Stage dependency : dependencies) {
+			if (dependency != null) {
+				stage.dependencies.add(dependency);
+				dependency.dependents.add(stage);
+			}
+		}
+		stage.waitingOn = stage.dependencies.size();
+		stages.add(stage);
+		return stage;
+	}
+
+	/**
+	 * Runs all the stages, returning once they are complete.  If any stage fails, no further
+	 * stages are started and the failure is thrown once those already running have finished.
+	 */
+	synchronized public void run() throws RF1ConversionException {
+		startTime = System.nanoTime();
+		executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			for (Stage stage : stages) {
+				if (stage.waitingOn == 0) {
+					submit(stage);
+				}
+			}
+			while (stagesRunning > 0) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			throw new RF1ConversionException("Interrupted while running conversion stages", e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (failure instanceof RF1ConversionException) {
+			throw (RF1ConversionException) failure;
+		} else if (failure != null) {
+			throw new RF1ConversionException("Conversion stage failed", failure);
+		} else if (stagesCompleted < stages.size()) {
+			throw new RF1ConversionException("Conversion stages have a circular dependency, " + (stages.size() - stagesCompleted) + " could not be run");
+		}
+	}
+
+	private void submit(final Stage stage) {
+		stagesRunning++;
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				stage.start = System.nanoTime();
+				debug("Starting stage: " + stage.name);
+				Throwable stageFailure = null;
+				try {
+					stage.task.call();
+				} catch (Throwable t) {
+					stageFailure = t;
+				}
+				stage.end = System.nanoTime();
+				completed(stage, stageFailure);
+			}
+		});
+	}
+
+	synchronized private void completed(Stage stage, Throwable stageFailure) {
+		stagesRunning--;
+		if (stageFailure != null) {
+			if (failure == null) {
+				failure = stageFailure;
+			}
+		} else {
+			stagesCompleted++;
+			stage.done = true;
+			debug("Completed stage: " + stage.name + " in " + formatNanos(stage.end - stage.start));
+			if (failure == null) {
+				for (Stage dependent : stage.dependents) {
+					if (--dependent.waitingOn == 0) {
+						submit(dependent);
+					}
+				}
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return the chain of stages, from first to last, that ended with the last stage to complete.
+	 * Each stage is preceded by the dependency that was last to complete, and so held it back.
+	 */
+	synchronized public List<Stage> getCriticalPath() {
+		List<Stage> path = new ArrayList<Stage>();
+		Stage last = null;
+		for (Stage stage : stages) {
+			if (stage.done && (last == null || stage.end > last.end)) {
+				last = stage;
+			}
+		}
+		while (last != null) {
+			path.add(last);
+			Stage holdingBack = null;
+			for (Stage dependency : last.dependencies) {
+				if (holdingBack == null || dependency.end > holdingBack.end) {
+					holdingBack = dependency;
+				}
+			}
+			last = holdingBack;
+		}
+		Collections.reverse(path);
+		return path;
+	}
+
+	/**
+	 * @return a description of the critical path, with the time each stage started and how long it took
+	 */
+	synchronized public String getCriticalPathReport() {
+		StringBuilder sb = new StringBuilder("Critical path:");
+		long pathTime = 0;
+		for (Stage stage : getCriticalPath()) {
+			sb.append("\n  ").append(stage.name)
+				.append(" started at ").append(formatNanos(stage.start - startTime))
+				.append(", took ").append(formatNanos(stage.end - stage.start));
+			pathTime += stage.end - stage.start;
+		}
+		sb.append("\n  ").append(formatNanos(pathTime)).append(" spent on the critical path");
+		return sb.toString();
+	}
+
+	private static String formatNanos(long nanos) {
+		return String.format("%.3fs", TimeUnit.NANOSECONDS.toMillis(nanos) / 1000d);
+	}
+
+	public static class Stage {
+		final String name;
+		final Callable<Void> task;
+		final List<Stage> dependencies = new ArrayList<Stage>();
+		final List<Stage> dependents = new ArrayList<Stage>();
+		int waitingOn;
+		long start;
+		long end;
+		boolean done = false;
+
+		Stage(String name, Callable<Void> task) {
+			this.name = name;
+			this.task = task;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Works out every subtype of every concept in the inferred hierarchy and loads them into
+ * rf2_transitiveclosure, so that subsumption can be tested in SQL with an indexed join.
+ * The descendants of each concept are found on a thread pool, a block of concepts at a time,
+ * and the blocks are written out in concept order so the file is the same on every run.
+ */
+public class TransitiveClosure {
+
+	private static final String TABLE = "rf2_transitiveclosure";
+	/** Concepts whose descendants are found as one task */
+	private static final int CONCEPTS_PER_TASK = 256;
+	/** Tasks running or waiting to be written, per thread, which bounds the memory held */
+	private static final int TASKS_PER_THREAD = 4;
+	private static final String HEADER = "subtypeId\tsupertypeId\teffectiveTime\tactive";
+	private static final String ROW_END = "\r\n";
+
+	private final ConceptGraph graph;
+	private final int threadCount;
+	private final AtomicLong rowCount = new AtomicLong();
+
+	public TransitiveClosure(ConceptGraph graph, int threadCount) {
+		this.graph = graph;
+		this.threadCount = Math.max(threadCount, 1);
+	}
+
+	/**
+	 * Writes one row for each subtype and supertype pair, supertypes ascending and then their
+	 * subtypes ascending, in the tab delimited form CSVREAD expects.
+	 * @return the number of rows written
+	 */
+	public long write(File file, String effectiveTime) throws RF1ConversionException {
+		final long[] conceptIds = graph.getConceptIds();
+		final String rowSuffix = "\t" + effectiveTime + "\t1" + ROW_END;
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		Deque<Future<String>> pending = new ArrayDeque<Future<String>>();
+		rowCount.set(0);
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+			out.write(HEADER + ROW_END);
+			int nextConcept = 0;
+			while (nextConcept < conceptIds.length || !pending.isEmpty()) {
+				while (nextConcept < conceptIds.length && pending.size() < threadCount * TASKS_PER_THREAD) {
+					final int first = nextConcept;
+					final int last = Math.min(first + CONCEPTS_PER_TASK, conceptIds.length);
+					pending.add(executor.submit(new Callable<String>() {
+						@Override
+						public String call() {
+							StringBuilder rows = new StringBuilder();
+							for (int i = first; i < last; i++) {
+								long[] subtypeIds = graph.getAllDescendents(conceptIds[i]);
+								for (long subtypeId : subtypeIds) {
+									rows.append(subtypeId).append('\t').append(conceptIds[i]).append(rowSuffix);
+								}
+								rowCount.addAndGet(subtypeIds.length);
+							}
+							return rows.toString();
+						}
+					}));
+					nextConcept = last;
+				}
+				out.write(pending.removeFirst().get());
+			}
+		} catch (IOException e) {
+			throw new RF1ConversionException("Failed to write transitive closure to " + file, e);
+		} catch (InterruptedException e) {
+			throw new RF1ConversionException("Interrupted while calculating transitive closure", e);
+		} catch (ExecutionException e) {
+			throw new RF1ConversionException("Failed to calculate transitive closure", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return rowCount.get();
+	}
+
+	/**
+	 * Replaces the contents of rf2_transitiveclosure with the rows written to the file.  The
+	 * indexes are dropped while the rows are loaded and created again afterwards, which is
+	 * quicker than maintaining them row by row.
+	 */
+	public static void load(DBManager db, File file) throws RF1ConversionException {
+		String[] statements = new String[] {
+				"TRUNCATE TABLE " + TABLE,
+				"DROP INDEX IF EXISTS idx_tc_sub",
+				"DROP INDEX IF EXISTS idx_tc_sup",
+				"INSERT INTO " + TABLE + " SELECT * FROM CSVREAD('" + file.getPath() + "', null, 'UTF-8', chr(9), chr(21))",
+				"CREATE INDEX idx_tc_sub ON " + TABLE + "(subtypeId, supertypeId)",
+				"CREATE INDEX idx_tc_sup ON " + TABLE + "(supertypeId)" };
+		try (Connection conn = db.getConnection(); Statement stmt = conn.createStatement()) {
+			for (String sql : statements) {
+				GlobalUtils.debug("\nRunning: " + sql);
+				stmt.execute(sql);
+			}
+		} catch (SQLException e) {
+			throw new RF1ConversionException("Failed to load " + TABLE + " from " + file, e);
+		}
+	}
+}
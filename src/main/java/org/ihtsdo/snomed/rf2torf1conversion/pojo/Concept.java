@@ -27,8 +27,10 @@ public class Concept implements Comparable<Concept> {
 	}
 
 	public static Concept registerConcept(String sctIdStr) {
+		return registerConcept(Long.parseLong(sctIdStr));
+	}
 
-		Long sctId = new Long(sctIdStr);
+	public static Concept registerConcept(long sctId) {
 		// Do we know about this concept?
 		Concept concept;
 		if (!allInferredConcepts.containsKey(sctId)) {
@@ -54,16 +56,13 @@ public class Concept implements Comparable<Concept> {
 		}
 	}
 	
-	public boolean hasAttribute (QualifyingRelationshipAttribute td) {
-		boolean attributeFound = false;
+	public boolean hasAttribute (long typeId, long destinationId) {
 		for (Relationship r : attributes) {
-			if (r.getTypeConcept().equals(td.getType()) 
-				&& r.getDestinationConcept().equals(td.getDestination())) {
-				attributeFound = true;
-				break;
+			if (r.getTypeId() == typeId && r.getDestinationId() == destinationId) {
+				return true;
 			}
 		}
-		return attributeFound;
+		return false;
 	}
 
 	@Override
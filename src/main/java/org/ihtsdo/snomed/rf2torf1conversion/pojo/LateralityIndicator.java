@@ -1,26 +1,117 @@
 package org.ihtsdo.snomed.rf2torf1conversion.pojo;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.ihtsdo.snomed.rf2torf1conversion.RF1ConversionException;
+
+/**
+ * An immutable index of the laterality indicators in a laterality reference file, held as
+ * sorted SCTIDs with a parallel array of indicator values so that lookups are a binary
+ * search over primitives.  Each reference file is only read once, however many times it is
+ * asked for, and the most recently loaded index is the one used by the static lookups,
+ * which are safe to call from any thread including from SQL.
+ */
 public class LateralityIndicator {
-	//Map of SCTIDS to Lattomidsag value
-	static Map<Long, Lattomidsag> lateralityIndicators = new HashMap<Long, Lattomidsag>();
-	
+
 	public static enum Lattomidsag { YES, NO, LEFT, RIGHT };
-	
+	private static final Lattomidsag[] LATTOMIDSAG_VALUES = Lattomidsag.values();
+
 	public static int IDX_SCTID = 0;
 	public static int IDX_FSN = 1;
 	public static int IDX_LATTOMIDSAG = 2;
 	public static int IDX_LR_SELECTOR = 3;
-	
-	public static void registerIndicator(String line) {
-		String[] parts = line.split("\t");
-		Long sctid = Long.parseLong(parts[IDX_SCTID]);
-		Lattomidsag l = parseLattomidsag(parts[IDX_LATTOMIDSAG]);
-		lateralityIndicators.put(sctid, l);
-	}
-	
+
+	private static final Map<String, LateralityIndicator> loadedIndexes = new HashMap<String, LateralityIndicator>();
+	private static volatile LateralityIndicator current = new LateralityIndicator(new long[0], new byte[0]);
+
+	private final long[] conceptIds;
+	private final byte[] indicators;
+
+	private LateralityIndicator(long[] conceptIds, byte[] indicators) {
+		this.conceptIds = conceptIds;
+		this.indicators = indicators;
+	}
+
+	/**
+	 * Reads the laterality reference file held as the given resource, or reuses the index
+	 * already built from it, and makes it the index used by the static lookups.
+	 */
+	synchronized public static LateralityIndicator load(String resourceName) throws RF1ConversionException {
+		LateralityIndicator index = loadedIndexes.get(resourceName);
+		if (index == null) {
+			InputStream resource = LateralityIndicator.class.getResourceAsStream(resourceName);
+			if (resource == null) {
+				throw new RF1ConversionException("Unable to find laterality reference file " + resourceName);
+			}
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(resource, StandardCharsets.UTF_8))) {
+				index = build(br);
+			} catch (IOException | NumberFormatException e) {
+				throw new RF1ConversionException("Unable to import laterality reference file " + resourceName, e);
+			}
+			loadedIndexes.put(resourceName, index);
+		}
+		current = index;
+		return index;
+	}
+
+	private static LateralityIndicator build(BufferedReader br) throws IOException {
+		long[] fileIds = new long[32 * 1024];
+		byte[] fileIndicators = new byte[fileIds.length];
+		int count = 0;
+		String line = br.readLine();  //Header
+		while ((line = br.readLine()) != null) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			if (count == fileIds.length) {
+				fileIds = Arrays.copyOf(fileIds, count * 2);
+				fileIndicators = Arrays.copyOf(fileIndicators, count * 2);
+			}
+			//Only the first and third columns are needed, so the line is not split
+			int sctIdEnd = line.indexOf('\t');
+			int fsnEnd = line.indexOf('\t', sctIdEnd + 1);
+			int indicatorEnd = line.indexOf('\t', fsnEnd + 1);
+			fileIds[count] = Long.parseLong(line.substring(0, sctIdEnd));
+			String value = line.substring(fsnEnd + 1, indicatorEnd < 0 ? line.length() : indicatorEnd);
+			fileIndicators[count] = (byte) parseLattomidsag(value).ordinal();
+			count++;
+		}
+
+		//The file is ordered on the SCTID as text, so the entries are put into numeric order.
+		//The sort is stable, and the last entry for any SCTID repeated is the one kept.
+		final long[] unsortedIds = fileIds;
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(unsortedIds[a], unsortedIds[b]);
+			}
+		});
+		long[] conceptIds = new long[count];
+		byte[] indicators = new byte[count];
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique > 0 && conceptIds[unique - 1] == fileIds[order[i]]) {
+				unique--;
+			}
+			conceptIds[unique] = fileIds[order[i]];
+			indicators[unique] = fileIndicators[order[i]];
+			unique++;
+		}
+		return new LateralityIndicator(Arrays.copyOf(conceptIds, unique), Arrays.copyOf(indicators, unique));
+	}
+
 	private static Lattomidsag parseLattomidsag(String value) {
 		switch (value) {
 			case "Y" :
@@ -30,12 +121,53 @@ public class LateralityIndicator {
 			default : return Lattomidsag.NO;
 		}
 	}
-	
+
+	/**
+	 * @return the indicator held for the concept, or null if it has none
+	 */
+	public Lattomidsag getIndicator(long sctId) {
+		int i = Arrays.binarySearch(conceptIds, sctId);
+		return i < 0 ? null : LATTOMIDSAG_VALUES[indicators[i]];
+	}
+
+	/**
+	 * @return the ids of every concept with the given indicator, in ascending order
+	 */
+	public long[] getConceptIds(Lattomidsag targetIndicator) {
+		byte target = (byte) targetIndicator.ordinal();
+		long[] matching = new long[conceptIds.length];
+		int count = 0;
+		for (int i = 0; i < conceptIds.length; i++) {
+			if (indicators[i] == target) {
+				matching[count++] = conceptIds[i];
+			}
+		}
+		return Arrays.copyOf(matching, count);
+	}
+
+	public int size() {
+		return conceptIds.length;
+	}
+
 	public static boolean hasLateralityIndicator (Long sctId, Lattomidsag targetIndicator) {
-		Lattomidsag indicator = lateralityIndicators.get(sctId);
+		return targetIndicator.equals(current.getIndicator(sctId));
+	}
+
+	/**
+	 * Lookup for SQL, registered as lateralityFor
+	 * @return the indicator of the concept as it appears in the reference file - Y, N, L or R -
+	 * or null if the concept has none
+	 */
+	public static String lateralityFor(Long sctId) {
+		Lattomidsag indicator = sctId == null ? null : current.getIndicator(sctId);
 		if (indicator == null) {
-			return false;
+			return null;
+		}
+		switch (indicator) {
+			case YES : return "Y";
+			case LEFT : return "L";
+			case RIGHT : return "R";
+			default : return "N";
 		}
-		return indicator.equals(targetIndicator);
 	}
 }
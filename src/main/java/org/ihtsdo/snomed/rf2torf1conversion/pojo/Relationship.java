@@ -29,19 +29,19 @@ public class Relationship implements Comparable<Relationship>, RF2SchemaConstant
 	public Relationship(String[] lineValues, CHARACTERISTIC characteristic) throws RF1ConversionException {
 		typeId = new Long(lineValues[REL_IDX_TYPEID]);
 		group = Integer.parseInt(lineValues[REL_IDX_RELATIONSHIPGROUP]);
-		try {
-			uuid = type5UuidFactory.get(
-					lineValues[REL_IDX_SOURCEID] + lineValues[REL_IDX_DESTINATIONID] + lineValues[REL_IDX_TYPEID]
-					+ lineValues[REL_IDX_RELATIONSHIPGROUP])
-					.toString();
-		} catch (UnsupportedEncodingException e) {
-			throw new RF1ConversionException ("Unable to form UUID for relationship",e);
-		}
 		sourceConcept = Concept.registerConcept(lineValues[REL_IDX_SOURCEID]);
 		destinationConcept = Concept.registerConcept(lineValues[REL_IDX_DESTINATIONID]);
 		sourceConcept.addAttribute(this);
 	}
 	
+	public Relationship(long sourceId, long destinationId, int group, long typeId, CHARACTERISTIC characteristic) throws RF1ConversionException {
+		this.typeId = typeId;
+		this.group = group;
+		sourceConcept = Concept.registerConcept(sourceId);
+		destinationConcept = Concept.registerConcept(destinationId);
+		sourceConcept.addAttribute(this);
+	}
+	
 	protected Relationship(){}
 
 	boolean isISA() {
@@ -52,7 +52,16 @@ public class Relationship implements Comparable<Relationship>, RF2SchemaConstant
 		return typeId;
 	}
 
-	public String getUuid() {
+	// The UUID is only formed when asked for, as hashing every relationship while the
+	// graph is loading is expensive and nothing on that path needs it
+	public String getUuid() throws RF1ConversionException {
+		if (uuid == null) {
+			try {
+				uuid = type5UuidFactory.get(getSourceId().toString() + getDestinationId() + typeId + group).toString();
+			} catch (UnsupportedEncodingException e) {
+				throw new RF1ConversionException ("Unable to form UUID for relationship",e);
+			}
+		}
 		return uuid;
 	}
 
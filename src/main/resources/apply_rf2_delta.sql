@@ -0,0 +1,250 @@
+-- The Delta rows have already been appended to the _sv tables, so any component
+-- with a version newer than the retained snapshot needs its snapshot row recalculated.
+-- Everything else in the snapshot tables is still current.
+-- The changed ids of each table are collected once, along with their latest version,
+-- and the snapshot rows are then replaced by joining to them.
+
+-- Expecting the following variables to be set by the calling program
+-- SET @RDATE = 20160731;
+-- SET @PREVIOUS_RDATE = 20160131;
+
+-- PARALLEL_START;
+
+DROP TABLE IF EXISTS rf2_concept_changed;
+DROP TABLE IF EXISTS rf2_term_changed;
+DROP TABLE IF EXISTS rf2_def_changed;
+DROP TABLE IF EXISTS rf2_refset_changed;
+DROP TABLE IF EXISTS rf2_crefset_changed;
+DROP TABLE IF EXISTS rf2_icrefset_changed;
+DROP TABLE IF EXISTS rf2_srefset_changed;
+DROP TABLE IF EXISTS rf2_cirefset_changed;
+DROP TABLE IF EXISTS rf2_ccirefset_changed;
+DROP TABLE IF EXISTS rf2_ssrefset_changed;
+DROP TABLE IF EXISTS rf2_iissscrefset_changed;
+DROP TABLE IF EXISTS rf2_iissscirefset_changed;
+DROP TABLE IF EXISTS rf2_rel_changed;
+DROP TABLE IF EXISTS rf2_identifier_changed;
+
+-- The snapshot tables are only looked up by id when a Delta is applied, so their
+-- id indexes are left to the first Delta run and then kept with the retained database
+CREATE INDEX IF NOT EXISTS idx_def_delta_id ON rf2_def(id);
+CREATE INDEX IF NOT EXISTS idx_refset_delta_id ON rf2_refset(id);
+CREATE INDEX IF NOT EXISTS idx_crefset_delta_id ON rf2_crefset(id);
+CREATE INDEX IF NOT EXISTS idx_icrefset_delta_id ON rf2_icrefset(id);
+CREATE INDEX IF NOT EXISTS idx_srefset_delta_id ON rf2_srefset(id);
+CREATE INDEX IF NOT EXISTS idx_cirefset_delta_id ON rf2_cirefset(id);
+CREATE INDEX IF NOT EXISTS idx_ccirefset_delta_id ON rf2_ccirefset(id);
+CREATE INDEX IF NOT EXISTS idx_ssrefset_delta_id ON rf2_ssrefset(id);
+CREATE INDEX IF NOT EXISTS idx_iissscrefset_delta_id ON rf2_iissscrefset(id);
+CREATE INDEX IF NOT EXISTS idx_iissscirefset_delta_id ON rf2_iissscirefset(id);
+CREATE INDEX IF NOT EXISTS idx_rel_delta_id ON rf2_rel(id);
+CREATE INDEX IF NOT EXISTS idx_identifier_delta_rci ON rf2_identifier(referencedComponentId);
+-- PARALLEL_END;
+
+-- PARALLEL_START;
+
+CREATE TABLE rf2_concept_changed AS
+SELECT sv.id, MAX(sv.effectiveTime) AS effectiveTime FROM rf2_concept_sv sv
+WHERE sv.id IN (SELECT id FROM rf2_concept_sv WHERE effectiveTime > @PREVIOUS_RDATE)
+AND sv.effectiveTime <= @RDATE
+GROUP BY sv.id;
+
+CREATE TABLE rf2_term_changed AS
+SELECT sv.id, MAX(sv.effectiveTime) AS effectiveTime FROM rf2_term_sv sv
+WHERE sv.id IN (SELECT id FROM rf2_term_sv WHERE effectiveTime > @PREVIOUS_RDATE)
+AND sv.effectiveTime <= @RDATE
+GROUP BY sv.id;
+
+CREATE TABLE rf2_def_changed AS
+SELECT sv.id, MAX(sv.effectiveTime) AS effectiveTime FROM rf2_def_sv sv
+WHERE sv.id IN (SELECT id FROM rf2_def_sv WHERE effectiveTime > @PREVIOUS_RDATE)
+AND sv.effectiveTime <= @RDATE
+GROUP BY sv.id;
+
+CREATE TABLE rf2_refset_changed AS
+SELECT sv.id, MAX(sv.effectiveTime) AS effectiveTime FROM rf2_refset_sv sv
+WHERE sv.id IN (SELECT id FROM rf2_refset_sv WHERE effectiveTime > @PREVIOUS_RDATE)
+AND sv.effectiveTime <= @RDATE
+GROUP BY sv.id;
+
+CREATE TABLE rf2_crefset_changed AS
+SELECT sv.id, MAX(sv.effectiveTime) AS effectiveTime FROM rf2_crefset_sv sv
+WHERE sv.id IN (SELECT id FROM rf2_crefset_sv WHERE effectiveTime > @PREVIOUS_RDATE)
+AND sv.effectiveTime <= @RDATE
+GROUP BY sv.id;
+
+CREATE TABLE rf2_icrefset_changed AS
+SELECT sv.id, MAX(sv.effectiveTime) AS effectiveTime FROM rf2_icrefset_sv sv
+WHERE sv.id IN (SELECT id FROM rf2_icrefset_sv WHERE effectiveTime > @PREVIOUS_RDATE)
+AND sv.effectiveTime <= @RDATE
+GROUP BY sv.id;
+
+CREATE TABLE rf2_srefset_changed AS
+SELECT sv.id, MAX(sv.effectiveTime) AS effectiveTime FROM rf2_srefset_sv sv
+WHERE sv.id IN (SELECT id FROM rf2_srefset_sv WHERE effectiveTime > @PREVIOUS_RDATE)
+AND sv.effectiveTime <= @RDATE
+GROUP BY sv.id;
+
+CREATE TABLE rf2_cirefset_changed AS
+SELECT sv.id, MAX(sv.effectiveTime) AS effectiveTime FROM rf2_cirefset_sv sv
+WHERE sv.id IN (SELECT id FROM rf2_cirefset_sv WHERE effectiveTime > @PREVIOUS_RDATE)
+AND sv.effectiveTime <= @RDATE
+GROUP BY sv.id;
+
+CREATE TABLE rf2_ccirefset_changed AS
+SELECT sv.id, MAX(sv.effectiveTime) AS effectiveTime FROM rf2_ccirefset_sv sv
+WHERE sv.id IN (SELECT id FROM rf2_ccirefset_sv WHERE effectiveTime > @PREVIOUS_RDATE)
+AND sv.effectiveTime <= @RDATE
+GROUP BY sv.id;
+
+CREATE TABLE rf2_ssrefset_changed AS
+SELECT sv.id, MAX(sv.effectiveTime) AS effectiveTime FROM rf2_ssrefset_sv sv
+WHERE sv.id IN (SELECT id FROM rf2_ssrefset_sv WHERE effectiveTime > @PREVIOUS_RDATE)
+AND sv.effectiveTime <= @RDATE
+GROUP BY sv.id;
+
+CREATE TABLE rf2_iissscrefset_changed AS
+SELECT sv.id, MAX(sv.effectiveTime) AS effectiveTime FROM rf2_iissscrefset_sv sv
+WHERE sv.id IN (SELECT id FROM rf2_iissscrefset_sv WHERE effectiveTime > @PREVIOUS_RDATE)
+AND sv.effectiveTime <= @RDATE
+GROUP BY sv.id;
+
+CREATE TABLE rf2_iissscirefset_changed AS
+SELECT sv.id, MAX(sv.effectiveTime) AS effectiveTime FROM rf2_iissscirefset_sv sv
+WHERE sv.id IN (SELECT id FROM rf2_iissscirefset_sv WHERE effectiveTime > @PREVIOUS_RDATE)
+AND sv.effectiveTime <= @RDATE
+GROUP BY sv.id;
+
+-- The same id can exist as both stated and inferred, so the unchanged characteristic
+-- type of a changed id has to be recalculated along with the changed one
+CREATE TABLE rf2_rel_changed AS
+SELECT DISTINCT id FROM rf2_rel_sv WHERE effectiveTime > @PREVIOUS_RDATE;
+
+-- Identifiers are versioned per scheme, so every scheme of a changed component is recalculated
+CREATE TABLE rf2_identifier_changed AS
+SELECT DISTINCT referencedComponentId FROM rf2_identifier_sv WHERE effectiveTime > @PREVIOUS_RDATE;
+-- PARALLEL_END;
+
+-- PARALLEL_START;
+
+CREATE UNIQUE INDEX idx_concept_changed_id ON rf2_concept_changed(id);
+CREATE UNIQUE INDEX idx_term_changed_id ON rf2_term_changed(id);
+CREATE UNIQUE INDEX idx_def_changed_id ON rf2_def_changed(id);
+CREATE UNIQUE INDEX idx_refset_changed_id ON rf2_refset_changed(id);
+CREATE UNIQUE INDEX idx_crefset_changed_id ON rf2_crefset_changed(id);
+CREATE UNIQUE INDEX idx_icrefset_changed_id ON rf2_icrefset_changed(id);
+CREATE UNIQUE INDEX idx_srefset_changed_id ON rf2_srefset_changed(id);
+CREATE UNIQUE INDEX idx_cirefset_changed_id ON rf2_cirefset_changed(id);
+CREATE UNIQUE INDEX idx_ccirefset_changed_id ON rf2_ccirefset_changed(id);
+CREATE UNIQUE INDEX idx_ssrefset_changed_id ON rf2_ssrefset_changed(id);
+CREATE UNIQUE INDEX idx_iissscrefset_changed_id ON rf2_iissscrefset_changed(id);
+CREATE UNIQUE INDEX idx_iissscirefset_changed_id ON rf2_iissscirefset_changed(id);
+CREATE UNIQUE INDEX idx_rel_changed_id ON rf2_rel_changed(id);
+CREATE UNIQUE INDEX idx_identifier_changed_rci ON rf2_identifier_changed(referencedComponentId);
+-- PARALLEL_END;
+
+-- PARALLEL_START;
+
+DELETE FROM rf2_concept WHERE id IN (SELECT id FROM rf2_concept_changed);
+DELETE FROM rf2_term WHERE id IN (SELECT id FROM rf2_term_changed);
+DELETE FROM rf2_def WHERE id IN (SELECT id FROM rf2_def_changed);
+DELETE FROM rf2_refset WHERE id IN (SELECT id FROM rf2_refset_changed);
+DELETE FROM rf2_crefset WHERE id IN (SELECT id FROM rf2_crefset_changed);
+DELETE FROM rf2_icrefset WHERE id IN (SELECT id FROM rf2_icrefset_changed);
+DELETE FROM rf2_srefset WHERE id IN (SELECT id FROM rf2_srefset_changed);
+DELETE FROM rf2_cirefset WHERE id IN (SELECT id FROM rf2_cirefset_changed);
+DELETE FROM rf2_ccirefset WHERE id IN (SELECT id FROM rf2_ccirefset_changed);
+DELETE FROM rf2_ssrefset WHERE id IN (SELECT id FROM rf2_ssrefset_changed);
+DELETE FROM rf2_iissscrefset WHERE id IN (SELECT id FROM rf2_iissscrefset_changed);
+DELETE FROM rf2_iissscirefset WHERE id IN (SELECT id FROM rf2_iissscirefset_changed);
+DELETE FROM rf2_rel WHERE id IN (SELECT id FROM rf2_rel_changed);
+DELETE FROM rf2_identifier WHERE referencedComponentId IN (SELECT referencedComponentId FROM rf2_identifier_changed);
+-- PARALLEL_END;
+
+-- PARALLEL_START;
+
+INSERT INTO rf2_concept
+SELECT s.* FROM rf2_concept_changed c
+INNER JOIN rf2_concept_sv s ON s.id = c.id AND s.effectiveTime = c.effectiveTime;
+
+INSERT INTO rf2_term
+SELECT s.* FROM rf2_term_changed c
+INNER JOIN rf2_term_sv s ON s.id = c.id AND s.effectiveTime = c.effectiveTime;
+
+INSERT INTO rf2_def
+SELECT s.* FROM rf2_def_changed c
+INNER JOIN rf2_def_sv s ON s.id = c.id AND s.effectiveTime = c.effectiveTime;
+
+INSERT INTO rf2_refset
+SELECT s.* FROM rf2_refset_changed c
+INNER JOIN rf2_refset_sv s ON s.id = c.id AND s.effectiveTime = c.effectiveTime;
+
+INSERT INTO rf2_crefset
+SELECT s.* FROM rf2_crefset_changed c
+INNER JOIN rf2_crefset_sv s ON s.id = c.id AND s.effectiveTime = c.effectiveTime;
+
+INSERT INTO rf2_icrefset
+SELECT s.* FROM rf2_icrefset_changed c
+INNER JOIN rf2_icrefset_sv s ON s.id = c.id AND s.effectiveTime = c.effectiveTime;
+
+INSERT INTO rf2_srefset
+SELECT s.* FROM rf2_srefset_changed c
+INNER JOIN rf2_srefset_sv s ON s.id = c.id AND s.effectiveTime = c.effectiveTime;
+
+INSERT INTO rf2_cirefset
+SELECT s.* FROM rf2_cirefset_changed c
+INNER JOIN rf2_cirefset_sv s ON s.id = c.id AND s.effectiveTime = c.effectiveTime;
+
+INSERT INTO rf2_ccirefset
+SELECT s.* FROM rf2_ccirefset_changed c
+INNER JOIN rf2_ccirefset_sv s ON s.id = c.id AND s.effectiveTime = c.effectiveTime;
+
+INSERT INTO rf2_ssrefset
+SELECT s.* FROM rf2_ssrefset_changed c
+INNER JOIN rf2_ssrefset_sv s ON s.id = c.id AND s.effectiveTime = c.effectiveTime;
+
+INSERT INTO rf2_iissscrefset
+SELECT s.* FROM rf2_iissscrefset_changed c
+INNER JOIN rf2_iissscrefset_sv s ON s.id = c.id AND s.effectiveTime = c.effectiveTime;
+
+INSERT INTO rf2_iissscirefset
+SELECT s.* FROM rf2_iissscirefset_changed c
+INNER JOIN rf2_iissscirefset_sv s ON s.id = c.id AND s.effectiveTime = c.effectiveTime;
+
+INSERT INTO rf2_rel
+SELECT s.* FROM rf2_rel_changed c
+INNER JOIN rf2_rel_sv s ON s.id = c.id
+WHERE s.active = 1 AND s.effectiveTime =
+  (SELECT MAX(sv.effectiveTime) AS LatestDate FROM rf2_rel_sv AS sv
+   WHERE sv.id=s.id
+   AND sv.effectiveTime <= @RDATE
+   AND (sv.characteristicTypeId = s.characteristicTypeId OR sv.effectiveTime <= 20050131)
+   );
+
+INSERT INTO rf2_identifier
+SELECT s.* FROM rf2_identifier_changed c
+INNER JOIN rf2_identifier_sv s ON s.referencedComponentId = c.referencedComponentId
+WHERE s.effectiveTime =
+  (SELECT MAX(sv.effectiveTime) AS LatestDate
+   FROM rf2_identifier_sv AS sv
+   WHERE s.referencedComponentId = sv.referencedComponentId AND s.identifierSchemeId = sv.identifierSchemeId
+   AND sv.effectiveTime <= @RDATE);
+-- PARALLEL_END;
+
+-- PARALLEL_START;
+
+DROP TABLE rf2_concept_changed;
+DROP TABLE rf2_term_changed;
+DROP TABLE rf2_def_changed;
+DROP TABLE rf2_refset_changed;
+DROP TABLE rf2_crefset_changed;
+DROP TABLE rf2_icrefset_changed;
+DROP TABLE rf2_srefset_changed;
+DROP TABLE rf2_cirefset_changed;
+DROP TABLE rf2_ccirefset_changed;
+DROP TABLE rf2_ssrefset_changed;
+DROP TABLE rf2_iissscrefset_changed;
+DROP TABLE rf2_iissscirefset_changed;
+DROP TABLE rf2_rel_changed;
+DROP TABLE rf2_identifier_changed;
+-- PARALLEL_END;
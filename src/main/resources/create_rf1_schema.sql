@@ -1,23 +1,26 @@
+/* The RF1 values of RF2 metadata concepts, and the RF1 source of each module, held as tables
+   so that the conversion scripts translate them with joins rather than calling out per row */
+CREATE ALIAS IF NOT EXISTS rf1MagicNumbers FOR "org.ihtsdo.snomed.rf2torf1conversion.RF1Constants.getMagicNumbers";
 
-CREATE ALIAS magicNumberFor FOR "org.ihtsdo.snomed.rf2torf1conversion.RF1Constants.getMagicNumber";
+CREATE ALIAS IF NOT EXISTS rf1ModuleSources FOR "org.ihtsdo.snomed.rf2torf1conversion.RF1Constants.getModuleSources";
 
-CREATE ALIAS magicNumberDebug FOR "org.ihtsdo.snomed.rf2torf1conversion.RF1Constants.getMagicNumberDebug";
+DROP TABLE IF EXISTS rf1_magic_number;
+CREATE TABLE rf1_magic_number (
+	SCTID				BIGINT NOT NULL PRIMARY KEY,
+	MAGICNUMBER			TINYINT NOT NULL);
 
-CREATE ALIAS moduleSourceFor FOR "org.ihtsdo.snomed.rf2torf1conversion.RF1Constants.getModuleSource";
+INSERT INTO rf1_magic_number SELECT * FROM rf1MagicNumbers();
 
-CREATE ALIAS statusFor FOR "org.ihtsdo.snomed.rf2torf1conversion.RF1Constants.translateActive";
-
-CREATE ALIAS descriptionStatusFor FOR "org.ihtsdo.snomed.rf2torf1conversion.RF1Constants.translateDescriptionActive";
-
-CREATE ALIAS descTypeFor FOR "org.ihtsdo.snomed.rf2torf1conversion.RF1Constants.translateDescType";
-
-CREATE ALIAS capitalStatusFor FOR "org.ihtsdo.snomed.rf2torf1conversion.RF1Constants.translateCaseSensitive";
+DROP TABLE IF EXISTS rf1_module_source;
+CREATE TABLE rf1_module_source (
+	MODULEID			BIGINT NOT NULL PRIMARY KEY,
+	SOURCE				VARCHAR (18) NOT NULL);
 
-CREATE ALIAS characteristicFor FOR "org.ihtsdo.snomed.rf2torf1conversion.RF1Constants.translateCharacteristic";
+INSERT INTO rf1_module_source SELECT * FROM rf1ModuleSources();
 
-CREATE ALIAS refinabilityFor FOR "org.ihtsdo.snomed.rf2torf1conversion.RF1Constants.translateRefinability";
+CREATE ALIAS IF NOT EXISTS relationshipIdFor FOR "org.ihtsdo.snomed.rf2torf1conversion.RF1Constants.lookupRelationshipId";
 
-CREATE ALIAS relationshipIdFor FOR "org.ihtsdo.snomed.rf2torf1conversion.RF1Constants.lookupRelationshipId";
+CREATE ALIAS IF NOT EXISTS lateralityFor FOR "org.ihtsdo.snomed.rf2torf1conversion.pojo.LateralityIndicator.lateralityFor";
 
 DROP TABLE IF EXISTS rf21_CONCEPT;
 CREATE TABLE rf21_CONCEPT (
@@ -130,9 +133,9 @@ CREATE TABLE rf21_REFERENCE (
 	REFERENCETYPE	TINYINT (1) NOT NULL,
 	REFERENCEDID	BIGINT NOT NULL);
 
-DROP TABLE IF EXISTS rf21_COMPONENTHISTORY;
-
-CREATE TABLE rf21_COMPONENTHISTORY (
+-- History is not dropped so that an incremental run against a retained database
+-- only has to add the entries for the new release
+CREATE TABLE IF NOT EXISTS rf21_COMPONENTHISTORY (
 	COMPONENTID		BIGINT NOT NULL,
 	RELEASEVERSION	BIGINT NOT NULL,
 	CHANGETYPE		CHAR (2) NOT NULL,
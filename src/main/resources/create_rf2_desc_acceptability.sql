@@ -0,0 +1,45 @@
+-- Expecting the following variables to be set by the calling program
+-- SET @langRefSet = '450828004';
+
+SET @USRefSet = '900000000000509007';
+SET @GBRefSet = '900000000000508004';
+SET @Preferred = '900000000000548007';
+SET @DInactivationRefSet = '900000000000490003';
+SET @RefersToRefset = '900000000000531004';
+
+-- Everything the description conversion needs to know from the language and description
+-- refsets, pivoted to one row per description in a single pass of rf2_crefset.
+-- Note that the language refset entry could be inactive if the description also is.
+DROP TABLE IF EXISTS rf2_desc_acceptability;
+CREATE TABLE rf2_desc_acceptability AS
+SELECT s.referencedComponentId AS descriptionId,
+	BOOL_OR(s.refsetId = @GBRefSet) AS gbExists,
+	BOOL_OR(s.refsetId = @GBRefSet AND s.active = 1) AS gbActive,
+	BOOL_OR(s.refsetId = @GBRefSet AND s.active = 0) AS gbInactive,
+	BOOL_OR(s.refsetId = @GBRefSet AND s.linkedComponentId = @Preferred) AS gbPreferred,
+	MIN(CASE WHEN s.refsetId = @GBRefSet THEN s.linkedComponentId END) AS gbMinLinked,
+	MAX(CASE WHEN s.refsetId = @GBRefSet THEN s.linkedComponentId END) AS gbMaxLinked,
+	BOOL_OR(s.refsetId = @USRefSet) AS usExists,
+	BOOL_OR(s.refsetId = @USRefSet AND s.active = 1) AS usActive,
+	BOOL_OR(s.refsetId = @USRefSet AND s.active = 0) AS usInactive,
+	BOOL_OR(s.refsetId = @USRefSet AND s.linkedComponentId = @Preferred) AS usPreferred,
+	BOOL_OR(s.refsetId = @USRefSet AND s.linkedComponentId = @Preferred AND s.active = 1) AS usPreferredActive,
+	MIN(CASE WHEN s.refsetId = @USRefSet THEN s.linkedComponentId END) AS usMinLinked,
+	MAX(CASE WHEN s.refsetId = @USRefSet THEN s.linkedComponentId END) AS usMaxLinked,
+	-- The langrefset line that made the description preferred was inactivated along with it
+	BOOL_OR(s.refsetId = @USRefSet AND s.linkedComponentId = @Preferred 
+		AND s.active = 0 AND s.effectiveTime = t.effectiveTime) AS usPreferredInactivated,
+	BOOL_OR(s.refsetId = @langRefSet) AS langExists,
+	BOOL_OR(s.refsetId = @langRefSet AND s.linkedComponentId = @Preferred) AS langPreferred,
+	BOOL_OR(s.refsetId = @langRefSet AND s.linkedComponentId = @Preferred 
+		AND s.active = 0 AND s.effectiveTime = t.effectiveTime) AS langPreferredInactivated,
+	MAX(CASE WHEN s.refsetId = @DInactivationRefSet AND s.active = 1 
+		THEN m.magicNumber END) AS inactivationStatus,
+	BOOL_OR(s.refsetId = @RefersToRefset AND s.active = 1) AS refersTo
+FROM rf2_crefset s
+INNER JOIN rf2_term t ON s.referencedComponentId = t.id
+LEFT JOIN rf1_magic_number m ON m.sctId = s.linkedComponentId
+WHERE s.refsetId IN (@USRefSet, @GBRefSet, @langRefSet, @DInactivationRefSet, @RefersToRefset)
+GROUP BY s.referencedComponentId;
+
+CREATE UNIQUE INDEX idx_desc_acc_id ON rf2_desc_acceptability(descriptionId);
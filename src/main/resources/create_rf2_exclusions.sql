@@ -0,0 +1,38 @@
+SET @MetadataModule = '900000000000012004';
+SET @FSN = '900000000000003001';
+
+-- Metadata concepts are not included in RF1.  Identifying them means a suffix search
+-- of the FSNs, so that's done once here and the conversion scripts join to the result.
+
+-- Metadata concepts that are still in the metadata hierarchy in the current snapshot
+DROP TABLE IF EXISTS rf2_metadata_concept;
+CREATE TABLE rf2_metadata_concept (
+	conceptId BIGINT NOT NULL PRIMARY KEY);
+
+INSERT INTO rf2_metadata_concept
+SELECT DISTINCT t.conceptId FROM rf2_term t
+WHERE t.typeId = @FSN
+AND (  (t.moduleId =  @MetadataModule AND t.term like '%metadata concept)')
+ OR t.term like '%metadato del núcleo)' OR t.term like '%(metadato fundacional)' );
+
+-- Concepts that have been metadata concepts at any point in their history.
+-- Some of those have also had an FSN that was not a metadata one, which the
+-- history needs to know about when looking at language refset changes.
+DROP TABLE IF EXISTS rf2_metadata_concept_sv;
+CREATE TABLE rf2_metadata_concept_sv (
+	conceptId BIGINT NOT NULL PRIMARY KEY,
+	hasOtherFsn BOOLEAN NOT NULL);
+
+INSERT INTO rf2_metadata_concept_sv
+SELECT DISTINCT t.conceptId, FALSE FROM rf2_term_sv t
+WHERE t.typeId = @FSN
+AND t.term like '%metadata concept)';
+
+UPDATE rf2_metadata_concept_sv m
+SET hasOtherFsn = TRUE
+WHERE EXISTS (
+	SELECT 1 FROM rf2_term_sv t
+	WHERE t.conceptId = m.conceptId
+	AND t.typeId = @FSN
+	AND NOT t.term like '%metadata concept)'
+);
@@ -172,6 +172,22 @@
 		FSN VARCHAR(255)  NOT NULL,
 		Location VARCHAR(255)  NOT NULL);
 		
+	-- Records the release a retained database was last converted for, so that a
+	-- later run can apply just the next release's Delta files to it
+	CREATE TABLE rf2_conversion_state (
+		releaseDate BIGINT NOT NULL,
+		edition VARCHAR(255) NOT NULL,
+		useRelationshipIds BOOLEAN NOT NULL);
+
+	-- Qualifying relationships are only ever written to file, so their ids are
+	-- kept here for reuse by the next incremental run
+	CREATE TABLE rf2_qualifying_rel (
+		RELATIONSHIPID VARCHAR(18) NOT NULL,
+		CONCEPTID1 VARCHAR(18) NOT NULL,
+		RELATIONSHIPTYPE VARCHAR(18) NOT NULL,
+		CONCEPTID2 VARCHAR(18) NOT NULL,
+		RELATIONSHIPGROUP VARCHAR(4) NOT NULL);
+
 	CREATE TABLE rf2_concept_sv AS SELECT * FROM rf2_concept where 1 = 0;
 	CREATE TABLE rf2_rel_sv AS SELECT * FROM rf2_rel where 1 = 0;
 	CREATE TABLE rf2_term_sv AS SELECT * FROM rf2_term where 1 = 0;
@@ -145,86 +145,3 @@ CREATE INDEX idx_cciref_lci2 ON rf2_ccirefset(linkedComponentId2);
 CREATE INDEX idx_iissscref_ci ON rf2_iissscrefset(corelationID);
 CREATE INDEX idx_iisssciref_ci ON rf2_iissscirefset(corelationID);
 -- PARALLEL_END;
-
--- Clean up imported merger of edition snapshots
-
-DROP TABLE IF EXISTS rf2_temp;
-CREATE TABLE rf2_temp (id VARCHAR(38) NOT NULL);
-
-DROP TABLE IF EXISTS rf2_temp2;
-CREATE TABLE rf2_temp2 (
-	  id VARCHAR(38) NOT NULL,  /* UUID instead of MemberID */
-	  effectiveTime VARBINARY(14) NOT NULL,
-	  active BOOLEAN NOT NULL,
-	  moduleId VARBINARY(18) NOT NULL,
-	  refSetId VARBINARY(18) NOT NULL,  /* From metadata hierarchy */
-	  referencedComponentId VARBINARY(18) NOT NULL,
-	  linkedComponentId VARBINARY(18) NOT NULL);
-
--- Identify cResfet components for which the union of snapshot files contains more than one row
-INSERT INTO rf2_temp (SELECT id FROM rf2_crefset_sp GROUP BY id HAVING COUNT(referencedComponentId) > 1);
-CREATE INDEX idx_temp_id ON rf2_temp(id);
-
--- Retrieve all imported snapshot rows relating to these duplicates
-INSERT INTO rf2_temp2 SELECT r.* FROM rf2_crefset_sp r INNER JOIN rf2_temp t ON r.id = t.id;
-CREATE INDEX idx_temp2_id ON rf2_temp2(id);
-
--- Discard all but the newest row
-DELETE FROM rf2_temp2 a WHERE
-( 
-	SELECT TRUE from rf2_temp2 b 
-	WHERE a.id = b.id 
-	AND a.effectiveTime < b.effectiveTime
-);
-
--- Back in the imported Snapshot file table, discard rows that predating the newest row
-DELETE FROM rf2_crefset_sp sp WHERE
-(
-	SELECT TRUE FROM rf2_temp2 t 
-	WHERE sp.ID = t.ID 
-	AND sp.effectiveTime <> t.effectiveTime
-);
-
-DROP TABLE IF EXISTS rf2_temp;
-CREATE TABLE rf2_temp (id VARCHAR(38) NOT NULL);
-
-DROP TABLE IF EXISTS rf2_temp2;
-CREATE TABLE rf2_temp2 (
-	  id VARCHAR(38) NOT NULL,  /* UUID instead of MemberID */
-	  effectiveTime VARBINARY(14) NOT NULL,
-	  active BOOLEAN NOT NULL,
-	  moduleId VARBINARY(18) NOT NULL,
-	  refSetId VARBINARY(18) NOT NULL,  /* From metadata hierarchy */
-	  referencedComponentId VARBINARY(18) NOT NULL,
-	  linkedComponentId VARBINARY(18) NOT NULL);
-
--- Identify cResfet components for which the union of snapshot files contains more than one row
-INSERT INTO rf2_temp (SELECT id FROM rf2_crefset GROUP BY id HAVING COUNT(referencedComponentId) > 1);
-CREATE INDEX idx_temp_id ON rf2_temp(id);
-
--- Retrieve all imported snapshot rows relating to these duplicates
-INSERT INTO rf2_temp2 SELECT r.* FROM rf2_crefset_sp r INNER JOIN rf2_temp t ON r.id = t.id;
-CREATE INDEX idx_temp2_id ON rf2_temp2(id);
-
--- Discard rows stating descriptionId is acceptable where another row says it is preferred
-DELETE FROM rf2_temp2 a WHERE
-(
-	SELECT TRUE from rf2_temp2 b
-	WHERE a.id = b.id
-	AND a.effectiveTime = b.effectiveTime 
-	AND a.linkedComponentId = '900000000000549004'
-	AND b.linkedComponentId = '900000000000548007'
-);
-
-DELETE FROM rf2_crefset a WHERE
-(
-	SELECT TRUE from rf2_temp2 b
-	WHERE a.ID = b.ID
-	AND a.linkedComponentId <> b.linkedComponentId
-);
-
-DROP TABLE IF EXISTS rf2_temp;
-DROP TABLE IF EXISTS rf2_temp2;
-
-
-
@@ -5,168 +5,123 @@
 
 SET @USRefSet = '900000000000509007'; 
 SET @Preferred = '900000000000548007';
-SET @DInactivationRefSet = '900000000000490003';
 SET @intLangCode = 'en';
-
--- Also pull in terms from the International Edition which are referenced in the language refset
-INSERT INTO rf21_term
+SET @FSN = '900000000000003001';
+SET @EntireTermCaseSensitive = '900000000000017005';
+
+-- Every candidate term with its final RF1 status and description type, worked out in a single 
+-- pass from the language refset acceptability in create_rf2_desc_acceptability.sql
+-- and held for the three inserts below, which would otherwise each work it out again
+DROP TABLE IF EXISTS rf2_ext_term;
+CREATE TABLE rf2_ext_term AS
 SELECT
-  t.id AS DESCRIPTIONID,
-  statusFor(t.active) AS DESCRIPTIONSTATUS,
-  t.conceptId AS CONCEPTID,
-  t.term AS TERM,
-  capitalStatusFor(t.caseSignificanceId) AS INITIALCAPITALSTATUS,
-  0 AS US_DESC_TYPE, 
-  0 AS GB_DESC_TYPE,
-  descTypeFor(t.typeId) AS DESC_TYPE, -- assigns all FSNs (3) but labels all other terms as 'synonyms'
-  t.languageCode AS LANGUAGECODE,
-  t.moduleSourceFor(t.moduleId) AS SOURCE
-FROM rf2_term t, rf21_concept c, rf2_crefset lang
-WHERE t.conceptid = c.conceptid
-AND lang.refsetID = @langRefSet
-AND t.id = lang.referencedComponentId
-AND t.languageCode = @intLangCode;
+  d.DESCRIPTIONID,
+  d.DESCRIPTIONSTATUS,
+  d.CONCEPTID,
+  d.TERM,
+  d.INITIALCAPITALSTATUS,
+  -- Only the extension's own terms carry a type in the dialect columns
+  CASE WHEN d.LANGUAGECODE = @langCode THEN d.BASE_TYPE ELSE 0 END AS US_DESC_TYPE, 
+  CASE WHEN d.LANGUAGECODE = @langCode THEN d.BASE_TYPE ELSE 0 END AS GB_DESC_TYPE,
+  CASE WHEN d.BASE_TYPE = 3 THEN 3
+	-- Description types were set to synonym by default, then FSN were picked up, so now just detect preferred
+	WHEN d.LANG_PREFERRED THEN 1
+	-- but only use the International Preferred where there is no row in the Extension LangRefSet
+	WHEN d.US_PREFERRED AND NOT d.LANG_EXISTS AND d.LANGUAGECODE = @intLangCode THEN 1
+	-- TODO REMOVE THIS TWEAK once TCs are happy with the basic process
+	-- When a description is inactive and the langrefset line that made it preferred
+	-- was inactivated at the same time, then mark it as preferred
+	WHEN d.DESCRIPTIONSTATUS <> 0 AND d.LANG_PREFERRED_INACTIVATED THEN 1
+	ELSE d.BASE_TYPE END AS DESC_TYPE,
+  d.LANGUAGECODE,
+  d.SOURCE,
+  d.ACTIVE,
+  d.TYPEID,
+  d.LANG_EXISTS,
+  d.US_PREFERRED_ACTIVE
+FROM (
+	SELECT s.*,
+	  -- Where the concept has limited status (6), the description should too
+	  -- Where the description has a REFERS_TO attribute, the status should be 7 - Inappropriate
+	  -- Where the concept is non current (ie status 1, 2, 3, 4, 5, or 10) then
+	  -- the description takes status 8
+	  CASE WHEN s.STATUS = 8 AND s.CONCEPTSTATUS = 6 THEN 6
+		WHEN s.STATUS = 1 AND s.REFERS_TO THEN 7
+		WHEN s.STATUS IN (0, 6) AND s.CONCEPTSTATUS IN (1, 2, 3, 4, 5, 10) THEN 8
+		ELSE s.STATUS END AS DESCRIPTIONSTATUS
+	FROM (
+		SELECT
+		  t.id AS DESCRIPTIONID,
+		  --Where term is has inactivation reason, set the description status
+		  COALESCE(a.inactivationStatus, CASE WHEN t.active THEN 0 ELSE 1 END) AS STATUS,
+		  c.conceptStatus AS CONCEPTSTATUS,
+		  a.refersTo AS REFERS_TO,
+		  t.conceptId AS CONCEPTID,
+		  t.term AS TERM,
+		  CASE WHEN t.caseSignificanceId = @EntireTermCaseSensitive THEN 1 ELSE 0 END AS INITIALCAPITALSTATUS,
+		  CASE WHEN t.typeId = @FSN THEN 3 ELSE 2 END AS BASE_TYPE, -- assigns all FSNs (3) but labels all other terms as 'synonyms'
+		  t.languageCode AS LANGUAGECODE,
+		  COALESCE(ms.source, 'ERRR') AS SOURCE,
+		  t.active AS ACTIVE,
+		  t.typeId AS TYPEID,
+		  COALESCE(a.langExists, FALSE) AS LANG_EXISTS,
+		  a.langPreferred AS LANG_PREFERRED,
+		  t.active = 0 AND a.langPreferredInactivated AS LANG_PREFERRED_INACTIVATED,
+		  a.usPreferred AS US_PREFERRED,
+		  COALESCE(a.usPreferredActive, FALSE) AS US_PREFERRED_ACTIVE
+		FROM rf2_term t
+		INNER JOIN rf21_concept c ON t.conceptId = c.conceptId
+		LEFT JOIN rf2_desc_acceptability a ON a.descriptionId = t.id
+		LEFT JOIN rf1_module_source ms ON ms.moduleId = t.moduleId
+		-- Terms in any other language are not used by any of the inserts
+		WHERE t.languageCode IN (@langCode, @intLangCode)
+	) s
+) d;
+
+-- Extension terms, plus terms from the International Edition which are referenced in the language refset
+INSERT INTO rf21_term
+SELECT DESCRIPTIONID, DESCRIPTIONSTATUS, CONCEPTID, TERM, INITIALCAPITALSTATUS, 
+	US_DESC_TYPE, GB_DESC_TYPE, DESC_TYPE, LANGUAGECODE, SOURCE
+FROM rf2_ext_term
+WHERE LANGUAGECODE = @langCode
+OR (LANGUAGECODE = @intLangCode AND LANG_EXISTS);
+
+CREATE INDEX idx_21t_cid ON rf21_term(CONCEPTID);
+CREATE INDEX idx_21t_did ON rf21_term(descriptionId);
+CREATE INDEX idx_21t_ds ON rf21_term(descriptionStatus);
 
 -- Also pull in terms where we have a concept but there's no FSN for it in the extension
 INSERT INTO rf21_term
-SELECT
-  t.id AS DESCRIPTIONID,
-  statusFor(t.active) AS DESCRIPTIONSTATUS,
-  t.conceptId AS CONCEPTID,
-  t.term AS TERM,
-  capitalStatusFor(t.caseSignificanceId) AS INITIALCAPITALSTATUS,
-  0 AS US_DESC_TYPE, 
-  0 AS GB_DESC_TYPE,
-  descTypeFor(t.typeId) AS DESC_TYPE, -- assigns all FSNs (3) but labels all other terms as 'synonyms'
-  t.languageCode AS LANGUAGECODE,
-  t.moduleSourceFor(t.moduleId) AS SOURCE
-FROM rf2_term t, rf21_concept c LEFT JOIN rf21_term t2 ON c.conceptId = t2.conceptId
-WHERE t.conceptId = c.conceptid
-AND t.languageCode = @intLangCode
-AND t.active = 1
-AND t.typeId = @FSN
-AND t2.descriptionId IS NULL;
-
--- Description types were set to synonym by default, then FSN were picked up, so now just detect preferred for each language
-UPDATE rf21_term t
-SET t.DESC_TYPE = 1
-WHERE EXISTS (
-	select 1 from rf2_crefset lang
-	where lang.refsetID = @langRefSet
-	and t.DESCRIPTIONID = lang.referencedComponentId
-	and lang.linkedComponentId = @Preferred )
-AND NOT t.DESC_TYPE = 3;
+SELECT v.DESCRIPTIONID, v.DESCRIPTIONSTATUS, v.CONCEPTID, v.TERM, v.INITIALCAPITALSTATUS, 
+	v.US_DESC_TYPE, v.GB_DESC_TYPE, v.DESC_TYPE, v.LANGUAGECODE, v.SOURCE
+FROM rf2_ext_term v
+WHERE v.LANGUAGECODE = @intLangCode
+AND v.ACTIVE = 1
+AND v.TYPEID = @FSN
+AND NOT EXISTS (
+	SELECT 1 FROM rf21_term t2
+	WHERE t2.conceptId = v.CONCEPTID
+);
 
 -- Also pull in terms where we have a concept but there's no Preferred Term for it in the extension
 INSERT INTO rf21_term
-SELECT
-  t.id AS DESCRIPTIONID,
-  statusFor(t.active) AS DESCRIPTIONSTATUS,
-  t.conceptId AS CONCEPTID,
-  t.term AS TERM,
-  capitalStatusFor(t.caseSignificanceId) AS INITIALCAPITALSTATUS,
-  0 AS US_DESC_TYPE, 
-  0 AS GB_DESC_TYPE,
-  descTypeFor(t.typeId) AS DESC_TYPE, -- assigns all FSNs (3) but labels all other terms as 'synonyms'
-  t.languageCode AS LANGUAGECODE,
-  t.moduleSourceFor(t.moduleId) AS SOURCE
-FROM rf2_term t,  rf2_crefset l, rf21_concept c 
-	LEFT JOIN rf21_term t2 
-	ON c.conceptId = t2.conceptId 
-	AND t2.desc_type = 1
-WHERE t.conceptId = c.conceptid
-AND l.referencedComponentId = t.id
-AND l.refsetid = @USRefSet
-AND l.linkedComponentId = @Preferred
-AND t.active = 1
-AND l.active = 1
-AND t.typeId = @SYN
-AND t2.descriptionId IS NULL;
-
--- Run this one again to pick up terms added from international edition
--- Description types were set to synonym by default, then FSN were picked up, so now just detect preferred
--- but only use the International Preferred where there is no row in the Extension LangRefSet
-UPDATE rf21_term t
-SET t.DESC_TYPE = 1
-WHERE EXISTS (
-	SELECT 1 from rf2_crefset intLang LEFT JOIN rf2_crefset extLang
-		ON intLang.referencedComponentId = extLang.referencedComponentId
-		AND extLang.refsetID = @langRefSet
-	WHERE t.DESCRIPTIONID = intLang.referencedComponentId
-	AND intLang.refsetID = @USRefSet 
-	AND intLang.linkedComponentId = @Preferred 
-	AND extLang.referencedComponentId is null)
-AND NOT t.DESC_TYPE = 3
-AND t.languageCode = @intLangCode;
-
-SELECT 'one', rf21_term.* from rf21_term where descriptionid = 1510949018;
-
---Where term is has inactivation reason, set the description status
-UPDATE rf21_term t
-SET t.DESCRIPTIONSTATUS = COALESCE (
-	select magicNumberFor(s.linkedComponentId)
-	from rf2_crefset s
-	where s.referencedComponentId = t.descriptionid
-	and s.refSetId = @DInactivationRefSet
-	AND s.active = 1,t.descriptionstatus);
-	
-SELECT 'two', rf21_term.* from rf21_term where descriptionid = 1510949018;
-
--- Where the concept has limited status (6), the description should too
-UPDATE rf21_term t
-SET t.DESCRIPTIONSTATUS = 6
-WHERE EXISTS (
-	SELECT 1 FROM rf21_concept c
-	WHERE t.conceptid = c.conceptid
-	AND c.conceptstatus = 6 )
-AND t.DESCRIPTIONSTATUS = 8;
-
--- Where the description has a REFERS_TO attribute, the status should be 7 - Inappropriate
-SET @RefersToRefset = '900000000000531004';
-UPDATE rf21_term t
-SET t.DESCRIPTIONSTATUS = 7
-WHERE EXISTS (
-	SELECT 1 FROM rf2_crefset s
-	where t.descriptionid = s.referencedComponentId
-	and s.refsetId = @RefersToRefset
-	and s.active = 1)
-AND t.DESCRIPTIONSTATUS = 1;
-
-SELECT 'three', rf21_term.* from rf21_term where descriptionid = 1510949018;
-
---- Where the concept is non current (ie status 1, 2, 3, 4, 5, or 10) then
---- the description takes status 8
-UPDATE rf21_term t
-SET t.DESCRIPTIONSTATUS = 8
-WHERE EXISTS (
-   SELECT 1 from rf21_concept c
-   WHERE t.conceptid = c.conceptid
-   AND c.conceptStatus in (1, 2, 3, 4, 5, 10))
-AND t.DESCRIPTIONSTATUS in (0,6);
-
--- TODO REMOVE THIS TWEAK once TCs are happy with the basic process
--- When a description is inactive and the langrefset line that made it preferred
--- was inactivated at the same time, then mark it as preferred
-create table tmp_inactive_preferred AS
-	SELECT t2.id AS descriptionId from rf2_term t2, rf2_crefset l
-	WHERE l.referencedComponentId = t2.id
-	AND t2.active = 0
-	AND t2.effectiveTime = l.effectiveTime
-	AND l.refsetid = @langRefSet
-	AND l.linkedComponentId = @Preferred
-	AND l.active = 0;
-	
-create index idx_tmp_ip_id on tmp_inactive_preferred(descriptionId);
-
-UPDATE rf21_term t
-SET t.DESC_TYPE = 1
-WHERE descriptionStatus <> 0
-AND NOT t.DESC_TYPE = 3
-AND EXISTS (
-	SELECT 1 FROM tmp_inactive_preferred tt
-	where t.descriptionId = tt.descriptionId
+SELECT v.DESCRIPTIONID, v.DESCRIPTIONSTATUS, v.CONCEPTID, v.TERM, v.INITIALCAPITALSTATUS, 
+	v.US_DESC_TYPE, v.GB_DESC_TYPE, v.DESC_TYPE, v.LANGUAGECODE, v.SOURCE
+FROM rf2_ext_term v
+WHERE v.LANGUAGECODE = @intLangCode
+AND v.ACTIVE = 1
+AND v.TYPEID = @SYN
+AND v.US_PREFERRED_ACTIVE
+AND NOT EXISTS (
+	SELECT 1 FROM rf21_term t2, rf2_desc_acceptability a2
+	WHERE t2.conceptId = v.CONCEPTID
+	AND t2.descriptionId = a2.descriptionId
+	AND a2.langPreferred
+	AND t2.DESC_TYPE <> 3
 );
 
+DROP TABLE rf2_ext_term;
+
 INSERT INTO rf21_subsetlist SELECT DISTINCT 
 	@SUBSETID_1 AS SubsetID, 
 	m.OriginalSubsetID AS OriginalSubsetID, 
@@ -1,124 +1,73 @@
+SET @FSN = '900000000000003001';
+SET @EntireTermCaseSensitive = '900000000000017005';
 
--- Set language code as en-GB when no en-US row exists and visa versa
-UPDATE rf21_term t
-SET t.LANGUAGECODE = 'en-GB'
-WHERE EXISTS (
-	-- note that the language refset entry could be inactive if the description also is
-	select 1 from rf2_crefset gb LEFT JOIN rf2_crefset us
-		ON gb.referencedComponentId = us.referencedComponentId
-		and us.refSetId = @USRefSet
-	where gb.refSetId = @GBRefSet
-	and gb.referencedComponentId = t.descriptionId
-	AND (us.referencedComponentId is null OR (us.active = 0 AND gb.active = 1))
-);
+-- Each description is converted in a single pass, using the language refset
+-- acceptability worked out in create_rf2_desc_acceptability.sql
+INSERT INTO rf21_term
+SELECT
+  d.DESCRIPTIONID,
+  -- Where the concept has limited status (6), the description should too
+  -- Where the description has a REFERS_TO attribute, the status should be 7 - Inappropriate
+  CASE WHEN d.STATUS = 8 AND d.CONCEPTSTATUS = 6 THEN 6
+	WHEN d.STATUS = 1 AND d.REFERS_TO THEN 7
+	ELSE d.STATUS END AS DESCRIPTIONSTATUS,
+  d.CONCEPTID,
+  d.TERM,
+  d.INITIALCAPITALSTATUS,
+  d.US_DESC_TYPE,
+  d.GB_DESC_TYPE,
+  CASE WHEN d.BASE_TYPE = 3 THEN 3
+	-- Where the description is acceptable in one dialect and preferred in the other, set the 
+	-- common description type to 0 - unspecified
+	WHEN d.DIALECTS_DIFFER THEN 0
+	-- Set the common type to 1 (Preferred) when it is preferred in both dialects
+	-- or when it's preferred in the dialect of its language code
+	WHEN (d.US_DESC_TYPE = 1 AND d.GB_DESC_TYPE = 1)
+	OR (d.LANGUAGECODE = 'en-US' AND d.US_DESC_TYPE = 1)
+	OR (d.LANGUAGECODE = 'en-GB' AND d.GB_DESC_TYPE = 1) THEN 1
+	-- TODO REMOVE THIS TWEAK once TCs are happy with the basic process
+	-- When a description is inactive and the langrefset line that made it preferred
+	-- was inactivated at the same time, then mark it as preferred
+	WHEN d.PREFERRED_INACTIVATED THEN 1
+	ELSE d.BASE_TYPE END AS DESC_TYPE,
+  d.LANGUAGECODE,
+  d.SOURCE
+FROM (
+	SELECT
+	  t.id AS DESCRIPTIONID,
+	  --Where term is has inactivation reason, set the description status
+	  COALESCE(a.inactivationStatus, CASE WHEN t.active THEN 0 ELSE 1 END) AS STATUS,
+	  c.conceptStatus AS CONCEPTSTATUS,
+	  a.refersTo AS REFERS_TO,
+	  t.conceptId AS CONCEPTID,
+	  t.term AS TERM,
+	  CASE WHEN t.caseSignificanceId = @EntireTermCaseSensitive THEN 1 ELSE 0 END AS INITIALCAPITALSTATUS,
+	  CASE WHEN t.typeId = @FSN THEN 3 ELSE 2 END AS BASE_TYPE, -- assigns all FSNs (3) but labels all other terms as 'synonyms'
+	  -- FSNs stay as they are, otherwise detect preferred for each language
+	  CASE WHEN t.typeId = @FSN THEN 3 WHEN a.usPreferred THEN 1 ELSE 2 END AS US_DESC_TYPE,
+	  CASE WHEN t.typeId = @FSN THEN 3 WHEN a.gbPreferred THEN 1 ELSE 2 END AS GB_DESC_TYPE,
+	  -- Set language code as en-US when no en-GB row exists and visa versa
+	  -- Seems to be an oddity in Termmed's conversion that they'd set en-GB but not an en-US
+	  -- when the description is inactive
+	  CASE WHEN a.usExists AND (NOT a.gbExists OR (a.gbInactive AND a.usActive)) AND t.active = 1 THEN 'en-US'
+		WHEN a.gbExists AND (NOT a.usExists OR (a.usInactive AND a.gbActive)) THEN 'en-GB'
+		ELSE t.languageCode END AS LANGUAGECODE,
+	  -- gb.active = us.active is not checked, TODO check it for correct results (but unlike exisiting conversion)
+	  a.gbExists AND a.usExists AND NOT (a.gbMinLinked = a.gbMaxLinked 
+		AND a.usMinLinked = a.usMaxLinked
+		AND a.gbMinLinked = a.usMinLinked) AS DIALECTS_DIFFER,
+	  t.active = 0 AND a.usPreferredInactivated AS PREFERRED_INACTIVATED,
+	  COALESCE(ms.source, 'ERRR') AS SOURCE
+	FROM rf2_term t
+	INNER JOIN rf21_concept c ON t.conceptId = c.conceptId
+	LEFT JOIN rf2_desc_acceptability a ON a.descriptionId = t.id
+	LEFT JOIN rf1_module_source ms ON ms.moduleId = t.moduleId
+	WHERE t.languageCode = @LangCode
+) d;
 
-UPDATE rf21_term t
-SET t.LANGUAGECODE = 'en-US'
-WHERE EXISTS (
-	-- note that the language refset entry could be inactive if the description also is
-	select 1 from rf2_crefset us LEFT JOIN rf2_crefset gb
-		ON us.referencedComponentId = gb.referencedComponentId
-		and gb.refSetId = @GBRefSet
-	where us.refSetId = @USRefSet
-	and us.referencedComponentId = t.descriptionId
-	AND ( gb.referencedComponentId is null OR (gb.active = 0 AND us.active = 1))
-	-- Seems to be an oddity in Termmed's conversion that they'd set en-GB but not an en-US
-	-- when the description is inactive
-) AND NOT t.DESCRIPTIONSTATUS = 1;
-
--- Description types were set to synonym by default, then FSN were picked up, so now just detect preferred for each language
-UPDATE rf21_term t
-SET t.US_DESC_TYPE = 1
-WHERE EXISTS (
-	select 1 from rf2_crefset us
-	where us.refsetID = @USRefSet
-	and t.DESCRIPTIONID = us.referencedComponentId
-	and us.linkedComponentId = @Preferred )
-AND NOT t.US_DESC_TYPE = 3;
-
-UPDATE rf21_term t
-SET t.GB_DESC_TYPE = 1
-WHERE EXISTS (
-	select 1 from rf2_crefset gb
-	where gb.refsetID = @GBRefSet
-	and t.DESCRIPTIONID = gb.referencedComponentId
-	and gb.linkedComponentId = @Preferred )
-AND NOT t.GB_DESC_TYPE = 3;
-
--- Set the common type to 1 (Preferred) when it is preferred in both dialects
--- or when it's preferred in the dialect of its language code
-UPDATE rf21_term t
-SET t.DESC_TYPE = 1
-WHERE (t.US_DESC_TYPE = 1 AND t.GB_DESC_TYPE = 1 )
-OR (t.LANGUAGECODE = 'en-US' AND  t.US_DESC_TYPE = 1)
-OR (t.LANGUAGECODE = 'en-GB' AND  t.GB_DESC_TYPE = 1);
-
--- TODO REMOVE THIS TWEAK once TCs are happy with the basic process
--- When a description is inactive and the langrefset line that made it preferred
--- was inactivated at the same time, then mark it as preferred
--- TODO  This one isn't finishing
-create table tmp_inactive_preferred AS
-	SELECT t2.id AS descriptionId from rf2_term t2, rf2_crefset l
-	WHERE l.referencedComponentId = t2.id
-	AND t2.active = 0
-	AND t2.effectiveTime = l.effectiveTime
-	AND l.refsetid = @USRefSet
-	AND l.linkedComponentId = @Preferred
-	AND l.active = 0;
-	
-create index idx_tmp_ip_id on tmp_inactive_preferred(descriptionId);
-
-UPDATE rf21_term t
-SET t.DESC_TYPE = 1
-WHERE descriptionStatus <> 0
-AND NOT t.DESC_TYPE = 3
-AND EXISTS (
-	SELECT 1 FROM tmp_inactive_preferred tt
-	where t.descriptionId = tt.descriptionId
-);
-
---Where term is has inactivation reason, set the description status
-UPDATE rf21_term t
-SET t.DESCRIPTIONSTATUS = COALESCE (
-	select magicNumberFor(s.linkedComponentId)
-	from rf2_crefset s
-	where s.referencedComponentId = t.descriptionid
-	and s.refSetId = @DInactivationRefSet
-	AND s.active = 1,t.descriptionstatus);
-
--- Where the concept has limited status (6), the description should too
-UPDATE rf21_term t
-SET t.DESCRIPTIONSTATUS = 6
-WHERE EXISTS (
-	SELECT 1 FROM rf21_concept c
-	WHERE t.conceptid = c.conceptid
-	AND c.conceptstatus = 6 )
-AND t.DESCRIPTIONSTATUS = 8;
-
--- Where the description has a REFERS_TO attribute, the status should be 7 - Inappropriate
-SET @RefersToRefset = '900000000000531004';
-UPDATE rf21_term t
-SET t.DESCRIPTIONSTATUS = 7
-WHERE EXISTS (
-	SELECT 1 FROM rf2_crefset s
-	where t.descriptionid = s.referencedComponentId
-	and s.refsetId = @RefersToRefset
-	and s.active = 1)
-AND t.DESCRIPTIONSTATUS = 1;
-
--- Where the description is acceptable in one dialect and preferred in the other, set the 
--- common description type to 0 - unspecified;
-UPDATE rf21_term t
-SET t.DESC_TYPE = 0
-WHERE EXISTS (
-	select 1 from rf2_crefset gb, rf2_crefset us
-	where gb.refsetID = @GBRefSet
-	and us.refsetID = @USRefSet
-	-- and gb.active = us.active   TODO Add this line back in for correct results (but unlike exisiting conversion)
-	and t.DESCRIPTIONID = gb.referencedComponentId
-	and t.DESCRIPTIONID = us.referencedComponentId
-	and gb.linkedComponentId != us.linkedComponentId )
-AND NOT t.US_DESC_TYPE = 3;
+CREATE INDEX idx_21t_cid ON rf21_term(CONCEPTID);
+CREATE INDEX idx_21t_did ON rf21_term(descriptionId);
+CREATE INDEX idx_21t_ds ON rf21_term(descriptionStatus);
 
 INSERT INTO rf21_subsetlist SELECT DISTINCT 
 	CASE WHEN m.refsetId = 900000000000508004 THEN @SUBSETID_2 ELSE @SUBSETID_1 END AS SubsetID, 
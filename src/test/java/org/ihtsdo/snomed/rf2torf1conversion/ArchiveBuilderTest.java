@@ -0,0 +1,100 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Enumeration;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.*;
+
+import com.google.common.io.Files;
+
+public class ArchiveBuilderTest {
+
+	File workArea;
+
+	@Before
+	public void before() {
+		workArea = Files.createTempDir();
+	}
+
+	@Test
+	public void buildDeflatedArchiveTest() throws Exception {
+		checkArchive(Deflater.DEFAULT_COMPRESSION, ZipEntry.DEFLATED);
+	}
+
+	@Test
+	public void buildStoredArchiveTest() throws Exception {
+		checkArchive(ArchiveBuilder.STORED, ZipEntry.STORED);
+	}
+
+	@Test
+	public void sameContentSameArchiveTest() throws Exception {
+		File first = buildArchive("first.zip", Deflater.DEFAULT_COMPRESSION);
+		Thread.sleep(2000);
+		File second = buildArchive("second.zip", Deflater.DEFAULT_COMPRESSION);
+		Assert.assertTrue(FileUtils.contentEquals(first, second));
+	}
+
+	private File buildArchive(String name, int compressionLevel) throws Exception {
+		File source = new File(workArea, "source.txt");
+		FileUtils.writeStringToFile(source, "added from file\r\n", "UTF-8");
+		File archive = new File(workArea, name);
+
+		ArchiveBuilder builder = new ArchiveBuilder(archive, compressionLevel, 2, "20160131");
+		builder.writeEntry("root/b/written.txt", entryWriter("written directly é\r\n"));
+		builder.addFile("root/a/added.txt", source);
+		builder.build();
+		return archive;
+	}
+
+	private void checkArchive(int compressionLevel, int expectedMethod) throws Exception {
+		File archive = buildArchive("test.zip", compressionLevel);
+
+		try (ZipFile zip = new ZipFile(archive)) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			ZipEntry first = entries.nextElement();
+			ZipEntry second = entries.nextElement();
+			Assert.assertFalse(entries.hasMoreElements());
+			// Entries are ordered by path, not by when they were added
+			Assert.assertEquals("root/a/added.txt", first.getName());
+			Assert.assertEquals("root/b/written.txt", second.getName());
+			Assert.assertEquals(expectedMethod, first.getMethod());
+			Assert.assertEquals("added from file\r\n", IOUtils.toString(zip.getInputStream(first), "UTF-8"));
+			Assert.assertEquals("written directly é\r\n", IOUtils.toString(zip.getInputStream(second), "UTF-8"));
+			// Every entry is dated at the start of the release date
+			Calendar time = Calendar.getInstance();
+			time.setTimeInMillis(first.getTime());
+			Assert.assertEquals(2016, time.get(Calendar.YEAR));
+			Assert.assertEquals(Calendar.JANUARY, time.get(Calendar.MONTH));
+			Assert.assertEquals(31, time.get(Calendar.DAY_OF_MONTH));
+			Assert.assertEquals(0, time.get(Calendar.HOUR_OF_DAY));
+		}
+	}
+
+	private ReleaseOutput.EntryWriter entryWriter(final String content) {
+		return new ReleaseOutput.EntryWriter() {
+			@Override
+			public void writeTo(OutputStream out) throws RF1ConversionException {
+				try {
+					out.write(content.getBytes(StandardCharsets.UTF_8));
+				} catch (IOException e) {
+					throw new RF1ConversionException("Failed to write test entry", e);
+				}
+			}
+		};
+	}
+
+	@After
+	public void after() throws IOException {
+		FileUtils.deleteDirectory(workArea);
+	}
+
+}
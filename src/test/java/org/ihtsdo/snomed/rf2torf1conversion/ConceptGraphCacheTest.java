@@ -0,0 +1,63 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.*;
+
+import com.google.common.io.Files;
+
+public class ConceptGraphCacheTest {
+
+	File cacheLocation;
+	File snapshot;
+
+	@Before
+	public void before() throws IOException {
+		cacheLocation = Files.createTempDir();
+		snapshot = new File(cacheLocation, "sct2_Relationship_Snapshot_INT_20170131.txt");
+		Files.write("Not parsed, only hashed", snapshot, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void cacheRoundTripTest() throws Exception {
+		RelationshipEdges edges = new RelationshipEdges();
+		edges.handle(300L, 100L, 0, 116680003L);
+		edges.handle(200L, 100L, 0, 116680003L);
+		edges.handle(300L, 400L, 1, 272741003L);
+		edges.handle(300L, 200L, 1, 363698007L);
+		edges.handle(200L, 100L, 0, 116680003L);
+		edges.sortAndDeduplicate();
+
+		ConceptGraphCache cache = new ConceptGraphCache(cacheLocation, snapshot);
+		Assert.assertFalse(cache.exists());
+		cache.write(edges, 1234L);
+
+		ConceptGraphCache reopened = new ConceptGraphCache(cacheLocation, snapshot);
+		Assert.assertTrue(reopened.exists());
+		final List<String> read = new ArrayList<String>();
+		long coldLoadMillis = reopened.read(new RelationshipFileParser.RelationshipHandler() {
+			@Override
+			public void handle(long sourceId, long destinationId, int group, long typeId) {
+				read.add(sourceId + "_" + group + "_" + typeId + "_" + destinationId);
+			}
+		});
+		Assert.assertEquals(1234L, coldLoadMillis);
+		// Read back without the repeat, grouped by source and in the order relationships sort
+		Assert.assertEquals("[200_0_116680003_100, 300_0_116680003_100, 300_1_272741003_400, 300_1_363698007_200]", read.toString());
+
+		// A different snapshot can't use the same cache
+		Files.append(" - changed", snapshot, StandardCharsets.UTF_8);
+		Assert.assertFalse(new ConceptGraphCache(cacheLocation, snapshot).exists());
+	}
+
+	@After
+	public void after() throws IOException {
+		FileUtils.deleteDirectory(cacheLocation);
+	}
+
+}
@@ -0,0 +1,81 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ihtsdo.snomed.rf2torf1conversion.pojo.RF2SchemaConstants.CHARACTERISTIC;
+import org.junit.*;
+
+import com.google.common.io.Files;
+
+public class ConceptGraphTest {
+
+	private static final long ISA = 116680003L;
+	private static final long LATERALITY = 272741003L;
+	private static final long SIDE = 182353008L;
+
+	RelationshipEdges edges;
+
+	@Before
+	public void before() {
+		// 10 <- 20 <- 40, 10 <- 30 <- 40 <- 50, with 40 also having a laterality attribute
+		edges = new RelationshipEdges();
+		edges.handle(20L, 10L, 0, ISA);
+		edges.handle(30L, 10L, 0, ISA);
+		edges.handle(40L, 20L, 0, ISA);
+		edges.handle(40L, 30L, 0, ISA);
+		edges.handle(50L, 40L, 0, ISA);
+		edges.handle(40L, SIDE, 1, LATERALITY);
+		edges.sortAndDeduplicate();
+	}
+
+	@Test
+	public void heapGraphTest() throws Exception {
+		checkGraph(new HeapConceptGraph(edges, CHARACTERISTIC.INFERRED));
+	}
+
+	@Test
+	public void directGraphTest() throws Exception {
+		checkGraph(new OffHeapConceptGraph(edges, ConceptGraph.Storage.DIRECT));
+	}
+
+	@Test
+	public void mappedGraphTest() throws Exception {
+		checkGraph(new OffHeapConceptGraph(edges, ConceptGraph.Storage.MAPPED));
+	}
+
+	@Test
+	public void transitiveClosureTest() throws Exception {
+		File closureFile = File.createTempFile("rf2_transitiveclosure_", ".txt");
+		try {
+			TransitiveClosure closure = new TransitiveClosure(new OffHeapConceptGraph(edges, ConceptGraph.Storage.DIRECT), 2);
+			Assert.assertEquals(9, closure.write(closureFile, "20170131"));
+			List<String> rows = Files.readLines(closureFile, StandardCharsets.UTF_8);
+			Assert.assertEquals(10, rows.size());
+			// Supertypes ascending, then their subtypes, and 40 only once under 10 despite two routes
+			Assert.assertEquals("20\t10\t20170131\t1", rows.get(1));
+			Assert.assertEquals("50\t10\t20170131\t1", rows.get(4));
+			Assert.assertEquals("50\t40\t20170131\t1", rows.get(9));
+		} finally {
+			closureFile.delete();
+		}
+	}
+
+	private void checkGraph(ConceptGraph graph) {
+		Assert.assertEquals("[20, 30, 40, 50]", Arrays.toString(graph.getAllDescendents(10L)));
+		Assert.assertEquals("[40, 50]", Arrays.toString(graph.getAllDescendents(30L)));
+		Assert.assertEquals(0, graph.getAllDescendents(50L).length);
+		Assert.assertEquals(0, graph.getAllDescendents(99L).length);
+		Assert.assertTrue(graph.hasAncestor(50L, 10L));
+		Assert.assertTrue(graph.hasAncestor(40L, 30L));
+		Assert.assertFalse(graph.hasAncestor(20L, 30L));
+		Assert.assertFalse(graph.hasAncestor(10L, 10L));
+		Assert.assertFalse(graph.hasAncestor(99L, 10L));
+		Assert.assertTrue(graph.hasAttribute(40L, LATERALITY, SIDE));
+		Assert.assertFalse(graph.hasAttribute(50L, LATERALITY, SIDE));
+		Assert.assertFalse(graph.hasAttribute(99L, LATERALITY, SIDE));
+	}
+
+}
@@ -0,0 +1,63 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.*;
+
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+
+public class ExternalSorterTest {
+
+	File workArea;
+
+	@Before
+	public void before() {
+		workArea = Files.createTempDir();
+	}
+
+	@Test
+	public void sortInMemoryTest() throws Exception {
+		checkSort(Long.MAX_VALUE);
+	}
+
+	@Test
+	public void sortSpilledRunsTest() throws Exception {
+		// Every line is spilled to its own run, so the runs must also be merged in more than one pass
+		checkSort(0);
+	}
+
+	private void checkSort(long maxMemory) throws Exception {
+		List<String> lines = new ArrayList<String>();
+		Random random = new Random(42);
+		for (int i = 0; i < 500; i++) {
+			lines.add(Integer.toString(random.nextInt(1000)));
+		}
+		ExternalSorter sorter = new ExternalSorter(workArea, maxMemory, String.CASE_INSENSITIVE_ORDER);
+		List<String> sorted = new ArrayList<String>();
+		try (ExternalSorter.SortedLines sortedLines = sorter.sort(new BufferedReader(new StringReader(Joiner.on("\r\n").join(lines))))) {
+			String line;
+			while ((line = sortedLines.next()) != null) {
+				sorted.add(line);
+			}
+		}
+		Collections.sort(lines);
+		Assert.assertEquals(lines, sorted);
+		// Any runs spilled are removed once read
+		Assert.assertEquals(0, workArea.list().length);
+	}
+
+	@After
+	public void after() throws IOException {
+		FileUtils.deleteDirectory(workArea);
+	}
+
+}
@@ -0,0 +1,33 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import org.ihtsdo.snomed.rf2torf1conversion.pojo.LateralityIndicator;
+import org.ihtsdo.snomed.rf2torf1conversion.pojo.LateralityIndicator.Lattomidsag;
+import org.junit.*;
+
+public class LateralityIndicatorTest {
+
+	private static final String RESOURCE = "/LateralityReferenceJuly2016.txt";
+
+	@Test
+	public void loadsOnceTest() throws Exception {
+		LateralityIndicator index = LateralityIndicator.load(RESOURCE);
+		Assert.assertSame(index, LateralityIndicator.load(RESOURCE));
+		Assert.assertEquals(Lattomidsag.YES, index.getIndicator(10013000L));
+		Assert.assertNull(index.getIndicator(138875005L));
+
+		long[] lateral = index.getConceptIds(Lattomidsag.YES);
+		Assert.assertTrue(lateral.length > 0);
+		for (int i = 1; i < lateral.length; i++) {
+			Assert.assertTrue(lateral[i - 1] < lateral[i]);
+		}
+		Assert.assertTrue(LateralityIndicator.hasLateralityIndicator(10013000L, Lattomidsag.YES));
+		Assert.assertEquals("Y", LateralityIndicator.lateralityFor(10013000L));
+		Assert.assertNull(LateralityIndicator.lateralityFor(null));
+	}
+
+	@Test(expected = RF1ConversionException.class)
+	public void missingResourceTest() throws Exception {
+		LateralityIndicator.load("/LateralityReferenceJan1999.txt");
+	}
+
+}
@@ -0,0 +1,64 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.File;
+import java.io.StringReader;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.*;
+
+import com.google.common.io.Files;
+
+public class QualifyingRuleTableTest {
+
+	private static final String RULES = "["
+			+ "{\"type\": \"272741003 |Laterality (attribute)|\", \"destination\": \"182353008 |Side (qualifier value)|\","
+			+ " \"rules\": [{\"startPoint\": \"<< 404684003 |Clinical finding (finding)|\", \"exceptions\": [\"100 |A|\", \"200 |B|\"]},"
+			+ " {\"startPoint\": \"< 71388002 |Procedure (procedure)|\", \"exceptions\": []}], \"refinability\": 1},"
+			+ "{\"type\": \"272741003 |Laterality (attribute)|\", \"destination\": \"182353008 |Side (qualifier value)|\","
+			+ " \"rules\": [{\"startPoint\": \"<< 300 |C|\", \"exceptions\": [\"400 |D|\"]}], \"refinability\": 2},"
+			+ "{\"type\": \"363698007 |Finding site (attribute)|\", \"destination\": \"123037004 |Body structure|\","
+			+ " \"rules\": [{\"startPoint\": \"<< 500 |E|\", \"exceptions\": [\"600 |F|\"]}], \"refinability\": 0}]";
+
+	@Test
+	public void compileAndRoundTripTest() throws Exception {
+		QualifyingRuleTable table = QualifyingRuleTable.compile(new StringReader(RULES));
+		assertRules(table);
+
+		File location = Files.createTempDir();
+		try {
+			File tableFile = new File(location, "qualifying_rules.bin");
+			table.write(tableFile);
+			assertRules(QualifyingRuleTable.read(tableFile));
+		} finally {
+			FileUtils.deleteDirectory(location);
+		}
+	}
+
+	private void assertRules(QualifyingRuleTable table) {
+		// The repeated attribute is dropped along with its rules
+		Assert.assertEquals(2, table.getAttributeCount());
+		Assert.assertEquals(272741003L, table.getTypeId(0));
+		Assert.assertEquals(182353008L, table.getDestinationId(0));
+		Assert.assertEquals(1, table.getRefinability(0));
+		Assert.assertEquals(0, table.getFirstRule(0));
+		Assert.assertEquals(2, table.getRuleEnd(0));
+		Assert.assertEquals(404684003L, table.getStartPointId(0));
+		Assert.assertTrue(table.includesSelf(0));
+		Assert.assertArrayEquals(new long[] { 100L, 200L }, table.getExceptionIds(0));
+		Assert.assertEquals(71388002L, table.getStartPointId(1));
+		Assert.assertFalse(table.includesSelf(1));
+		Assert.assertEquals(0, table.getExceptionIds(1).length);
+
+		Assert.assertEquals(363698007L, table.getTypeId(1));
+		Assert.assertEquals(2, table.getFirstRule(1));
+		Assert.assertEquals(3, table.getRuleEnd(1));
+		Assert.assertEquals(500L, table.getStartPointId(2));
+		Assert.assertArrayEquals(new long[] { 600L }, table.getExceptionIds(2));
+	}
+
+	@Test(expected = RF1ConversionException.class)
+	public void missingSctIdTest() throws Exception {
+		QualifyingRuleTable.compile(new StringReader("[{\"type\": \"Laterality\"}]"));
+	}
+
+}
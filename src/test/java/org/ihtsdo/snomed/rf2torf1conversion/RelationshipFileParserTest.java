@@ -0,0 +1,60 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.*;
+
+import com.google.common.io.Files;
+
+public class RelationshipFileParserTest {
+
+	File relationshipFile;
+
+	@Before
+	public void before() throws IOException {
+		relationshipFile = File.createTempFile("sct2_Relationship_Snapshot_", ".txt");
+		StringBuilder sb = new StringBuilder("id\teffectiveTime\tactive\tmoduleId\tsourceId\tdestinationId\trelationshipGroup\ttypeId\tcharacteristicTypeId\tmodifierId\r\n");
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			int active = random.nextInt(10) == 0 ? 0 : 1;
+			String characteristic = random.nextInt(10) == 0 ? "900000000000227009" : "900000000000011006";
+			sb.append(i).append("021\t20170131\t").append(active).append("\t900000000000207008\t")
+				.append(random.nextInt(500)).append("\t").append(random.nextInt(500)).append("\t")
+				.append(random.nextInt(3)).append("\t116680003\t").append(characteristic)
+				.append("\t900000000000451002\r\n");
+		}
+		Files.write(sb.toString(), relationshipFile, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void chunkedParseMatchesSerialTest() throws Exception {
+		List<String> serial = parse(new RelationshipFileParser(relationshipFile));
+		// Chunks of a few lines each, so the file is parsed as hundreds of chunks across the threads
+		List<String> chunked = parse(new RelationshipFileParser(relationshipFile, 4, 256));
+		Assert.assertTrue(serial.size() > 1000 && serial.size() < 2000);
+		Assert.assertEquals(serial, chunked);
+	}
+
+	private List<String> parse(RelationshipFileParser parser) throws RF1ConversionException {
+		final List<String> parsed = new ArrayList<String>();
+		parser.parse(new RelationshipFileParser.RelationshipHandler() {
+			@Override
+			public void handle(long sourceId, long destinationId, int group, long typeId) {
+				parsed.add(sourceId + "_" + destinationId + "_" + group + "_" + typeId);
+			}
+		});
+		Assert.assertEquals(parsed.size(), parser.getRelationshipsParsed());
+		return parsed;
+	}
+
+	@After
+	public void after() {
+		relationshipFile.delete();
+	}
+
+}
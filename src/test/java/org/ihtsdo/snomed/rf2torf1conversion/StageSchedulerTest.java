@@ -0,0 +1,63 @@
+package org.ihtsdo.snomed.rf2torf1conversion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.ihtsdo.snomed.rf2torf1conversion.StageScheduler.Stage;
+import org.junit.*;
+
+public class StageSchedulerTest {
+
+	@Test
+	public void dependenciesCompleteFirstTest() throws Exception {
+		List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+		StageScheduler scheduler = new StageScheduler(3);
+		Stage slow = scheduler.add("slow", task("slow", 200, completed));
+		Stage fast = scheduler.add("fast", task("fast", 0, completed));
+		Stage after = scheduler.add("after", task("after", 0, completed), slow, fast, null);
+		scheduler.run();
+
+		Assert.assertEquals(3, completed.size());
+		Assert.assertEquals("fast", completed.get(0));
+		Assert.assertEquals("after", completed.get(2));
+		// The slow stage is the one that held back the last
+		List<Stage> criticalPath = scheduler.getCriticalPath();
+		Assert.assertEquals(2, criticalPath.size());
+		Assert.assertSame(slow, criticalPath.get(0));
+		Assert.assertSame(after, criticalPath.get(1));
+	}
+
+	@Test
+	public void failureStopsDependentsTest() throws Exception {
+		List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+		StageScheduler scheduler = new StageScheduler(2);
+		Stage failing = scheduler.add("failing", new Callable<Void>() {
+			@Override
+			public Void call() throws RF1ConversionException {
+				throw new RF1ConversionException("Stage failed");
+			}
+		});
+		scheduler.add("dependent", task("dependent", 0, completed), failing);
+		try {
+			scheduler.run();
+			Assert.fail("Expected the stage failure to be thrown");
+		} catch (RF1ConversionException e) {
+			Assert.assertEquals("Stage failed", e.getMessage());
+		}
+		Assert.assertTrue(completed.isEmpty());
+	}
+
+	private Callable<Void> task(final String name, final long sleep, final List<String> completed) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				Thread.sleep(sleep);
+				completed.add(name);
+				return null;
+			}
+		};
+	}
+
+}